@@ -0,0 +1,20 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected by the JMH command line options, always with the GC profiler,
+ * so the allocation rate per operation is reported with the timings.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,170 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.gwt.user.server.rpc.SerializationPolicyLoader;
+
+/**
+ * Payload fixtures of the benchmarks. They are generated with a fixed seed, so every run
+ * measures the same payloads.
+ */
+public final class Fixtures {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final String RPC_CONTENT_TYPE = "text/x-gwt-rpc";
+
+	public static final String STRONG_NAME_HEADER = "X-GWT-Permutation";
+
+	public static final String MODULE_BASE_HEADER = "X-GWT-Module-Base";
+
+	public static final String MODULE_BASE_URL = "http://localhost/gwt/benchmark/";
+
+	public static final String STRONG_NAME = "5F2A0C7E1B3D4F6A8C9E0B1D2F3A4C5E";
+
+	/**
+	 * Path of the serialization policy file of {@link #STRONG_NAME} in the client bundle
+	 */
+	public static final String POLICY_PATH = SerializationPolicyLoader.getSerializationPolicyFileName("/gwt/benchmark/" + STRONG_NAME);
+
+	private static final String[] WORDS = new String[] {
+		"liveSense", "request", "factory", "servlet", "bundle", "session", "repository", "node",
+		"property", "value", "\u00e1rv\u00edzt\u0171r\u0151", "t\u00fck\u00f6rf\u00far\u00f3g\u00e9p", "\u0150r\u00fclt", "\u00c9KEZET", "content", "service",
+		"a", "of", "the", "and", "0", "42", "2010-02-12", "true", "null", "{}", "[]", "\"quoted\""
+	};
+
+	/**
+	 * Serializable JDK types listed in the generated policy files
+	 */
+	private static final Class<?>[] POLICY_TYPES = new Class<?>[] {
+		String.class, java.util.ArrayList.class, java.util.HashMap.class, java.util.LinkedHashMap.class,
+		java.util.HashSet.class, java.util.TreeMap.class, java.util.Date.class, java.sql.Timestamp.class,
+		java.lang.Integer.class, java.lang.Long.class, java.lang.Double.class, java.lang.Boolean.class,
+		java.math.BigDecimal.class, java.math.BigInteger.class, java.util.LinkedList.class, java.util.Vector.class,
+		java.lang.IllegalArgumentException.class, java.lang.RuntimeException.class, java.lang.Exception.class,
+		com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException.class,
+		com.google.gwt.user.client.rpc.RpcTokenException.class
+	};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * @param size the length of the text in characters
+	 * @return text of words separated by spaces
+	 */
+	public static String text(int size) {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder(size + 32);
+		while (sb.length() < size) {
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		sb.setLength(size);
+		return sb.toString();
+	}
+
+	/**
+	 * Builds a version 7 GWT RPC request payload of a service method with one String parameter,
+	 * like the generated client proxies do.
+	 *
+	 * @param serviceInterface the service interface
+	 * @param method the name of the method
+	 * @param argument the argument of the method
+	 * @return the payload
+	 */
+	public static String rpcPayload(Class<?> serviceInterface, String method, String argument) {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		List<Integer> tokens = new ArrayList<Integer>();
+		tokens.add(index(strings, MODULE_BASE_URL));
+		tokens.add(index(strings, STRONG_NAME));
+		tokens.add(index(strings, serviceInterface.getName()));
+		tokens.add(index(strings, method));
+		tokens.add(1);
+		tokens.add(index(strings, "java.lang.String/2004016611"));
+		tokens.add(index(strings, argument));
+
+		StringBuilder sb = new StringBuilder(argument.length() + 256);
+		sb.append("7|0|").append(strings.size()).append('|');
+		for (String s : strings.keySet()) {
+			escape(sb, s);
+			sb.append('|');
+		}
+		for (Integer token : tokens) {
+			sb.append(token).append('|');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Builds a serialization policy file of the given number of lines. The types are repeated
+	 * when there are more lines than serializable types.
+	 *
+	 * @param lines the number of lines
+	 * @return the policy file
+	 */
+	public static String policy(int lines) {
+		StringBuilder sb = new StringBuilder(lines * 96);
+		for (int i = 0; i < lines; i++) {
+			String name = POLICY_TYPES[i % POLICY_TYPES.length].getName();
+			String signature = name + "/" + (Integer.toHexString(name.hashCode()) + i);
+			sb.append(name).append(", true, true, true, true, ").append(signature).append(", ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the content into a temporary file, deleted on exit.
+	 *
+	 * @return the URL of the file
+	 */
+	public static URL tempFile(String prefix, String content) throws IOException {
+		File file = File.createTempFile(prefix, ".tmp");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+		return file.toURI().toURL();
+	}
+
+	private static int index(Map<String, Integer> strings, String s) {
+		Integer index = strings.get(s);
+		if (index == null) {
+			index = strings.size() + 1;
+			strings.put(s, index);
+		}
+		return index;
+	}
+
+	private static void escape(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '|':
+				sb.append("\\!");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case 0:
+				sb.append("\\0");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+}
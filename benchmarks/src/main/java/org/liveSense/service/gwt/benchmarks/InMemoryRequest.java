@@ -0,0 +1,137 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * In-memory POST request. The body can be read again after {@link #reset()}, so one request
+ * serves all the invocations of a benchmark.
+ */
+public class InMemoryRequest implements InvocationHandler {
+
+	private final Map<String, String> headers = new HashMap<String, String>();
+
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	private final String contentType;
+
+	private final String characterEncoding;
+
+	private final byte[] body;
+
+	private final Stream stream;
+
+	private final HttpServletRequest proxy;
+
+	public InMemoryRequest(String contentType, String characterEncoding, byte[] body) {
+		this.contentType = contentType;
+		this.characterEncoding = characterEncoding;
+		this.body = body;
+		this.stream = new Stream(body);
+		this.proxy = (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] {HttpServletRequest.class}, this);
+	}
+
+	public HttpServletRequest getRequest() {
+		return proxy;
+	}
+
+	public InMemoryRequest setHeader(String name, String value) {
+		headers.put(name.toLowerCase(Locale.ENGLISH), value);
+		return this;
+	}
+
+	/**
+	 * Rewinds the body and drops the attributes set by the previous invocation.
+	 */
+	public void reset() {
+		stream.reset();
+		attributes.clear();
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if ("getHeader".equals(name)) {
+			return headers.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+		} else if ("getHeaders".equals(name)) {
+			String value = headers.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+			return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
+		} else if ("getHeaderNames".equals(name)) {
+			return Collections.enumeration(headers.keySet());
+		} else if ("getAttribute".equals(name)) {
+			return attributes.get(args[0]);
+		} else if ("setAttribute".equals(name)) {
+			attributes.put((String) args[0], args[1]);
+			return null;
+		} else if ("removeAttribute".equals(name)) {
+			attributes.remove(args[0]);
+			return null;
+		} else if ("getAttributeNames".equals(name)) {
+			return Collections.enumeration(attributes.keySet());
+		} else if ("getContentType".equals(name)) {
+			return contentType;
+		} else if ("getCharacterEncoding".equals(name)) {
+			return characterEncoding;
+		} else if ("getContentLength".equals(name)) {
+			return body.length;
+		} else if ("getInputStream".equals(name)) {
+			return stream;
+		} else if ("getMethod".equals(name)) {
+			return "POST";
+		} else if ("getContextPath".equals(name)) {
+			return "";
+		} else if ("getServletPath".equals(name) || "getRequestURI".equals(name)) {
+			return "/gwt/service";
+		} else if ("getLocale".equals(name)) {
+			return Locale.ENGLISH;
+		} else if ("getLocales".equals(name)) {
+			return Collections.enumeration(Collections.singletonList(Locale.ENGLISH));
+		} else if ("getRemoteAddr".equals(name)) {
+			return "127.0.0.1";
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("toString".equals(name)) {
+			return "InMemoryRequest";
+		}
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		return null;
+	}
+
+	private static final class Stream extends ServletInputStream {
+		private final ByteArrayInputStream in;
+
+		Stream(byte[] body) {
+			this.in = new ByteArrayInputStream(body);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, len);
+		}
+
+		@Override
+		public synchronized void reset() {
+			in.reset();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory response. The written content is kept until {@link #reset()}.
+ */
+public class InMemoryResponse implements InvocationHandler {
+
+	private final Map<String, String> headers = new HashMap<String, String>();
+
+	private final ByteArrayOutputStream content = new ByteArrayOutputStream(64 * 1024);
+
+	private final Stream stream = new Stream(content);
+
+	private final HttpServletResponse proxy;
+
+	private String characterEncoding = "ISO-8859-1";
+
+	/**
+	 * 0 until the servlet sets it, so a call which failed without setting it can be detected
+	 */
+	private int status;
+
+	public InMemoryResponse() {
+		this.proxy = (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+				new Class<?>[] {HttpServletResponse.class}, this);
+	}
+
+	public HttpServletResponse getResponse() {
+		return proxy;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	public int getContentLength() {
+		return content.size();
+	}
+
+	public void reset() {
+		content.reset();
+		headers.clear();
+		status = 0;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if ("getOutputStream".equals(name)) {
+			return stream;
+		} else if ("getWriter".equals(name)) {
+			return new PrintWriter(new OutputStreamWriter(stream, characterEncoding));
+		} else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+			headers.put(((String) args[0]).toLowerCase(Locale.ENGLISH), String.valueOf(args[1]));
+			return null;
+		} else if ("setIntHeader".equals(name) || "addIntHeader".equals(name) || "setDateHeader".equals(name) || "addDateHeader".equals(name)) {
+			headers.put(((String) args[0]).toLowerCase(Locale.ENGLISH), String.valueOf(args[1]));
+			return null;
+		} else if ("containsHeader".equals(name)) {
+			return headers.containsKey(((String) args[0]).toLowerCase(Locale.ENGLISH));
+		} else if ("setContentType".equals(name)) {
+			headers.put("content-type", (String) args[0]);
+			return null;
+		} else if ("setContentLength".equals(name)) {
+			headers.put("content-length", String.valueOf(args[0]));
+			return null;
+		} else if ("setCharacterEncoding".equals(name)) {
+			characterEncoding = (String) args[0];
+			return null;
+		} else if ("getCharacterEncoding".equals(name)) {
+			return characterEncoding;
+		} else if ("setStatus".equals(name) || "sendError".equals(name)) {
+			status = (Integer) args[0];
+			return null;
+		} else if ("isCommitted".equals(name)) {
+			return Boolean.FALSE;
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("equals".equals(name)) {
+			return proxy == args[0];
+		} else if ("toString".equals(name)) {
+			return "InMemoryResponse";
+		}
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) return Boolean.FALSE;
+		if (type == int.class) return 0;
+		return null;
+	}
+
+	private static final class Stream extends ServletOutputStream {
+		private final ByteArrayOutputStream out;
+
+		Stream(ByteArrayOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+	}
+}
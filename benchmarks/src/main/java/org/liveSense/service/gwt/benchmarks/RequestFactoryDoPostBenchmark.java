@@ -0,0 +1,80 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.liveSense.service.gwt.benchmarks.requestfactory.EchoRequestFactoryServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>GWTRequestFactoryServlet.doPost()</code>: reading, processing and writing a
+ * RequestFactory call with an in-memory request and response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestFactoryDoPostBenchmark {
+
+	/**
+	 * Length of the string argument in characters
+	 */
+	@Param({"64", "4096", "262144"})
+	int size;
+
+	/**
+	 * <code>echo</code> returns a string, <code>split</code> a list of strings
+	 */
+	@Param({"echo", "split"})
+	String method;
+
+	/**
+	 * Whether the client accepts gzip encoded responses
+	 */
+	@Param({"false", "true"})
+	boolean gzip;
+
+	private EchoRequestFactoryServlet servlet;
+
+	private InMemoryRequest request;
+
+	private InMemoryResponse response;
+
+	@Setup
+	public void setup() throws Exception {
+		servlet = new EchoRequestFactoryServlet();
+		String payload = EchoRequestFactoryServlet.payload("split".equals(method), Fixtures.text(size));
+		request = new InMemoryRequest("application/json", "UTF-8", payload.getBytes(Fixtures.UTF8));
+		if (gzip) {
+			request.setHeader("Accept-Encoding", "gzip, deflate");
+		}
+		response = new InMemoryResponse();
+		doPost();
+		if (response.getStatus() != HttpServletResponse.SC_OK || response.getContentLength() == 0) {
+			throw new IllegalStateException("The fixture call failed with status " + response.getStatus());
+		}
+	}
+
+	@Benchmark
+	public int doPost() throws IOException, ServletException {
+		request.reset();
+		response.reset();
+		servlet.post(request.getRequest(), response.getResponse());
+		return response.getContentLength();
+	}
+}
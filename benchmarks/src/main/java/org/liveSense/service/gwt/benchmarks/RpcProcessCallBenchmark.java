@@ -0,0 +1,70 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.liveSense.service.gwt.benchmarks.rpc.EchoService;
+import org.liveSense.service.gwt.benchmarks.rpc.EchoServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+
+/**
+ * <code>GWTRPCServlet.processCall()</code>: authentication, decoding, invocation and encoding
+ * of an RPC call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class RpcProcessCallBenchmark {
+
+	/**
+	 * Length of the string argument in characters
+	 */
+	@Param({"64", "4096", "262144"})
+	int size;
+
+	/**
+	 * <code>echo</code> returns a string, <code>split</code> a list of strings
+	 */
+	@Param({"echo", "split"})
+	String method;
+
+	private EchoServlet servlet;
+
+	private InMemoryRequest request;
+
+	private String payload;
+
+	@Setup
+	public void setup() throws Exception {
+		servlet = new EchoServlet(Fixtures.tempFile("policy", Fixtures.policy(200)));
+		payload = Fixtures.rpcPayload(EchoService.class, method, Fixtures.text(size));
+		request = new InMemoryRequest(Fixtures.RPC_CONTENT_TYPE, "UTF-8", payload.getBytes(Fixtures.UTF8))
+				.setHeader(Fixtures.STRONG_NAME_HEADER, Fixtures.STRONG_NAME)
+				.setHeader(Fixtures.MODULE_BASE_HEADER, Fixtures.MODULE_BASE_URL);
+		servlet.bind(request.getRequest(), new InMemoryResponse().getResponse());
+		String result = servlet.processCall(payload);
+		if (!result.startsWith("//OK")) {
+			throw new IllegalStateException("The fixture call failed: " + result);
+		}
+	}
+
+	@Benchmark
+	public String processCall() throws SerializationException {
+		request.reset();
+		return servlet.processCall(payload);
+	}
+}
@@ -0,0 +1,55 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.liveSense.service.gwt.benchmarks.rpc.EchoServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+
+/**
+ * <code>GWTRPCServlet.doGetSerializationPolicy()</code>: opening and parsing the serialization
+ * policy file from the client bundle.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationPolicyBenchmark {
+
+	/**
+	 * Number of lines of the policy file
+	 */
+	@Param({"20", "200", "2000"})
+	int lines;
+
+	private EchoServlet servlet;
+
+	private InMemoryRequest request;
+
+	@Setup
+	public void setup() throws Exception {
+		servlet = new EchoServlet(Fixtures.tempFile("policy", Fixtures.policy(lines)));
+		request = new InMemoryRequest(Fixtures.RPC_CONTENT_TYPE, "UTF-8", new byte[0]);
+		if (servlet.loadSerializationPolicy(request.getRequest()) == null) {
+			throw new IllegalStateException("The fixture policy could not be loaded");
+		}
+	}
+
+	@Benchmark
+	public SerializationPolicy doGetSerializationPolicy() {
+		return servlet.loadSerializationPolicy(request.getRequest());
+	}
+}
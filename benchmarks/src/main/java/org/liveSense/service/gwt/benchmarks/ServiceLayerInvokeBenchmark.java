@@ -0,0 +1,75 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.liveSense.core.ClassInstanceCache;
+import org.liveSense.service.gwt.OsgiServiceLayerDecorator;
+import org.liveSense.service.gwt.benchmarks.requestfactory.EchoDomainService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.web.bindery.requestfactory.server.ServiceLayer;
+
+/**
+ * <code>OsgiServiceLayerDecorator.invoke()</code> against plain reflection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceLayerInvokeBenchmark {
+
+	/**
+	 * Length of the string argument in characters
+	 */
+	@Param({"64", "4096"})
+	int size;
+
+	/**
+	 * <code>echo</code> returns the argument, <code>split</code> a new list
+	 */
+	@Param({"echo", "split"})
+	String method;
+
+	private OsgiServiceLayerDecorator decorator;
+
+	private Method domainMethod;
+
+	private Object service;
+
+	private String text;
+
+	@Setup
+	public void setup() throws Exception {
+		ClassInstanceCache instanceCache = Stubs.instanceCache();
+		decorator = new OsgiServiceLayerDecorator(ServiceLayerInvokeBenchmark.class.getClassLoader(),
+				Stubs.serviceLocator(instanceCache), instanceCache);
+		// Sets the top of the decorator chain, it reports the failures
+		ServiceLayer.create(decorator);
+		domainMethod = EchoDomainService.class.getMethod(method, String.class);
+		service = instanceCache.getInstance(EchoDomainService.class);
+		text = Fixtures.text(size);
+	}
+
+	@Benchmark
+	public Object invoke() {
+		return decorator.invoke(domainMethod, service, text);
+	}
+
+	@Benchmark
+	public Object reflection() throws Exception {
+		return domainMethod.invoke(service, text);
+	}
+}
@@ -0,0 +1,198 @@
+package org.liveSense.service.gwt.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.sling.auth.core.AuthenticationSupport;
+import org.liveSense.core.ClassInstanceCache;
+import org.liveSense.core.Configurator;
+import org.liveSense.core.service.OSGIClassLoaderManager;
+import org.osgi.framework.Bundle;
+import org.osgi.service.http.HttpContext;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+import com.google.web.bindery.requestfactory.shared.ServiceLocator;
+
+/**
+ * Stubs of the OSGi services the servlets reference. They are proxies, so they do not depend
+ * on the exact version of the service interfaces; every method not handled returns the
+ * default value of its return type.
+ */
+public final class Stubs {
+
+	public static final String USER = "benchmark";
+
+	private Stubs() {
+	}
+
+	public static Configurator configurator() {
+		return stub(Configurator.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				if ("getDefaultLocale".equals(name)) return Locale.ENGLISH;
+				if ("getEncoding".equals(name)) return "UTF-8";
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * @return an authentication support authenticating every request as {@link #USER}
+	 */
+	public static AuthenticationSupport authenticationSupport() {
+		return stub(AuthenticationSupport.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				if ("handleSecurity".equals(name)) {
+					HttpServletRequest request = (HttpServletRequest) args[0];
+					request.setAttribute(HttpContext.REMOTE_USER, USER);
+					request.setAttribute(HttpContext.AUTHENTICATION_TYPE, HttpServletRequest.BASIC_AUTH);
+					return Boolean.TRUE;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public static PackageAdmin packageAdmin() {
+		return stub(PackageAdmin.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * @param classLoader the class loader returned for every bundle
+	 */
+	public static OSGIClassLoaderManager classLoaderManager(final ClassLoader classLoader) {
+		return stub(OSGIClassLoaderManager.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				if (name.endsWith("ClassLoader")) return classLoader;
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * @return an instance cache creating one instance by class with the default constructor
+	 */
+	public static ClassInstanceCache instanceCache() {
+		final Map<String, Object> instances = new ConcurrentHashMap<String, Object>();
+		return stub(ClassInstanceCache.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) throws Exception {
+				if ("getInstance".equals(name) && args != null && args.length == 1) {
+					Class<?> clazz = args[0] instanceof Class ? (Class<?>) args[0]
+							: Class.forName((String) args[0], true, Stubs.class.getClassLoader());
+					Object instance = instances.get(clazz.getName());
+					if (instance == null) {
+						instance = clazz.newInstance();
+						instances.put(clazz.getName(), instance);
+					}
+					return instance;
+				}
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public static ServiceLocator serviceLocator(final ClassInstanceCache instanceCache) {
+		return new ServiceLocator() {
+			public Object getInstance(Class<?> clazz) {
+				return instanceCache.getInstance(clazz);
+			}
+		};
+	}
+
+	/**
+	 * @param resources the URLs of the resources of the bundle by path
+	 */
+	public static Bundle bundle(final Map<String, URL> resources) {
+		return stub(Bundle.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				if ("getResource".equals(name)) return resources.get(args[0]);
+				if ("getSymbolicName".equals(name)) return "org.liveSense.service.gwt.benchmarks";
+				if ("getState".equals(name)) return Bundle.ACTIVE;
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	public static ServletConfig servletConfig(final Map<String, String> initParameters) {
+		final ServletContext context = stub(ServletContext.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				return NOT_HANDLED;
+			}
+		});
+		return stub(ServletConfig.class, new Handler() {
+			@Override
+			Object handle(String name, Object[] args) {
+				if ("getInitParameter".equals(name)) return initParameters.get(args[0]);
+				if ("getInitParameterNames".equals(name)) return Collections.enumeration(initParameters.keySet());
+				if ("getServletContext".equals(name)) return context;
+				if ("getServletName".equals(name)) return "benchmark";
+				return NOT_HANDLED;
+			}
+		});
+	}
+
+	/**
+	 * Sets the field of the object, the SCR references of the servlets are not public.
+	 */
+	public static void setField(Object target, String name, Object value) {
+		for (Class<?> clazz = target.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+			try {
+				Field field = clazz.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(target, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				// Declared by a superclass
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		throw new IllegalArgumentException("No field " + name + " in " + target.getClass());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, Handler handler) {
+		return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, handler);
+	}
+
+	private abstract static class Handler implements InvocationHandler {
+		static final Object NOT_HANDLED = new Object();
+
+		abstract Object handle(String name, Object[] args) throws Exception;
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			Object ret = handle(name, args);
+			if (ret != NOT_HANDLED) return ret;
+			if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+			if ("equals".equals(name)) return proxy == args[0];
+			if ("toString".equals(name)) return "Stub " + method.getDeclaringClass().getSimpleName();
+			Class<?> type = method.getReturnType();
+			if (type == boolean.class) return Boolean.FALSE;
+			if (type == int.class) return 0;
+			if (type == long.class) return 0L;
+			return null;
+		}
+	}
+}
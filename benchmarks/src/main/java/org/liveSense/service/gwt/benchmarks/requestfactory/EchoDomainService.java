@@ -0,0 +1,23 @@
+package org.liveSense.service.gwt.benchmarks.requestfactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Domain service of the RequestFactory benchmarks
+ */
+public class EchoDomainService {
+
+	public String echo(String text) {
+		return text;
+	}
+
+	public List<String> split(String text) {
+		List<String> ret = new ArrayList<String>();
+		for (StringTokenizer tokenizer = new StringTokenizer(text); tokenizer.hasMoreTokens();) {
+			ret.add(tokenizer.nextToken());
+		}
+		return ret;
+	}
+}
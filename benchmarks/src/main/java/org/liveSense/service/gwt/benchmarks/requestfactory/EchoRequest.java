@@ -0,0 +1,15 @@
+package org.liveSense.service.gwt.benchmarks.requestfactory;
+
+import java.util.List;
+
+import com.google.web.bindery.requestfactory.shared.Request;
+import com.google.web.bindery.requestfactory.shared.RequestContext;
+import com.google.web.bindery.requestfactory.shared.Service;
+
+@Service(value=EchoDomainService.class, locator=EchoServiceLocator.class)
+public interface EchoRequest extends RequestContext {
+
+	Request<String> echo(String text);
+
+	Request<List<String>> split(String text);
+}
@@ -0,0 +1,8 @@
+package org.liveSense.service.gwt.benchmarks.requestfactory;
+
+import com.google.web.bindery.requestfactory.shared.RequestFactory;
+
+public interface EchoRequestFactory extends RequestFactory {
+
+	EchoRequest echo();
+}
@@ -0,0 +1,78 @@
+package org.liveSense.service.gwt.benchmarks.requestfactory;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.liveSense.core.ClassInstanceCache;
+import org.liveSense.service.gwt.GWTRequestFactoryServlet;
+import org.liveSense.service.gwt.benchmarks.Stubs;
+
+import com.google.web.bindery.event.shared.SimpleEventBus;
+import com.google.web.bindery.requestfactory.shared.RequestTransport;
+import com.google.web.bindery.requestfactory.shared.ServerFailure;
+import com.google.web.bindery.requestfactory.vm.RequestFactorySource;
+
+/**
+ * RequestFactory servlet of the benchmarks, wired with the stub services. The requests are
+ * not authenticated, there is no authentication support.
+ */
+public class EchoRequestFactoryServlet extends GWTRequestFactoryServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public EchoRequestFactoryServlet() throws ServletException {
+		ClassInstanceCache instanceCache = Stubs.instanceCache();
+		Stubs.setField(this, "config", Stubs.configurator());
+		Stubs.setField(this, "packageAdmin", Stubs.packageAdmin());
+		Stubs.setField(this, "dynamicClassLoaderManager", Stubs.classLoaderManager(EchoRequestFactoryServlet.class.getClassLoader()));
+		Stubs.setField(this, "instanceCache", instanceCache);
+		Stubs.setField(this, "serviceLocator", Stubs.serviceLocator(instanceCache));
+		init(Stubs.servletConfig(Collections.<String, String>emptyMap()));
+		initOsgiProcessor();
+	}
+
+	public void post(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		doPost(request, response);
+	}
+
+	@Override
+	public void callInit() throws Throwable {
+	}
+
+	@Override
+	public void callFinal() throws Throwable {
+	}
+
+	@Override
+	public ServerFailure failure(Throwable throwable) {
+		return new ServerFailure(throwable.getMessage(), throwable.getClass().getName(), null, true);
+	}
+
+	/**
+	 * Builds the request payload with the JVM RequestFactory client.
+	 *
+	 * @param split <code>split()</code> is called if true, <code>echo()</code> otherwise
+	 * @param text the argument of the service method
+	 * @return the payload
+	 */
+	public static String payload(boolean split, String text) {
+		final String[] payload = new String[1];
+		EchoRequestFactory factory = RequestFactorySource.create(EchoRequestFactory.class);
+		factory.initialize(new SimpleEventBus(), new RequestTransport() {
+			public void send(String request, TransportReceiver receiver) {
+				payload[0] = request;
+			}
+		});
+		EchoRequest request = factory.echo();
+		if (split) {
+			request.split(text).fire();
+		} else {
+			request.echo(text).fire();
+		}
+		return payload[0];
+	}
+}
@@ -0,0 +1,14 @@
+package org.liveSense.service.gwt.benchmarks.requestfactory;
+
+import com.google.web.bindery.requestfactory.shared.ServiceLocator;
+
+/**
+ * Declared for the RequestFactory validator, the servlet looks up the services with the
+ * service locator service.
+ */
+public class EchoServiceLocator implements ServiceLocator {
+
+	public Object getInstance(Class<?> clazz) {
+		return new EchoDomainService();
+	}
+}
@@ -0,0 +1,21 @@
+package org.liveSense.service.gwt.benchmarks.rpc;
+
+import java.util.ArrayList;
+
+import com.google.gwt.user.client.rpc.RemoteService;
+
+/**
+ * RPC service of the benchmarks
+ */
+public interface EchoService extends RemoteService {
+
+	/**
+	 * @return the text
+	 */
+	String echo(String text);
+
+	/**
+	 * @return the words of the text, the response is an object graph
+	 */
+	ArrayList<String> split(String text);
+}
@@ -0,0 +1,72 @@
+package org.liveSense.service.gwt.benchmarks.rpc;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.StringTokenizer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.liveSense.service.gwt.GWTRPCServlet;
+import org.liveSense.service.gwt.benchmarks.Fixtures;
+import org.liveSense.service.gwt.benchmarks.Stubs;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+
+/**
+ * RPC servlet of the benchmarks, wired with the stub services. The serialization policy is
+ * loaded from a stub client bundle.
+ */
+public class EchoServlet extends GWTRPCServlet implements EchoService {
+
+	private static final long serialVersionUID = 1L;
+
+	public EchoServlet(URL policy) throws ServletException {
+		Stubs.setField(this, "config", Stubs.configurator());
+		Stubs.setField(this, "auth", Stubs.authenticationSupport());
+		Stubs.setField(this, "packageAdmin", Stubs.packageAdmin());
+		init(Stubs.servletConfig(Collections.<String, String>emptyMap()));
+		// The composite class loader switches the servlet to the OSGi path (authentication included)
+		setClassLoader(EchoServlet.class.getClassLoader());
+		setClientBundle(Stubs.bundle(Collections.singletonMap(Fixtures.POLICY_PATH, policy)));
+	}
+
+	/**
+	 * Binds the request and the response to the current thread, like <code>doPost()</code>.
+	 */
+	public void bind(HttpServletRequest request, HttpServletResponse response) {
+		// Initializes the thread locals
+		getThreadLocalRequest();
+		perThreadRequest.set(request);
+		perThreadResponse.set(response);
+	}
+
+	/**
+	 * Parses the serialization policy file, the serialization policy is not cached.
+	 */
+	public SerializationPolicy loadSerializationPolicy(HttpServletRequest request) {
+		return doGetSerializationPolicy(request, Fixtures.MODULE_BASE_URL, Fixtures.STRONG_NAME);
+	}
+
+	@Override
+	public void callInit() throws Throwable {
+	}
+
+	@Override
+	public void callFinal() throws Throwable {
+	}
+
+	public String echo(String text) {
+		return text;
+	}
+
+	public ArrayList<String> split(String text) {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (StringTokenizer tokenizer = new StringTokenizer(text); tokenizer.hasMoreTokens();) {
+			ret.add(tokenizer.nextToken());
+		}
+		return ret;
+	}
+}
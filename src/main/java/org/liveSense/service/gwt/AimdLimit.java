@@ -0,0 +1,168 @@
+package org.liveSense.service.gwt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limit adjusted by additive increase / multiplicative decrease. The latency of the
+ * calls is measured against the baseline of the service: the shortest latency seen (the
+ * latency without queueing), which is refreshed from the shortest latency of every window of
+ * {@link #BASELINE_WINDOW} calls, so it follows the service when it gets slower for good. When
+ * the smoothed latency exceeds the baseline by the tolerance, the limit is multiplied by the
+ * backoff ratio; only the calls started after the last backoff can back off again, so the
+ * limit is lowered at most once per round trip. A fast call raises the limit by one if the limit
+ * was used at least to the half when it started (so an idle service does not grow its limit).
+ */
+public class AimdLimit {
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final double backoffRatio;
+
+	/**
+	 * Number of calls after which the baseline is refreshed from the shortest latency of the window
+	 */
+	static final int BASELINE_WINDOW = 500;
+
+	private final double tolerance;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong accepted = new AtomicLong();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Read without lock, changed under the lock of the limit
+	 */
+	private volatile int limit;
+
+	/**
+	 * Latency statistics, guarded by the lock of the limit
+	 */
+	private long baseline = Long.MAX_VALUE;
+
+	private long windowMin = Long.MAX_VALUE;
+
+	private int windowCalls;
+
+	private long smoothed;
+
+	private long lastBackoff;
+
+	private boolean backedOff;
+
+	/**
+	 * @param tolerance the ratio of the smoothed latency and the baseline above which the limit is lowered
+	 */
+	public AimdLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double tolerance) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.backoffRatio = backoffRatio;
+		this.tolerance = tolerance;
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * @return the number of calls in flight including this one, or -1 if the call is rejected
+	 */
+	public int tryAcquire() {
+		for (;;) {
+			int current = inFlight.get();
+			if (current >= limit) {
+				rejected.incrementAndGet();
+				return -1;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				accepted.incrementAndGet();
+				return current + 1;
+			}
+		}
+	}
+
+	/**
+	 * @param start the start of the call ({@link System#nanoTime()})
+	 * @param nanos the latency of the call
+	 * @param inFlightAtStart the number of calls in flight returned by {@link #tryAcquire()}
+	 */
+	public void release(long start, long nanos, int inFlightAtStart) {
+		inFlight.decrementAndGet();
+		synchronized (this) {
+			if (nanos < windowMin) windowMin = nanos;
+			if (nanos < baseline) baseline = nanos;
+			if (++windowCalls >= BASELINE_WINDOW) {
+				baseline = windowMin;
+				windowMin = Long.MAX_VALUE;
+				windowCalls = 0;
+			}
+			smoothed = smoothed == 0 ? nanos : smoothed + (nanos - smoothed) / 8;
+			if (smoothed > baseline * tolerance) {
+				// The calls started before the last backoff saw the old limit
+				if (!backedOff || start - lastBackoff > 0) {
+					limit = Math.max(minLimit, (int) (limit * backoffRatio));
+					lastBackoff = System.nanoTime();
+					backedOff = true;
+				}
+			} else if (inFlightAtStart * 2 >= limit && limit < maxLimit) {
+				limit = Math.min(maxLimit, limit + 1);
+			}
+		}
+	}
+
+	public Snapshot getSnapshot() {
+		long baselineNanos;
+		synchronized (this) {
+			baselineNanos = baseline == Long.MAX_VALUE ? 0 : baseline;
+		}
+		return new Snapshot(limit, inFlight.get(), accepted.get(), rejected.get(), baselineNanos);
+	}
+
+	/**
+	 * State of the limit at a point of time
+	 */
+	public static final class Snapshot {
+		private final int limit;
+		private final int inFlight;
+		private final long accepted;
+		private final long rejected;
+		private final long baseline;
+
+		Snapshot(int limit, int inFlight, long accepted, long rejected, long baseline) {
+			this.limit = limit;
+			this.inFlight = inFlight;
+			this.accepted = accepted;
+			this.rejected = rejected;
+			this.baseline = baseline;
+		}
+
+		public int getLimit() {
+			return limit;
+		}
+
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		public long getAccepted() {
+			return accepted;
+		}
+
+		public long getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return the baseline latency of the service in nanoseconds, 0 before the first call
+		 */
+		public long getBaseline() {
+			return baseline;
+		}
+
+		@Override
+		public String toString() {
+			return "limit=" + limit + " inFlight=" + inFlight + " accepted=" + accepted + " rejected=" + rejected + " baseline=" + baseline / 1000 + "us";
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous execution of the servlet calls. The request is put into asynchronous mode and
+ * the call is processed by the call executor, so the container thread is free for other calls
+ * while a slow service method runs. The context classloader of the container thread is carried
+ * over, the servlets set their thread local request and response in the worker thread.
+ * <p/>
+ * It is enabled by the <code>asyncExecution</code> init parameter of the servlet, the
+ * <code>asyncTimeout</code> init parameter sets the timeout of the asynchronous calls in
+ * milliseconds (the default of the container is used if it is not set). The calls are processed
+ * synchronously if the container (or a filter of the request) does not support asynchronous
+ * requests; the Servlet 3 API is used by reflection, so the bundle still runs in Servlet 2.5
+ * containers.
+ * <p/>
+ * The container may time out (or fail) the asynchronous request while the call is running, then
+ * it completes the request and recycles the response. An <code>AsyncListener</code> marks the
+ * call finished, the call writes its response through a wrapper which drops the writes after
+ * that, and the worker does not complete the request again.
+ */
+public class AsyncExecution {
+
+	public static final String ASYNC_EXECUTION_PARAMETER = "asyncExecution";
+
+	public static final String ASYNC_TIMEOUT_PARAMETER = "asyncTimeout";
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncExecution.class);
+
+	private static final AsyncExecution DISABLED = new AsyncExecution(false, 0);
+
+	private static final Method IS_ASYNC_SUPPORTED;
+	private static final Method START_ASYNC;
+	private static final Method SET_TIMEOUT;
+	private static final Method COMPLETE;
+	private static final Method ADD_LISTENER;
+	private static final Class<?> ASYNC_LISTENER;
+
+	static {
+		Method isAsyncSupported = null;
+		Method startAsync = null;
+		Method setTimeout = null;
+		Method complete = null;
+		Method addListener = null;
+		Class<?> asyncListener = null;
+		try {
+			isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+			startAsync = ServletRequest.class.getMethod("startAsync");
+			Class<?> asyncContext = startAsync.getReturnType();
+			setTimeout = asyncContext.getMethod("setTimeout", long.class);
+			complete = asyncContext.getMethod("complete");
+			asyncListener = Class.forName("javax.servlet.AsyncListener", false, ServletRequest.class.getClassLoader());
+			addListener = asyncContext.getMethod("addListener", asyncListener);
+		} catch (NoSuchMethodException e) {
+			// Servlet 2.5 API, calls are processed synchronously
+			isAsyncSupported = null;
+		} catch (ClassNotFoundException e) {
+			isAsyncSupported = null;
+		}
+		IS_ASYNC_SUPPORTED = isAsyncSupported;
+		START_ASYNC = startAsync;
+		SET_TIMEOUT = setTimeout;
+		COMPLETE = complete;
+		ADD_LISTENER = addListener;
+		ASYNC_LISTENER = asyncListener;
+	}
+
+	/**
+	 * The call processed by the worker thread
+	 */
+	public interface Task {
+
+		/**
+		 * @param response the response of the call, it drops the writes after the request timed out
+		 */
+		void run(HttpServletResponse response) throws Exception;
+	}
+
+	private final boolean enabled;
+
+	private final long timeout;
+
+	public AsyncExecution(boolean enabled, long timeout) {
+		this.enabled = enabled && IS_ASYNC_SUPPORTED != null;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param config the config of the servlet, can be <code>null</code>
+	 * @return the asynchronous execution set by the init parameters of the servlet
+	 */
+	public static AsyncExecution fromConfig(ServletConfig config) {
+		if (config == null || !Boolean.valueOf(config.getInitParameter(ASYNC_EXECUTION_PARAMETER))) {
+			return DISABLED;
+		}
+		long timeout = 0;
+		String value = config.getInitParameter(ASYNC_TIMEOUT_PARAMETER);
+		if (value != null) {
+			try {
+				timeout = Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid asyncTimeout init parameter: "+value);
+			}
+		}
+		return new AsyncExecution(true, timeout);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Puts the request into asynchronous mode and submits the call to the executor. The
+	 * asynchronous request is completed when the call is done, unless the container finished it
+	 * (timed out) meanwhile.
+	 *
+	 * @param request the request
+	 * @param response the response
+	 * @param executor the executor of the call
+	 * @param task the call
+	 * @return true if the call was dispatched, false if it has to be processed by the current thread
+	 */
+	public boolean dispatch(HttpServletRequest request, final HttpServletResponse response, CallExecutor executor, final Task task) {
+		if (!enabled || executor == null) {
+			return false;
+		}
+		final Object asyncContext;
+		final AsyncCall call = new AsyncCall();
+		try {
+			if (!((Boolean) IS_ASYNC_SUPPORTED.invoke(request))) {
+				return false;
+			}
+			asyncContext = START_ASYNC.invoke(request);
+			ADD_LISTENER.invoke(asyncContext, Proxy.newProxyInstance(ASYNC_LISTENER.getClassLoader(), new Class<?>[] {ASYNC_LISTENER}, call));
+			if (timeout > 0) {
+				SET_TIMEOUT.invoke(asyncContext, timeout);
+			}
+		} catch (Exception e) {
+			log.warn("Could not start asynchronous request, processing synchronously: "+e);
+			return false;
+		}
+		final HttpServletResponse asyncResponse = new AsyncResponse(response, call);
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		executor.submit(new Callable<Void>() {
+			public Void call() {
+				Thread thread = Thread.currentThread();
+				ClassLoader oldClassLoader = thread.getContextClassLoader();
+				thread.setContextClassLoader(classLoader);
+				try {
+					// Timed out while it was queued
+					if (!call.isFinished()) {
+						task.run(asyncResponse);
+					}
+				} catch (Throwable e) {
+					log.error("Asynchronous call failed", e);
+					sendError(asyncResponse);
+				} finally {
+					thread.setContextClassLoader(oldClassLoader);
+					complete(asyncContext, call);
+				}
+				return null;
+			}
+		});
+		return true;
+	}
+
+	private static void sendError(HttpServletResponse response) {
+		try {
+			if (!response.isCommitted()) {
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		} catch (IOException e) {
+			log.warn("Could not send error response: "+e);
+		} catch (IllegalStateException e) {
+			log.warn("Could not send error response: "+e);
+		}
+	}
+
+	private static void complete(Object asyncContext, AsyncCall call) {
+		synchronized (call) {
+			if (call.finished) {
+				log.warn("Asynchronous request timed out before the call was done");
+				return;
+			}
+			call.finished = true;
+			try {
+				COMPLETE.invoke(asyncContext);
+			} catch (IllegalAccessException e) {
+				log.error("Could not complete asynchronous request", e);
+			} catch (InvocationTargetException e) {
+				log.warn("Could not complete asynchronous request: "+e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * State of an asynchronous call and its <code>AsyncListener</code>: the call is finished when
+	 * the container completes, times out or fails the request. Guarded by itself, the writes of
+	 * the response hold the lock, so the container never sees a write after the timeout.
+	 */
+	private static final class AsyncCall implements InvocationHandler {
+
+		boolean finished;
+
+		synchronized boolean isFinished() {
+			return finished;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("onComplete") || name.equals("onTimeout") || name.equals("onError")) {
+				synchronized (this) {
+					finished = true;
+				}
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "AsyncListener of " + this;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Response of an asynchronous call, the changes of the response are dropped after the call
+	 * is finished (see {@link AsyncCall}).
+	 */
+	private static final class AsyncResponse extends HttpServletResponseWrapper {
+
+		private final AsyncCall call;
+
+		AsyncResponse(HttpServletResponse response, AsyncCall call) {
+			super(response);
+			this.call = call;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			synchronized (call) {
+				if (!call.finished) super.setStatus(sc);
+			}
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			synchronized (call) {
+				if (!call.finished) super.sendError(sc, msg);
+			}
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			synchronized (call) {
+				if (!call.finished) super.sendError(sc);
+			}
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			synchronized (call) {
+				if (!call.finished) super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			synchronized (call) {
+				if (!call.finished) super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			synchronized (call) {
+				if (!call.finished) super.addCookie(cookie);
+			}
+		}
+
+		@Override
+		public void setContentType(String type) {
+			synchronized (call) {
+				if (!call.finished) super.setContentType(type);
+			}
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			synchronized (call) {
+				if (!call.finished) super.setContentLength(len);
+			}
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			synchronized (call) {
+				if (!call.finished) super.setCharacterEncoding(charset);
+			}
+		}
+
+		@Override
+		public boolean isCommitted() {
+			synchronized (call) {
+				return call.finished || super.isCommitted();
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			synchronized (call) {
+				if (!call.finished) super.flushBuffer();
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			final ServletOutputStream out;
+			synchronized (call) {
+				if (call.finished) throw new IllegalStateException("The asynchronous request timed out");
+				out = super.getOutputStream();
+			}
+			return new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					synchronized (call) {
+						if (!call.finished) out.write(b);
+					}
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					synchronized (call) {
+						if (!call.finished) out.write(b, off, len);
+					}
+				}
+
+				@Override
+				public void flush() throws IOException {
+					synchronized (call) {
+						if (!call.finished) out.flush();
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					synchronized (call) {
+						if (!call.finished) out.close();
+					}
+				}
+			};
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			final PrintWriter writer;
+			synchronized (call) {
+				if (call.finished) throw new IllegalStateException("The asynchronous request timed out");
+				writer = super.getWriter();
+			}
+			return new PrintWriter(new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+					synchronized (call) {
+						if (!call.finished) writer.write(cbuf, off, len);
+					}
+				}
+
+				@Override
+				public void flush() {
+					synchronized (call) {
+						if (!call.finished) writer.flush();
+					}
+				}
+
+				@Override
+				public void close() {
+					synchronized (call) {
+						if (!call.finished) writer.close();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.liveSense.service.gwt;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.auth.core.AuthenticationSupport;
+
+/**
+ * Short-lived cache of the authentication results of <code>AuthenticationSupport.handleSecurity()</code>,
+ * keyed by the credentials of the request (the <code>Authorization</code> header and the
+ * authentication cookies).
+ */
+public interface AuthenticationCache {
+
+	/**
+	 * Authenticates the request. When the credentials of the request were authenticated
+	 * recently the user and the authentication type are restored, otherwise the request is
+	 * authenticated by the authentication support. The authentication info and the resource
+	 * resolver of the request are not restored.
+	 *
+	 * @param authenticationSupport the authentication support
+	 * @param request the request
+	 * @param response the response
+	 * @return the result of <code>handleSecurity()</code>
+	 */
+	boolean handleSecurity(AuthenticationSupport authenticationSupport, HttpServletRequest request, HttpServletResponse response);
+
+	/**
+	 * Drops the cached authentication of the credentials of the request.
+	 *
+	 * @param request the request
+	 */
+	void invalidate(HttpServletRequest request);
+
+	/**
+	 * Drops the cached authentications of the user.
+	 *
+	 * @param user the user id
+	 */
+	void invalidateUser(String user);
+
+	/**
+	 * Drops all the cached authentications.
+	 */
+	void invalidateAll();
+}
@@ -0,0 +1,278 @@
+package org.liveSense.service.gwt;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.auth.core.AuthenticationSupport;
+
+/**
+ * Authentication cache. Disabled by default, when it is disabled every request is
+ * authenticated by the authentication support.
+ * <p/>
+ * The entries are kept in lock-striped access ordered maps, the stripe is chosen by the hash
+ * of the key. Only the SHA-256 digest of the credentials is kept as the key. Only successful
+ * authentications with a remote user are cached, the entries expire after the TTL.
+ * <p/>
+ * Only the user and the authentication type are restored on a hit. The authentication info
+ * (which holds the password) is not cached, and <code>AuthenticationSupport.handleSecurity()</code>
+ * is not called, so on a hit the request has no request scoped resource resolver and the
+ * authentication cookie is not refreshed. Servlets using the resource resolver of the request
+ * must not enable the cache.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT authentication cache", description="Caches the authentication of the GWT servlet calls for a short time")
+@Service(AuthenticationCache.class)
+public class AuthenticationCacheImpl implements AuthenticationCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int STRIPES = 16;
+
+	/**
+	 * <code>HttpContext.REMOTE_USER</code>
+	 */
+	private static final String REMOTE_USER_ATTRIBUTE = "org.osgi.service.http.authentication.remote.user";
+
+	/**
+	 * <code>HttpContext.AUTHENTICATION_TYPE</code>
+	 */
+	private static final String AUTHENTICATION_TYPE_ATTRIBUTE = "org.osgi.service.http.authentication.type";
+
+	public static final boolean DEFAULT_ENABLED = false;
+	@Property(boolValue=DEFAULT_ENABLED, label="Enabled", description="Caches the authentication results")
+	public static final String PROP_ENABLED = "auth.cache.enabled";
+
+	public static final int DEFAULT_TTL = 5;
+	@Property(intValue=DEFAULT_TTL, label="TTL", description="Cached authentications expire after this many seconds")
+	public static final String PROP_TTL = "auth.cache.ttl";
+
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+	@Property(intValue=DEFAULT_MAX_ENTRIES, label="Max entries", description="Maximum number of cached authentications")
+	public static final String PROP_MAX_ENTRIES = "auth.cache.max.entries";
+
+	@Property(value={"sling.formauth"}, label="Cookies", description="Names of the cookies carrying the authentication")
+	public static final String PROP_COOKIES = "auth.cache.cookies";
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private volatile boolean enabled = DEFAULT_ENABLED;
+
+	private volatile long ttlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_TTL);
+
+	private volatile String[] cookieNames = new String[0];
+
+	public AuthenticationCacheImpl() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(DEFAULT_MAX_ENTRIES / STRIPES);
+		}
+	}
+
+	@Activate
+	@Modified
+	protected void activate(Map<String, Object> properties) {
+		Object value = properties.get(PROP_ENABLED);
+		enabled = value != null ? Boolean.valueOf(value.toString()) : DEFAULT_ENABLED;
+		ttlMillis = TimeUnit.SECONDS.toMillis(ComponentSupport.toInt(properties.get(PROP_TTL), DEFAULT_TTL));
+		int maxPerStripe = Math.max(1, ComponentSupport.toInt(properties.get(PROP_MAX_ENTRIES), DEFAULT_MAX_ENTRIES) / STRIPES);
+		for (Stripe stripe : stripes) {
+			stripe.setMaxEntries(maxPerStripe);
+		}
+		value = properties.get(PROP_COOKIES);
+		String[] names = value instanceof String[] ? (String[]) value : value != null ? new String[]{value.toString()} : new String[0];
+		Arrays.sort(names);
+		cookieNames = names;
+		invalidateAll();
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		invalidateAll();
+	}
+
+	public boolean handleSecurity(AuthenticationSupport authenticationSupport, HttpServletRequest request, HttpServletResponse response) {
+		if (!enabled) {
+			return authenticationSupport.handleSecurity(request, response);
+		}
+		String key = key(request);
+		if (key == null) {
+			return authenticationSupport.handleSecurity(request, response);
+		}
+
+		Stripe stripe = stripe(key);
+		long now = System.currentTimeMillis();
+		CachedAuth entry = stripe.get(key);
+		if (entry != null && entry.expires > now) {
+			request.setAttribute(REMOTE_USER_ATTRIBUTE, entry.user);
+			if (entry.authenticationType != null) {
+				request.setAttribute(AUTHENTICATION_TYPE_ATTRIBUTE, entry.authenticationType);
+			}
+			return true;
+		}
+
+		boolean ret = authenticationSupport.handleSecurity(request, response);
+		Object user = request.getAttribute(REMOTE_USER_ATTRIBUTE);
+		if (ret && user != null) {
+			Object authenticationType = request.getAttribute(AUTHENTICATION_TYPE_ATTRIBUTE);
+			stripe.put(key, new CachedAuth(user.toString(), authenticationType != null ? authenticationType.toString() : null, now + ttlMillis));
+		} else if (entry != null) {
+			stripe.remove(key);
+		}
+		return ret;
+	}
+
+	public void invalidate(HttpServletRequest request) {
+		String key = key(request);
+		if (key != null) {
+			stripe(key).remove(key);
+		}
+	}
+
+	public void invalidateUser(String user) {
+		for (Stripe stripe : stripes) {
+			stripe.removeUser(user);
+		}
+	}
+
+	public void invalidateAll() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (STRIPES - 1)];
+	}
+
+	/**
+	 * @return the digest of the credentials of the request or <code>null</code> if the request has no credentials
+	 */
+	private String key(HttpServletRequest request) {
+		StringBuilder sb = null;
+		String authorization = request.getHeader("Authorization");
+		if (authorization != null) {
+			sb = new StringBuilder(authorization);
+		}
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			String[] names = cookieNames;
+			for (Cookie cookie : cookies) {
+				if (Arrays.binarySearch(names, cookie.getName()) >= 0) {
+					if (sb == null) sb = new StringBuilder();
+					sb.append('\n').append(cookie.getName()).append('=').append(cookie.getValue());
+				}
+			}
+		}
+		if (sb == null) return null;
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(UTF8));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class CachedAuth {
+		final String user;
+		final String authenticationType;
+		final long expires;
+
+		CachedAuth(String user, String authenticationType, long expires) {
+			this.user = user;
+			this.authenticationType = authenticationType;
+			this.expires = expires;
+		}
+	}
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final LinkedHashMap<String, CachedAuth> entries;
+		volatile int maxEntries;
+
+		Stripe(int maxEntries) {
+			this.maxEntries = maxEntries;
+			this.entries = new LinkedHashMap<String, CachedAuth>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedAuth> eldest) {
+					return size() > Stripe.this.maxEntries;
+				}
+			};
+		}
+
+		void setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		CachedAuth get(String key) {
+			lock.lock();
+			try {
+				return entries.get(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(String key, CachedAuth entry) {
+			lock.lock();
+			try {
+				entries.put(key, entry);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(String key) {
+			lock.lock();
+			try {
+				entries.remove(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void removeUser(String user) {
+			lock.lock();
+			try {
+				for (Iterator<CachedAuth> it = entries.values().iterator(); it.hasNext();) {
+					if (it.next().user.equals(user)) {
+						it.remove();
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void clear() {
+			lock.lock();
+			try {
+				entries.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
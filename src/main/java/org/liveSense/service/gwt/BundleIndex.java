@@ -0,0 +1,137 @@
+package org.liveSense.service.gwt;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.liveSense.core.BundleProxyClassLoader;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Index of the bundles by symbolic name and of the proxy classloaders of the bundles, so
+ * looking up a bundle or its classloader costs a map lookup instead of a
+ * <code>PackageAdmin</code> query and a new classloader (which would lose the classes it
+ * loaded).
+ * <p/>
+ * The bundles of a name are looked up in the <code>PackageAdmin</code> at the first use and
+ * dropped when a bundle of the name is installed, resolved, updated or uninstalled. The
+ * classloader of a bundle is dropped when the bundle is updated, unresolved (refreshed) or
+ * uninstalled, so there is one classloader per bundle revision. A lookup running in parallel
+ * with such an event is not kept, it may have seen the bundles before the event. The index has
+ * to be registered as a bundle listener to receive these events.
+ */
+public class BundleIndex implements SynchronousBundleListener {
+
+	private static final Bundle[] NO_BUNDLES = new Bundle[0];
+
+	private final ConcurrentMap<String, Bundle[]> bundlesByName = new ConcurrentHashMap<String, Bundle[]>();
+
+	private final ConcurrentMap<Long, ClassLoader> classLoaders = new ConcurrentHashMap<Long, ClassLoader>();
+
+	/**
+	 * Incremented by the bundle events before they drop the entries
+	 */
+	private final AtomicLong changes = new AtomicLong();
+
+	/**
+	 * @param name the symbolic name of the bundle
+	 * @param packageAdmin the package admin the bundles are looked up in at the first use of the name
+	 * @return the bundle of the name with the highest version or <code>null</code> if there is none
+	 */
+	public Bundle getBundle(String name, PackageAdmin packageAdmin) {
+		if (name == null) return null;
+		Bundle[] bundles = bundlesByName.get(name);
+		if (bundles == null) {
+			long seen = changes.get();
+			bundles = packageAdmin.getBundles(name, null);
+			if (bundles == null) bundles = NO_BUNDLES;
+			bundlesByName.put(name, bundles);
+			if (changes.get() != seen) {
+				bundlesByName.remove(name, bundles);
+			}
+		}
+		return bundles.length > 0 ? bundles[0] : null;
+	}
+
+	/**
+	 * Looks up the bundle without the index, for the users which can not register the index as
+	 * a bundle listener (the index would not see the changes of the bundles).
+	 *
+	 * @param name the symbolic name of the bundle
+	 * @param packageAdmin the package admin the bundles are looked up in
+	 * @return the bundle of the name with the highest version or <code>null</code> if there is none
+	 */
+	public static Bundle lookupBundle(String name, PackageAdmin packageAdmin) {
+		if (name == null) return null;
+		Bundle[] bundles = packageAdmin.getBundles(name, null);
+		return bundles != null && bundles.length > 0 ? bundles[0] : null;
+	}
+
+	/**
+	 * @param bundle the bundle
+	 * @return the proxy classloader of the current revision of the bundle
+	 */
+	public ClassLoader getClassLoader(Bundle bundle) {
+		if (bundle == null) {
+			return new BundleProxyClassLoader(null);
+		}
+		ClassLoader ret = classLoaders.get(bundle.getBundleId());
+		if (ret == null) {
+			long seen = changes.get();
+			ClassLoader newClassLoader = new BundleProxyClassLoader(bundle);
+			ret = classLoaders.putIfAbsent(bundle.getBundleId(), newClassLoader);
+			if (ret == null) {
+				ret = newClassLoader;
+				if (changes.get() != seen) {
+					classLoaders.remove(bundle.getBundleId(), newClassLoader);
+				}
+			}
+		}
+		return ret;
+	}
+
+	public void clear() {
+		bundlesByName.clear();
+		classLoaders.clear();
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		Bundle bundle = event.getBundle();
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			changes.incrementAndGet();
+			classLoaders.remove(bundle.getBundleId());
+			removeNames(bundle);
+			break;
+		case BundleEvent.INSTALLED:
+		case BundleEvent.RESOLVED:
+			changes.incrementAndGet();
+			removeNames(bundle);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void removeNames(Bundle bundle) {
+		if (bundle.getSymbolicName() != null) {
+			bundlesByName.remove(bundle.getSymbolicName());
+		}
+		// The symbolic name may have changed by an update
+		for (Iterator<Map.Entry<String, Bundle[]>> it = bundlesByName.entrySet().iterator(); it.hasNext();) {
+			for (Bundle indexed : it.next().getValue()) {
+				if (indexed.getBundleId() == bundle.getBundleId()) {
+					it.remove();
+					break;
+				}
+			}
+		}
+	}
+}
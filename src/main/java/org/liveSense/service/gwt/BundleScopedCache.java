@@ -0,0 +1,181 @@
+package org.liveSense.service.gwt;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Concurrent cache whose entries are tagged with the bundles of the classes they were
+ * resolved from. When one of these bundles is updated, uninstalled or refreshed all the
+ * entries tagged with it are dropped, so no stale class survives a redeploy.
+ * <p/>
+ * The lookups are lock free, the changes (which happen at cache misses) are made under the
+ * lock of the tags, so an entry is never stored without its tags and the tags of the dropped
+ * entries are dropped too.
+ * <p/>
+ * A value computed while a bundle event is processed may have been resolved from the bundle
+ * before the event, so it must not be stored after the invalidation: the callers read the
+ * generation of the cache before computing the value and the value is not stored if an
+ * invalidation happened since then (like the lookups of {@link BundleIndex}).
+ * <p/>
+ * The cache has to be registered as a bundle listener to receive the invalidations.
+ */
+public class BundleScopedCache<K, V> implements SynchronousBundleListener {
+
+	private static final long[] NO_BUNDLES = new long[0];
+
+	private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+	/**
+	 * Guarded by itself
+	 */
+	private final Map<Long, Set<K>> keysByBundle = new HashMap<Long, Set<K>>();
+
+	/**
+	 * Number of the invalidations, changed under the lock of the tags
+	 */
+	private volatile long generation;
+
+	public V get(K key) {
+		Entry<V> entry = entries.get(key);
+		return entry != null ? entry.value : null;
+	}
+
+	/**
+	 * @return the generation of the cache, it has to be read before the value to store is computed
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Stores a value if there is no value for the key yet and the cache was not invalidated
+	 * since the value was computed.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param generation the generation of the cache before the value was computed (see {@link #getGeneration()})
+	 * @param owners the classes the value depends on, <code>null</code> elements are ignored
+	 * @return the value stored in the cache (the earlier one if there was any), the value itself if it is not stored
+	 */
+	public V put(K key, V value, long generation, Class<?>... owners) {
+		long[] bundleIds = getBundleIds(owners);
+		synchronized (keysByBundle) {
+			if (this.generation != generation) return value;
+			Entry<V> previous = entries.get(key);
+			if (previous != null) return previous.value;
+			for (long bundleId : bundleIds) {
+				Set<K> keys = keysByBundle.get(bundleId);
+				if (keys == null) {
+					keys = new HashSet<K>();
+					keysByBundle.put(bundleId, keys);
+				}
+				keys.add(key);
+			}
+			entries.put(key, new Entry<V>(value, bundleIds));
+		}
+		return value;
+	}
+
+	public V remove(K key) {
+		synchronized (keysByBundle) {
+			Entry<V> entry = entries.remove(key);
+			if (entry == null) return null;
+			untag(key, entry, -1);
+			return entry.value;
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drops all the entries tagged with the given bundle.
+	 *
+	 * @param bundleId the id of the bundle
+	 */
+	public void invalidate(long bundleId) {
+		synchronized (keysByBundle) {
+			generation++;
+			Set<K> keys = keysByBundle.remove(bundleId);
+			if (keys == null) return;
+			for (K key : keys) {
+				Entry<V> entry = entries.remove(key);
+				if (entry != null) untag(key, entry, bundleId);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (keysByBundle) {
+			generation++;
+			keysByBundle.clear();
+			entries.clear();
+		}
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			invalidate(event.getBundle().getBundleId());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Removes the key from the tags of the entry, has to be called under the lock of the tags.
+	 *
+	 * @param key the key of the entry
+	 * @param entry the removed entry
+	 * @param skipped the id of the bundle whose tags are dropped anyway
+	 */
+	private void untag(K key, Entry<V> entry, long skipped) {
+		for (long bundleId : entry.bundleIds) {
+			if (bundleId == skipped) continue;
+			Set<K> keys = keysByBundle.get(bundleId);
+			if (keys != null && keys.remove(key) && keys.isEmpty()) {
+				keysByBundle.remove(bundleId);
+			}
+		}
+	}
+
+	private static long[] getBundleIds(Class<?>... owners) {
+		if (owners.length == 0) return NO_BUNDLES;
+		long[] ret = new long[owners.length];
+		int count = 0;
+		for (Class<?> owner : owners) {
+			if (owner == null) continue;
+			Bundle bundle = FrameworkUtil.getBundle(owner);
+			if (bundle != null) {
+				ret[count++] = bundle.getBundleId();
+			}
+		}
+		if (count == ret.length) return ret;
+		long[] trimmed = new long[count];
+		System.arraycopy(ret, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		final long[] bundleIds;
+
+		Entry(V value, long[] bundleIds) {
+			this.value = value;
+			this.bundleIds = bundleIds;
+		}
+	}
+}
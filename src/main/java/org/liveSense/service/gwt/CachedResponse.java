@@ -0,0 +1,38 @@
+package org.liveSense.service.gwt;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an idempotent service method whose encoded response can be cached (see
+ * {@link ResponseCache}). A cached response is returned without invoking the method and
+ * without serializing the result again.
+ * <p/>
+ * RPC methods can be annotated in the service interface or in the servlet, RequestFactory
+ * methods in the domain service class. A RequestFactory request is cached only if all of its
+ * invocations are cacheable.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CachedResponse {
+
+	/**
+	 * @return the time to live of the cached response in seconds
+	 */
+	int ttl() default 60;
+
+	/**
+	 * @return true if the response is the same for all the users, false if it is cached per user
+	 */
+	boolean shared() default false;
+
+	/**
+	 * @return the repository paths the response is read from, the cached response is dropped
+	 *         when a node or property under one of them changes
+	 */
+	String[] invalidatedBy() default {};
+}
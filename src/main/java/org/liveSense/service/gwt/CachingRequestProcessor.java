@@ -0,0 +1,190 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.google.web.bindery.autobean.shared.AutoBeanCodex;
+import com.google.web.bindery.autobean.vm.AutoBeanFactorySource;
+import com.google.web.bindery.requestfactory.server.ServiceLayer;
+import com.google.web.bindery.requestfactory.shared.messages.InvocationMessage;
+import com.google.web.bindery.requestfactory.shared.messages.MessageFactory;
+import com.google.web.bindery.requestfactory.shared.messages.OperationMessage;
+import com.google.web.bindery.requestfactory.shared.messages.RequestMessage;
+import com.google.web.bindery.requestfactory.shared.messages.ResponseMessage;
+
+/**
+ * Looks up the responses of the cacheable RequestFactory requests in the response cache and
+ * coalesces the identical concurrent read-only requests (see {@link CallCoalescer}). A
+ * request is cacheable if it has no entity operations and all of its domain methods are
+ * annotated with {@link CachedResponse}. The response of the request is cached for the shortest
+ * TTL of its methods, it depends on the paths of all of them and it is shared only if all of
+ * them are shared. Only the responses without failures are cached. A request is read-only if
+ * all of its domain methods are read-only (see {@link ReadOnly}) or cached, the successful
+ * responses of the read-only requests get an entity tag (see {@link ConditionalResponse}).
+ */
+public abstract class CachingRequestProcessor {
+
+	private static final MessageFactory FACTORY = AutoBeanFactorySource.create(MessageFactory.class);
+
+	private static final String[] NO_PATHS = new String[0];
+
+	private final ServiceLayer serviceLayer;
+
+	public CachingRequestProcessor(ServiceLayer serviceLayer) {
+		this.serviceLayer = serviceLayer;
+	}
+
+	/**
+	 * Processes the request which is not cached.
+	 *
+	 * @param payload the payload sent by the client
+	 * @return the payload to return to the client
+	 */
+	protected abstract String processUncached(String payload);
+
+	/**
+	 * Returns the version token of the response of a read-only request, e.g. the modification
+	 * time or the revision of the data the methods read. If the services supply one, the entity
+	 * tag of the response is computed from the request and the token without processing it.
+	 *
+	 * @param domainMethods the domain methods of the invocations
+	 * @return the version token or <code>null</code> if the entity tag is computed from the response
+	 */
+	protected String getResponseVersion(List<Method> domainMethods) {
+		return null;
+	}
+
+	/**
+	 * @param payload the payload sent by the client
+	 * @param cache the response cache, the request is not cached if it is <code>null</code>
+	 * @param coalescer the call coalescer, the request is not coalesced if it is <code>null</code>
+	 * @param conditional the conditional response, the response has no entity tag if it is <code>null</code>
+	 * @param user the user of the call
+	 * @param locale the locale of the call
+	 * @return the payload to return to the client, it is not sent if the response is not modified
+	 */
+	public String process(final String payload, ResponseCache cache, CallCoalescer coalescer, ConditionalResponse conditional,
+			String user, Locale locale) {
+		if (cache == null && coalescer == null && conditional == null) {
+			return processUncached(payload);
+		}
+		RequestMessage request = AutoBeanCodex.decode(FACTORY, RequestMessage.class, payload).as();
+		List<InvocationMessage> invocations = request.getInvocations();
+		List<OperationMessage> operations = request.getOperations();
+		if (invocations == null || invocations.isEmpty() || (operations != null && !operations.isEmpty())
+				|| request.getRequestFactory() == null) {
+			return processUncached(payload);
+		}
+
+		boolean cacheable = cache != null;
+		boolean readOnly = true;
+		int ttl = Integer.MAX_VALUE;
+		boolean shared = true;
+		Set<String> paths = new LinkedHashSet<String>();
+		List<Method> domainMethods = new ArrayList<Method>(invocations.size());
+		try {
+			serviceLayer.resolveRequestFactory(request.getRequestFactory());
+			for (InvocationMessage invocation : invocations) {
+				Method domainMethod = serviceLayer.resolveDomainMethod(invocation.getOperation());
+				if (domainMethod == null) {
+					return processUncached(payload);
+				}
+				domainMethods.add(domainMethod);
+				CachedResponse cached = domainMethod.getAnnotation(CachedResponse.class);
+				// Cached methods are idempotent, so they are read-only too
+				readOnly &= cached != null || domainMethod.isAnnotationPresent(ReadOnly.class)
+						|| domainMethod.getDeclaringClass().isAnnotationPresent(ReadOnly.class);
+				cacheable &= cached != null;
+				if (cached != null) {
+					ttl = Math.min(ttl, cached.ttl());
+					shared &= cached.shared();
+					for (String path : cached.invalidatedBy()) {
+						paths.add(path);
+					}
+				}
+				if (!cacheable && !readOnly) {
+					return processUncached(payload);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Unknown request factory or operation, reported by the processor
+			return processUncached(payload);
+		}
+
+		boolean versioned = false;
+		if (readOnly && conditional != null) {
+			String version = getResponseVersion(domainMethods);
+			if (version != null) {
+				versioned = true;
+				conditional.setETag(ConditionalResponse.etag(request.getRequestFactory(), String.valueOf(user), String.valueOf(locale), payload, version));
+				if (conditional.isNotModified()) {
+					return "";
+				}
+			}
+		}
+
+		String key = null;
+		String ret = null;
+		long generation = 0;
+		if (cacheable) {
+			key = cache.key(request.getRequestFactory(), shared ? ResponseCache.SHARED_SCOPE : String.valueOf(user), locale, payload);
+			ret = cache.get(key);
+			// Read before processing, so a response computed during an invalidation is not cached
+			generation = cache.getGeneration();
+		}
+		if (ret == null) {
+			if (readOnly && coalescer != null) {
+				ret = coalesce(coalescer, coalescer.key(request.getRequestFactory(), String.valueOf(user), locale, payload), new Callable<String>() {
+					public String call() {
+						return processUncached(payload);
+					}
+				});
+			} else {
+				ret = processUncached(payload);
+			}
+			// Only the successful responses are cached and tagged
+			if ((key == null && conditional == null) || !isSuccess(ret)) {
+				if (conditional != null) conditional.setETag(null);
+				return ret;
+			}
+			if (key != null) {
+				cache.put(key, ret, ttl * 1000L, paths.isEmpty() ? NO_PATHS : paths.toArray(new String[paths.size()]), generation);
+			}
+		}
+		if (conditional != null && !versioned) {
+			conditional.setETag(ConditionalResponse.etag(ret));
+		}
+		return ret;
+	}
+
+	private static String coalesce(CallCoalescer coalescer, String key, Callable<String> call) {
+		try {
+			return coalescer.execute(key, call);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the identical request", e);
+		} catch (Exception e) {
+			throw new IllegalStateException("Request failed", e);
+		}
+	}
+
+	private static boolean isSuccess(String payload) {
+		ResponseMessage response = AutoBeanCodex.decode(FACTORY, ResponseMessage.class, payload).as();
+		if (response.getGeneralFailure() != null) {
+			return false;
+		}
+		if (response.getStatusCodes() != null) {
+			for (Boolean success : response.getStatusCodes()) {
+				if (!Boolean.TRUE.equals(success)) return false;
+			}
+		}
+		return response.getViolations() == null || response.getViolations().isEmpty();
+	}
+}
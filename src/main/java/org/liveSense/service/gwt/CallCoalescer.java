@@ -0,0 +1,35 @@
+package org.liveSense.service.gwt;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * Single-flight execution of identical concurrent calls. A call whose key matches a call in
+ * flight waits for that call and shares its encoded response (or its failure) instead of
+ * invoking the service again.
+ * <p/>
+ * Only read-only calls (see {@link ReadOnly}) are coalesced, and the key of a call contains
+ * its user, so the calls of different users are never coalesced.
+ */
+public interface CallCoalescer {
+
+	/**
+	 * @param operation the operation (the service method or the request factory)
+	 * @param scope the user of the call
+	 * @param locale the locale of the call
+	 * @param payload the request payload
+	 * @return the key of the call
+	 */
+	String key(String operation, String scope, Locale locale, String payload);
+
+	/**
+	 * Executes the call, or waits for the identical call in flight. A waiting call which times
+	 * out is executed on its own.
+	 *
+	 * @param key the key of the call
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws Exception the failure of the call, the waiting calls get the failure of the call they waited for
+	 */
+	<T> T execute(String key, Callable<T> call) throws Exception;
+}
@@ -0,0 +1,149 @@
+package org.liveSense.service.gwt;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+/**
+ * Call coalescer service, also registered in the platform MBean server as
+ * <code>org.liveSense.service.gwt:type=CallCoalescer</code>. It is disabled by default.
+ * <p/>
+ * The key of a call is the whole payload (not a digest of it), the calls in flight are short
+ * lived and the payloads are in memory anyway.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT call coalescer", description="Identical concurrent read-only GWT calls share one execution")
+@Service(CallCoalescer.class)
+public class CallCoalescerImpl implements CallCoalescer, CallCoalescerMBean {
+
+	public static final String OBJECT_NAME = "org.liveSense.service.gwt:type=CallCoalescer";
+
+	public static final boolean DEFAULT_ENABLED = false;
+	@Property(boolValue=DEFAULT_ENABLED, label="Enabled", description="Coalesces the identical concurrent calls of the read-only methods")
+	public static final String PROP_ENABLED = "call.coalescer.enabled";
+
+	public static final int DEFAULT_TIMEOUT = 10000;
+	@Property(intValue=DEFAULT_TIMEOUT, label="Timeout", description="Time a call waits for the identical call in flight in milliseconds, it is executed on its own after that")
+	public static final String PROP_TIMEOUT = "call.coalescer.timeout";
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private final AtomicLong executed = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private volatile boolean enabled = DEFAULT_ENABLED;
+
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	private ObjectName objectName;
+
+	@Activate
+	protected void activate(Map<String, Object> properties) {
+		modified(properties);
+		objectName = ComponentSupport.registerMBean(this, CallCoalescerMBean.class, OBJECT_NAME, "call coalescer");
+	}
+
+	@Modified
+	protected void modified(Map<String, Object> properties) {
+		Object value = properties.get(PROP_ENABLED);
+		enabled = value != null ? Boolean.valueOf(value.toString()) : DEFAULT_ENABLED;
+		timeout = ComponentSupport.toInt(properties.get(PROP_TIMEOUT), DEFAULT_TIMEOUT);
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		enabled = false;
+		ComponentSupport.unregisterMBean(objectName, "call coalescer");
+		objectName = null;
+	}
+
+	public String key(String operation, String scope, Locale locale, String payload) {
+		return operation + '\n' + scope + '\n' + locale + '\n' + payload;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Callable<T> call) throws Exception {
+		if (!enabled || key == null) {
+			return call.call();
+		}
+		Flight flight = new Flight();
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight == null) {
+			executed.incrementAndGet();
+			try {
+				T ret = call.call();
+				flight.result = ret;
+				return ret;
+			} catch (Exception e) {
+				flight.failure = e;
+				throw e;
+			} catch (Error e) {
+				flight.failure = e;
+				throw e;
+			} finally {
+				flights.remove(key, flight);
+				flight.done.countDown();
+			}
+		}
+
+		if (!inFlight.done.await(timeout, TimeUnit.MILLISECONDS)) {
+			timeouts.incrementAndGet();
+			executed.incrementAndGet();
+			return call.call();
+		}
+		coalesced.incrementAndGet();
+		if (inFlight.failure instanceof Exception) {
+			throw (Exception) inFlight.failure;
+		} else if (inFlight.failure instanceof Error) {
+			throw (Error) inFlight.failure;
+		}
+		return (T) inFlight.result;
+	}
+
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	public void reset() {
+		executed.set(0);
+		coalesced.set(0);
+		timeouts.set(0);
+	}
+
+	/**
+	 * A call in flight, the result and the failure are published by the latch
+	 */
+	private static final class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		Object result;
+		Throwable failure;
+	}
+}
@@ -0,0 +1,32 @@
+package org.liveSense.service.gwt;
+
+/**
+ * JMX view of the {@link CallCoalescer}.
+ */
+public interface CallCoalescerMBean {
+
+	/**
+	 * @return the calls executed by the coalescer (the calls others waited for and the calls without a match)
+	 */
+	long getExecutedCount();
+
+	/**
+	 * @return the calls which got the response of an identical call in flight
+	 */
+	long getCoalescedCount();
+
+	/**
+	 * @return the waiting calls which timed out and were executed on their own
+	 */
+	long getTimeoutCount();
+
+	/**
+	 * @return the calls in flight
+	 */
+	int getInFlight();
+
+	/**
+	 * Resets the counters.
+	 */
+	void reset();
+}
@@ -0,0 +1,31 @@
+package org.liveSense.service.gwt;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Shared bounded executor of the parallel parts of the GWT servlet calls.
+ * <p/>
+ * The executor never rejects a task: when it is saturated (or not active), the task is run
+ * by the submitting thread, so callers can always wait for the futures they got.
+ */
+public interface CallExecutor {
+
+	/**
+	 * Submits the task.
+	 *
+	 * @param task the task
+	 * @return the future of the task, already done if the task was run by the current thread
+	 */
+	<T> Future<T> submit(Callable<T> task);
+
+	/**
+	 * @return the number of tasks running at the moment
+	 */
+	int getActiveCount();
+
+	/**
+	 * @return the number of tasks run by the submitting threads because the executor was saturated
+	 */
+	long getCallerRunsCount();
+}
@@ -0,0 +1,153 @@
+package org.liveSense.service.gwt;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Call executor. Runs the tasks on virtual threads if the JVM supports them (and they are not
+ * disabled), on a fixed size thread pool otherwise. The number of running tasks is bounded by
+ * the max threads in both cases, tasks above the bound (and the queue of the thread pool) are
+ * run by the submitting thread.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT call executor", description="Executor of the parallel parts of the GWT servlet calls")
+@Service(CallExecutor.class)
+public class CallExecutorImpl implements CallExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(CallExecutorImpl.class);
+
+	public static final int DEFAULT_MAX_THREADS = 32;
+	@Property(intValue=DEFAULT_MAX_THREADS, label="Max threads", description="Maximum number of tasks running at the same time")
+	public static final String PROP_MAX_THREADS = "call.executor.max.threads";
+
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	@Property(intValue=DEFAULT_QUEUE_SIZE, label="Queue size", description="Maximum number of tasks waiting for a thread of the thread pool")
+	public static final String PROP_QUEUE_SIZE = "call.executor.queue.size";
+
+	public static final boolean DEFAULT_VIRTUAL_THREADS = true;
+	@Property(boolValue=DEFAULT_VIRTUAL_THREADS, label="Virtual threads", description="Runs the tasks on virtual threads if the JVM supports them")
+	public static final String PROP_VIRTUAL_THREADS = "call.executor.virtual.threads";
+
+	private final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	private final AtomicLong callerRunsCount = new AtomicLong();
+
+	private volatile ExecutorService executor;
+
+	/**
+	 * Bounds the running tasks of the virtual thread executor, <code>null</code> for the thread pool
+	 */
+	private volatile Semaphore permits;
+
+	@Activate
+	@Modified
+	protected void activate(Map<String, Object> properties) {
+		int maxThreads = Math.max(1, ComponentSupport.toInt(properties.get(PROP_MAX_THREADS), DEFAULT_MAX_THREADS));
+		int queueSize = Math.max(1, ComponentSupport.toInt(properties.get(PROP_QUEUE_SIZE), DEFAULT_QUEUE_SIZE));
+		Object value = properties.get(PROP_VIRTUAL_THREADS);
+		boolean virtualThreads = value != null ? Boolean.valueOf(value.toString()) : DEFAULT_VIRTUAL_THREADS;
+
+		ExecutorService newExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+		if (newExecutor != null) {
+			permits = new Semaphore(maxThreads);
+		} else {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "GWT call executor " + threadNumber.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.AbortPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			permits = null;
+			newExecutor = pool;
+		}
+		ExecutorService old = executor;
+		executor = newExecutor;
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		ExecutorService old = executor;
+		executor = null;
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	public <T> Future<T> submit(Callable<T> task) {
+		final FutureTask<T> future = new FutureTask<T>(task);
+		ExecutorService current = executor;
+		final Semaphore currentPermits = permits;
+		if (current != null && (currentPermits == null || currentPermits.tryAcquire())) {
+			try {
+				current.execute(new Runnable() {
+					public void run() {
+						activeCount.incrementAndGet();
+						try {
+							future.run();
+						} finally {
+							activeCount.decrementAndGet();
+							if (currentPermits != null) currentPermits.release();
+						}
+					}
+				});
+				return future;
+			} catch (RejectedExecutionException e) {
+				// Saturated or shut down meanwhile
+				if (currentPermits != null) currentPermits.release();
+			}
+		}
+		callerRunsCount.incrementAndGet();
+		future.run();
+		return future;
+	}
+
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	public long getCallerRunsCount() {
+		return callerRunsCount.get();
+	}
+
+	/**
+	 * @return the virtual thread per task executor of the JVM or <code>null</code> if it is not supported
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			// Virtual threads are not supported
+		} catch (Exception e) {
+			log.info("Virtual threads are not available, using thread pool: "+e);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,52 @@
+package org.liveSense.service.gwt;
+
+import java.util.Map;
+
+/**
+ * Latency histograms of the GWT servlet calls, by operation and call phase.
+ * <p/>
+ * The operation of an RPC call is the service interface and method, the operation of a
+ * RequestFactory call is the servlet, the service methods invoked by it are recorded separately
+ * in the {@link #PHASE_INVOKE} phase.
+ */
+public interface CallMetrics {
+
+	String PHASE_AUTHENTICATION = "authentication";
+
+	String PHASE_CALL_INIT = "callInit";
+
+	String PHASE_DECODE = "decode";
+
+	String PHASE_INVOKE = "invoke";
+
+	String PHASE_ENCODE = "encode";
+
+	/**
+	 * The decode, invoke and encode phases of a RequestFactory call together
+	 */
+	String PHASE_PROCESS = "process";
+
+	String PHASE_CALL_FINAL = "callFinal";
+
+	String PHASE_TOTAL = "total";
+
+	/**
+	 * Records the latency of a phase of the call. It has to be cheap, it is called on the
+	 * request threads.
+	 *
+	 * @param operation the operation
+	 * @param phase the phase
+	 * @param nanos the latency in nanoseconds
+	 */
+	void record(String operation, String phase, long nanos);
+
+	/**
+	 * @return the snapshots of the histograms by operation and phase
+	 */
+	Map<String, Map<String, LatencyHistogram.Snapshot>> getSnapshots();
+
+	/**
+	 * Drops all the recorded latencies.
+	 */
+	void reset();
+}
@@ -0,0 +1,116 @@
+package org.liveSense.service.gwt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Service;
+
+/**
+ * Call metrics service, also registered in the platform MBean server as
+ * <code>org.liveSense.service.gwt:type=CallMetrics</code>.
+ * <p/>
+ * The histograms are keyed by the names of the operations, so the classes of redeployed
+ * bundles are not kept.
+ */
+@Component(immediate=true, label="liveSense GWT call metrics", description="Latency histograms of the GWT servlet calls")
+@Service(CallMetrics.class)
+public class CallMetricsImpl implements CallMetrics, CallMetricsMBean {
+
+	public static final String OBJECT_NAME = "org.liveSense.service.gwt:type=CallMetrics";
+
+	private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> histograms = new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+	private ObjectName objectName;
+
+	@Activate
+	protected void activate() {
+		objectName = ComponentSupport.registerMBean(this, CallMetricsMBean.class, OBJECT_NAME, "call metrics");
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		ComponentSupport.unregisterMBean(objectName, "call metrics");
+		objectName = null;
+		histograms.clear();
+	}
+
+	public void record(String operation, String phase, long nanos) {
+		if (operation == null || phase == null) return;
+		ConcurrentMap<String, LatencyHistogram> phases = histograms.get(operation);
+		if (phases == null) {
+			ConcurrentMap<String, LatencyHistogram> newPhases = new ConcurrentHashMap<String, LatencyHistogram>();
+			phases = histograms.putIfAbsent(operation, newPhases);
+			if (phases == null) phases = newPhases;
+		}
+		LatencyHistogram histogram = phases.get(phase);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = phases.putIfAbsent(phase, newHistogram);
+			if (histogram == null) histogram = newHistogram;
+		}
+		histogram.record(nanos);
+	}
+
+	public Map<String, Map<String, LatencyHistogram.Snapshot>> getSnapshots() {
+		Map<String, Map<String, LatencyHistogram.Snapshot>> ret = new TreeMap<String, Map<String, LatencyHistogram.Snapshot>>();
+		for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> operation : histograms.entrySet()) {
+			Map<String, LatencyHistogram.Snapshot> phases = new TreeMap<String, LatencyHistogram.Snapshot>();
+			for (Map.Entry<String, LatencyHistogram> phase : operation.getValue().entrySet()) {
+				phases.put(phase.getKey(), phase.getValue().getSnapshot());
+			}
+			ret.put(operation.getKey(), phases);
+		}
+		return ret;
+	}
+
+	public void reset() {
+		for (ConcurrentMap<String, LatencyHistogram> phases : histograms.values()) {
+			for (LatencyHistogram histogram : phases.values()) {
+				histogram.reset();
+			}
+		}
+	}
+
+	public String[] getOperations() {
+		return new TreeMap<String, Object>(histograms).keySet().toArray(new String[0]);
+	}
+
+	public String[] getSummary() {
+		List<String> ret = new ArrayList<String>();
+		for (Map.Entry<String, Map<String, LatencyHistogram.Snapshot>> operation : getSnapshots().entrySet()) {
+			for (Map.Entry<String, LatencyHistogram.Snapshot> phase : operation.getValue().entrySet()) {
+				ret.add(operation.getKey() + " " + phase.getKey() + ": " + phase.getValue());
+			}
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public long getCount(String operation, String phase) {
+		LatencyHistogram histogram = getHistogram(operation, phase);
+		return histogram != null ? histogram.getSnapshot().getCount() : 0;
+	}
+
+	public long getPercentile(String operation, String phase, double percentile) {
+		LatencyHistogram histogram = getHistogram(operation, phase);
+		return histogram != null ? histogram.getSnapshot().getPercentile(percentile) : 0;
+	}
+
+	public long getMax(String operation, String phase) {
+		LatencyHistogram histogram = getHistogram(operation, phase);
+		return histogram != null ? histogram.getSnapshot().getMax() : 0;
+	}
+
+	private LatencyHistogram getHistogram(String operation, String phase) {
+		Map<String, LatencyHistogram> phases = operation != null ? histograms.get(operation) : null;
+		return phases != null && phase != null ? phases.get(phase) : null;
+	}
+}
@@ -0,0 +1,25 @@
+package org.liveSense.service.gwt;
+
+/**
+ * JMX view of the {@link CallMetrics}. The latencies are in microseconds.
+ */
+public interface CallMetricsMBean {
+
+	/**
+	 * @return the operations with recorded latencies
+	 */
+	String[] getOperations();
+
+	/**
+	 * @return one line by operation and phase with the count, mean, percentiles and maximum
+	 */
+	String[] getSummary();
+
+	long getCount(String operation, String phase);
+
+	long getPercentile(String operation, String phase, double percentile);
+
+	long getMax(String operation, String phase);
+
+	void reset();
+}
@@ -0,0 +1,105 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+/**
+ * View of the user session shared by a call (see {@link ServiceCallContext#getUserSession(javax.jcr.Repository)}).
+ * Code written for sessions it owns logs out the session it got, every caller gets its own
+ * view and the shared session stays open for the rest of the call: <code>logout()</code> of
+ * the view only marks the view logged out (<code>isLive()</code> returns <code>false</code>
+ * afterwards), it does not touch the session, so the unsaved changes of the other callers are
+ * kept. The session itself is logged out (or returned to the pool) at the end of the call.
+ * <p/>
+ * The view implements all the interfaces of the session (e.g. <code>JackrabbitSession</code>).
+ */
+final class CallSessionView implements InvocationHandler {
+
+	/**
+	 * Constructors of the proxy classes by session class
+	 */
+	private static final ClassValue<Constructor<?>> VIEW_CONSTRUCTORS = new ClassValue<Constructor<?>>() {
+		@Override
+		protected Constructor<?> computeValue(Class<?> type) {
+			Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+			interfaces.add(Session.class);
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				collectInterfaces(c, interfaces);
+			}
+			Class<?> proxyClass;
+			try {
+				proxyClass = Proxy.getProxyClass(type.getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]));
+			} catch (IllegalArgumentException e) {
+				// Some of the interfaces are not visible from the classloader of the session
+				proxyClass = Proxy.getProxyClass(Session.class.getClassLoader(), Session.class);
+			}
+			try {
+				return proxyClass.getConstructor(InvocationHandler.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final Session session;
+
+	private volatile boolean loggedOut;
+
+	private CallSessionView(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * @param session the shared session
+	 * @return a new view of the session whose logout does not close the session
+	 */
+	static Session create(Session session) {
+		try {
+			return (Session) VIEW_CONSTRUCTORS.get(session.getClass()).newInstance(new CallSessionView(session));
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (InstantiationException e) {
+			throw new IllegalStateException(e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void collectInterfaces(Class<?> c, Set<Class<?>> interfaces) {
+		for (Class<?> i : c.getInterfaces()) {
+			if (interfaces.add(i)) {
+				collectInterfaces(i, interfaces);
+			}
+		}
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getParameterTypes().length == 0) {
+			if (method.getName().equals("logout")) {
+				loggedOut = true;
+				return null;
+			} else if (method.getName().equals("isLive")) {
+				return !loggedOut && session.isLive();
+			}
+		}
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals")) {
+				return proxy == args[0];
+			} else if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+		}
+		try {
+			return method.invoke(session, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.liveSense.service.gwt;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Classloaders registered by the extending OSGi services.
+ * <p/>
+ * The composite classloader of the registered loaders is built once on every registration
+ * (copy on write) and published to the request threads through a volatile field, so the
+ * requests neither allocate a classloader nor iterate the registered loaders.
+ * <p/>
+ * The registry has to be registered as a bundle listener to keep the class index of the
+ * composite classloader up to date.
+ */
+public class ClassLoaderRegistry implements SynchronousBundleListener {
+
+	/**
+	 * Registered classloaders, the map is replaced (never modified) on registration
+	 */
+	private Map<String, ClassLoader> classLoaders = Collections.emptyMap();
+
+	private volatile IndexedCompositeClassLoader compositeClassLoader;
+
+	/**
+	 * Registers a classloader. Registering the same classloader again has no effect.
+	 *
+	 * @param classLoader the classloader
+	 */
+	public synchronized void add(ClassLoader classLoader) {
+		String key = classLoader.toString();
+		if (classLoaders.get(key) == classLoader) return;
+
+		Map<String, ClassLoader> newClassLoaders = new LinkedHashMap<String, ClassLoader>(classLoaders);
+		newClassLoaders.put(key, classLoader);
+
+		classLoaders = Collections.unmodifiableMap(newClassLoaders);
+		compositeClassLoader = new IndexedCompositeClassLoader(newClassLoaders.values());
+	}
+
+	/**
+	 * @return the registered classloaders
+	 */
+	public synchronized Map<String, ClassLoader> getClassLoaders() {
+		return classLoaders;
+	}
+
+	/**
+	 * @return the composite classloader of the registered classloaders or <code>null</code>
+	 * if there is no registered classloader (not in OSGi context)
+	 */
+	public ClassLoader getCompositeClassLoader() {
+		return compositeClassLoader;
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		IndexedCompositeClassLoader classLoader = compositeClassLoader;
+		if (classLoader != null) {
+			classLoader.bundleChanged(event);
+		}
+	}
+}
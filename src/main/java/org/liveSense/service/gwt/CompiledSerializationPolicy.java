@@ -0,0 +1,384 @@
+package org.liveSense.service.gwt;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyLoader;
+import com.google.gwt.user.server.rpc.impl.TypeNameObfuscator;
+
+/**
+ * Serialization policy compiled from a <code>.gwt.rpc</code> file into a compact binary form.
+ * <p/>
+ * Unlike google's StandardSerializationPolicy the types are kept by name, so no class is loaded
+ * when the policy is compiled or loaded: classes are only checked by name when they are
+ * (de)serialized. The policy does not refer to any class, so it stays valid when the bundles
+ * of the classes are refreshed.
+ * <p/>
+ * The policy is shared by the servlets, so a class passes only if it is the class its name is
+ * resolved to by the context classloader of the calling thread (the classloader of the
+ * servlet), a class of the same name from another classloader is rejected. The classloaders a
+ * class was checked against are remembered with the class.
+ * <p/>
+ * The binary form is written to the local disk and is memory mapped when it is loaded, so a
+ * restarted node does not have to parse the text policy files again.
+ */
+public class CompiledSerializationPolicy extends SerializationPolicy implements TypeNameObfuscator {
+
+	private static final int MAGIC = 0x47525043;
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName(SerializationPolicyLoader.SERIALIZATION_POLICY_FILE_ENCODING);
+
+	private static final String FORMAT_ERROR_MESSAGE = "Expected: className, "
+			+ "[true | false], [true | false], [true | false], [true | false], typeId, signature";
+
+	private static final int FIELD_SERIALIZABLE = 1;
+	private static final int INSTANTIABLE_SERIALIZABLE = 2;
+	private static final int FIELD_DESERIALIZABLE = 4;
+	private static final int INSTANTIABLE_DESERIALIZABLE = 8;
+
+	private final String policyFilePath;
+	private final long checksum;
+	private final Map<String, Integer> flags;
+	private final Map<String, String> typeIds;
+	private final Map<String, String> typeIdsToClassNames;
+	private final Map<String, Set<String>> clientFields;
+
+	private final ClassValue<ResolvedFlags> resolvedFlags = new ClassValue<ResolvedFlags>() {
+		@Override
+		protected ResolvedFlags computeValue(Class<?> type) {
+			Integer typeFlags = flags.get(type.getName());
+			return new ResolvedFlags(typeFlags != null ? typeFlags : 0);
+		}
+	};
+
+	private CompiledSerializationPolicy(String policyFilePath, long checksum, Map<String, Integer> flags, Map<String, String> typeIds, Map<String, Set<String>> clientFields) {
+		this.policyFilePath = policyFilePath;
+		this.checksum = checksum;
+		this.flags = flags;
+		this.typeIds = typeIds;
+		this.clientFields = clientFields;
+		this.typeIdsToClassNames = new HashMap<String, String>(typeIds.size() * 2);
+		for (Map.Entry<String, String> entry : typeIds.entrySet()) {
+			typeIdsToClassNames.put(entry.getValue(), entry.getKey());
+		}
+	}
+
+	/**
+	 * @return the path of the source policy file
+	 */
+	public String getPolicyFilePath() {
+		return policyFilePath;
+	}
+
+	/**
+	 * @return the CRC32 checksum of the source policy file
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public static long checksum(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return crc.getValue();
+	}
+
+	/**
+	 * Compiles a text policy file. The format is the one read by
+	 * <code>SerializationPolicyLoader.loadFromStream()</code>.
+	 *
+	 * @param policyFilePath the path of the policy file
+	 * @param content the content of the policy file
+	 * @return the compiled policy
+	 * @throws IOException
+	 * @throws ParseException if the policy file is malformed
+	 */
+	public static CompiledSerializationPolicy compile(String policyFilePath, byte[] content) throws IOException, ParseException {
+		Map<String, Integer> flags = new HashMap<String, Integer>();
+		Map<String, String> typeIds = new HashMap<String, String>();
+		Map<String, Set<String>> clientFields = new HashMap<String, Set<String>>();
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), UTF8));
+		String line = br.readLine();
+		int lineNum = 1;
+		while (line != null) {
+			line = line.trim();
+			if (line.length() > 0) {
+				String[] components = line.split(",");
+
+				if (components[0].equals(SerializationPolicyLoader.CLIENT_FIELDS_KEYWORD)) {
+					Set<String> fieldNames = new HashSet<String>();
+					for (int i = 2; i < components.length; i++) {
+						fieldNames.add(components[i]);
+					}
+					clientFields.put(components[1].trim(), fieldNames);
+				} else {
+					if (components.length != 2 && components.length != 7) {
+						throw new ParseException(FORMAT_ERROR_MESSAGE, lineNum);
+					}
+					for (int i = 0; i < components.length; i++) {
+						components[i] = components[i].trim();
+						if (components[i].length() == 0) {
+							throw new ParseException(FORMAT_ERROR_MESSAGE, lineNum);
+						}
+					}
+
+					String binaryTypeName = components[0];
+					int typeFlags;
+					String typeId;
+					if (components.length == 2) {
+						typeFlags = FIELD_SERIALIZABLE | FIELD_DESERIALIZABLE;
+						if (Boolean.valueOf(components[1])) {
+							typeFlags |= INSTANTIABLE_SERIALIZABLE | INSTANTIABLE_DESERIALIZABLE;
+						}
+						typeId = binaryTypeName;
+					} else {
+						typeFlags = (Boolean.valueOf(components[1]) ? FIELD_SERIALIZABLE : 0)
+								| (Boolean.valueOf(components[2]) ? INSTANTIABLE_SERIALIZABLE : 0)
+								| (Boolean.valueOf(components[3]) ? FIELD_DESERIALIZABLE : 0)
+								| (Boolean.valueOf(components[4]) ? INSTANTIABLE_DESERIALIZABLE : 0);
+						typeId = components[5];
+
+						if ((typeFlags & (FIELD_SERIALIZABLE | FIELD_DESERIALIZABLE)) == 0
+								&& !TypeNameObfuscator.SERVICE_INTERFACE_ID.equals(typeId)) {
+							throw new ParseException("Type " + binaryTypeName
+									+ " is neither field serializable, field deserializable "
+									+ "nor the service interface", lineNum);
+						}
+					}
+					flags.put(binaryTypeName, typeFlags);
+					typeIds.put(binaryTypeName, typeId);
+				}
+			}
+			line = br.readLine();
+			lineNum++;
+		}
+		return new CompiledSerializationPolicy(policyFilePath, checksum(content), flags, typeIds, clientFields);
+	}
+
+	/**
+	 * Writes the binary form of the policy.
+	 *
+	 * @param file the file to write
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, policyFilePath);
+		out.writeLong(checksum);
+		out.writeInt(flags.size());
+		for (Map.Entry<String, Integer> entry : flags.entrySet()) {
+			String typeId = typeIds.get(entry.getKey());
+			writeString(out, entry.getKey());
+			out.writeByte(entry.getValue());
+			// Type ids equal to the class name are not repeated
+			writeString(out, typeId.equals(entry.getKey()) ? "" : typeId);
+		}
+		out.writeInt(clientFields.size());
+		for (Map.Entry<String, Set<String>> entry : clientFields.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (String field : entry.getValue()) {
+				writeString(out, field);
+			}
+		}
+		out.flush();
+
+		// Written to a temporary file first, so a concurrent reader never sees a partial file
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not write " + file);
+			}
+		}
+	}
+
+	/**
+	 * Reads the binary form of a policy.
+	 *
+	 * @param file the file to read
+	 * @return the policy
+	 * @throws IOException if the file could not be read or it is not a compiled policy
+	 */
+	public static CompiledSerializationPolicy read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("Not a compiled serialization policy: " + file);
+			}
+			String policyFilePath = readString(in);
+			long checksum = in.getLong();
+			int count = in.getInt();
+			Map<String, Integer> flags = new HashMap<String, Integer>(count * 2);
+			Map<String, String> typeIds = new HashMap<String, String>(count * 2);
+			for (int i = 0; i < count; i++) {
+				String name = readString(in);
+				flags.put(name, (int) in.get());
+				String typeId = readString(in);
+				typeIds.put(name, typeId.length() == 0 ? name : typeId);
+			}
+			count = in.getInt();
+			Map<String, Set<String>> clientFields = new HashMap<String, Set<String>>(count * 2);
+			for (int i = 0; i < count; i++) {
+				String name = readString(in);
+				int fieldCount = in.getInt();
+				Set<String> fields = new HashSet<String>(fieldCount * 2);
+				for (int j = 0; j < fieldCount; j++) {
+					fields.add(readString(in));
+				}
+				clientFields.put(name, fields);
+			}
+			return new CompiledSerializationPolicy(policyFilePath, checksum, flags, typeIds, clientFields);
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt compiled serialization policy: " + file, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private boolean hasFlag(Class<?> clazz, int flag) {
+		ResolvedFlags typeFlags = resolvedFlags.get(clazz);
+		return (typeFlags.flags & flag) != 0 && typeFlags.isResolvedBy(clazz, Thread.currentThread().getContextClassLoader());
+	}
+
+	@Override
+	public boolean shouldDeserializeFields(Class<?> clazz) {
+		return clazz.isPrimitive() || hasFlag(clazz, FIELD_DESERIALIZABLE);
+	}
+
+	@Override
+	public boolean shouldSerializeFields(Class<?> clazz) {
+		return clazz.isPrimitive() || hasFlag(clazz, FIELD_SERIALIZABLE);
+	}
+
+	@Override
+	public void validateDeserialize(Class<?> clazz) throws SerializationException {
+		if (!clazz.isPrimitive() && !(hasFlag(clazz, FIELD_DESERIALIZABLE) && hasFlag(clazz, INSTANTIABLE_DESERIALIZABLE))) {
+			throw new SerializationException(
+					"Type '"
+							+ clazz.getName()
+							+ "' was not included in the set of types which can be deserialized by this SerializationPolicy or its Class object could not be loaded. For security purposes, this type will not be deserialized.");
+		}
+	}
+
+	@Override
+	public void validateSerialize(Class<?> clazz) throws SerializationException {
+		if (!clazz.isPrimitive() && !(hasFlag(clazz, FIELD_SERIALIZABLE) && hasFlag(clazz, INSTANTIABLE_SERIALIZABLE))) {
+			throw new SerializationException(
+					"Type '"
+							+ clazz.getName()
+							+ "' was not included in the set of types which can be serialized by this SerializationPolicy or its Class object could not be loaded. For security purposes, this type will not be serialized.");
+		}
+	}
+
+	@Override
+	public Set<String> getClientFieldNamesForEnhancedClass(Class<?> clazz) {
+		Set<String> fieldNames = clientFields.get(clazz.getName());
+		return fieldNames == null ? null : Collections.unmodifiableSet(fieldNames);
+	}
+
+	public String getClassNameForTypeId(String id) throws SerializationException {
+		return typeIdsToClassNames.get(id);
+	}
+
+	public String getTypeIdForClass(Class<?> clazz) throws SerializationException {
+		return typeIds.get(clazz.getName());
+	}
+
+	/**
+	 * Flags of a class and the classloaders which resolve the name of the class to the class
+	 */
+	private static final class ResolvedFlags {
+		@SuppressWarnings("unchecked")
+		private static final WeakReference<ClassLoader>[] NO_LOADERS = new WeakReference[0];
+
+		final int flags;
+		private volatile WeakReference<ClassLoader>[] loaders = NO_LOADERS;
+
+		ResolvedFlags(int flags) {
+			this.flags = flags;
+		}
+
+		/**
+		 * @param clazz the class of the flags
+		 * @param loader the classloader resolving the class names, if it is <code>null</code> the
+		 * class is checked only by name
+		 * @return <code>true</code> if the classloader resolves the name of the class to the class
+		 */
+		boolean isResolvedBy(Class<?> clazz, ClassLoader loader) {
+			if (loader == null || loader == clazz.getClassLoader()) return true;
+			for (WeakReference<ClassLoader> ref : loaders) {
+				if (ref.get() == loader) return true;
+			}
+			try {
+				if (Class.forName(clazz.getName(), false, loader) != clazz) return false;
+			} catch (ClassNotFoundException e) {
+				return false;
+			} catch (LinkageError e) {
+				return false;
+			}
+			synchronized (this) {
+				WeakReference<ClassLoader>[] current = loaders;
+				int count = 0;
+				for (WeakReference<ClassLoader> ref : current) {
+					if (ref.get() != null) count++;
+				}
+				@SuppressWarnings("unchecked")
+				WeakReference<ClassLoader>[] updated = new WeakReference[count + 1];
+				count = 0;
+				for (WeakReference<ClassLoader> ref : current) {
+					if (ref.get() != null) updated[count++] = ref;
+				}
+				updated[count] = new WeakReference<ClassLoader>(loader);
+				loaders = updated;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package org.liveSense.service.gwt;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers of the components of the package: parsing of the configuration properties and
+ * registration of the MBeans in the platform MBean server.
+ */
+final class ComponentSupport {
+
+	private static final Logger log = LoggerFactory.getLogger(ComponentSupport.class);
+
+	private ComponentSupport() {
+	}
+
+	/**
+	 * @param value the value of a configuration property (a number or a string)
+	 * @param defaultValue the value used if the property is missing or invalid
+	 * @return the value of the property as an int
+	 */
+	static int toInt(Object value, int defaultValue) {
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		} else if (value != null) {
+			try {
+				return Integer.parseInt(value.toString().trim());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid number: "+value);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @param value the value of a configuration property (a number or a string)
+	 * @param defaultValue the value used if the property is missing or invalid
+	 * @return the value of the property as a double
+	 */
+	static double toDouble(Object value, double defaultValue) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		} else if (value != null) {
+			try {
+				return Double.parseDouble(value.toString().trim());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid number: "+value);
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Registers the MBean in the platform MBean server. The MBean registered earlier with the
+	 * same name (e.g. by a previous activation whose deactivation failed) is replaced.
+	 *
+	 * @param implementation the implementation of the MBean interface
+	 * @param mbeanInterface the MBean interface
+	 * @param objectName the name of the MBean
+	 * @param description the description of the MBean in the log messages
+	 * @return the name of the registered MBean, <code>null</code> if it could not be registered
+	 */
+	static <T> ObjectName registerMBean(T implementation, Class<T> mbeanInterface, String objectName, String description) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(objectName);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new StandardMBean(implementation, mbeanInterface), name);
+			return name;
+		} catch (JMException e) {
+			log.warn("Could not register "+description+" MBean", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Unregisters the MBean from the platform MBean server.
+	 *
+	 * @param name the name returned by {@link #registerMBean(Object, Class, String, String)}, nothing is done if it is <code>null</code>
+	 * @param description the description of the MBean in the log messages
+	 */
+	static void unregisterMBean(ObjectName name, String description) {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			log.warn("Could not unregister "+description+" MBean", e);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.liveSense.service.gwt;
+
+import java.util.Map;
+
+/**
+ * Adaptive limits of the concurrent calls, by service (see {@link AimdLimit}). The limit of a
+ * service is lowered when its calls get slow and raised while they are fast, calls above the
+ * limit are rejected at once instead of queueing up behind the slow ones.
+ * <p/>
+ * The services are the service interfaces of the RPC calls and the domain service classes of
+ * the RequestFactory invocations.
+ */
+public interface ConcurrencyLimiter {
+
+	/**
+	 * Permit of a call, it has to be released when the call is done.
+	 */
+	interface Permit {
+
+		/**
+		 * Releases the permit, the latency of the call is measured from the acquisition.
+		 */
+		void release();
+	}
+
+	/**
+	 * @param service the name of the service
+	 * @return the permit of the call or <code>null</code> if the call has to be rejected
+	 */
+	Permit tryAcquire(String service);
+
+	/**
+	 * @return the suggested delay of the retry of the rejected calls in milliseconds
+	 */
+	long getRetryAfter();
+
+	/**
+	 * @return the snapshots of the limits by service
+	 */
+	Map<String, AimdLimit.Snapshot> getSnapshots();
+}
@@ -0,0 +1,198 @@
+package org.liveSense.service.gwt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concurrency limiter service, also registered in the platform MBean server as
+ * <code>org.liveSense.service.gwt:type=ConcurrencyLimiter</code>.
+ * <p/>
+ * The limits are keyed by the names of the services, so the classes of redeployed bundles are
+ * not kept. Changing the configuration drops the limits, they start again from the initial
+ * limit.
+ * <p/>
+ * The limiter is disabled by default, then every call gets a permit.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT concurrency limiter", description="Adaptive limits of the concurrent GWT service calls")
+@Service(ConcurrencyLimiter.class)
+public class ConcurrencyLimiterImpl implements ConcurrencyLimiter, ConcurrencyLimiterMBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimiterImpl.class);
+
+	public static final String OBJECT_NAME = "org.liveSense.service.gwt:type=ConcurrencyLimiter";
+
+	public static final boolean DEFAULT_ENABLED = false;
+	@Property(boolValue=DEFAULT_ENABLED, label="Enabled", description="Limits the concurrent calls of the services")
+	public static final String PROP_ENABLED = "concurrency.limiter.enabled";
+
+	public static final int DEFAULT_INITIAL_LIMIT = 32;
+	@Property(intValue=DEFAULT_INITIAL_LIMIT, label="Initial limit", description="Concurrent calls of a service allowed at the beginning")
+	public static final String PROP_INITIAL_LIMIT = "concurrency.limiter.initial.limit";
+
+	public static final int DEFAULT_MIN_LIMIT = 4;
+	@Property(intValue=DEFAULT_MIN_LIMIT, label="Minimum limit", description="The limit of a service is never lowered below this")
+	public static final String PROP_MIN_LIMIT = "concurrency.limiter.min.limit";
+
+	public static final int DEFAULT_MAX_LIMIT = 256;
+	@Property(intValue=DEFAULT_MAX_LIMIT, label="Maximum limit", description="The limit of a service is never raised above this")
+	public static final String PROP_MAX_LIMIT = "concurrency.limiter.max.limit";
+
+	public static final String DEFAULT_BACKOFF_RATIO = "0.9";
+	@Property(value=DEFAULT_BACKOFF_RATIO, label="Backoff ratio", description="The limit is multiplied by this after a slow call")
+	public static final String PROP_BACKOFF_RATIO = "concurrency.limiter.backoff.ratio";
+
+	public static final String DEFAULT_LATENCY_TOLERANCE = "2.0";
+	@Property(value=DEFAULT_LATENCY_TOLERANCE, label="Latency tolerance", description="The limit is lowered when the calls of a service get slower than this multiple of its baseline latency")
+	public static final String PROP_LATENCY_TOLERANCE = "concurrency.limiter.latency.tolerance";
+
+	public static final int DEFAULT_RETRY_AFTER = 1000;
+	@Property(intValue=DEFAULT_RETRY_AFTER, label="Retry after", description="Suggested delay of the retry of the rejected calls in milliseconds")
+	public static final String PROP_RETRY_AFTER = "concurrency.limiter.retry.after";
+
+	/**
+	 * Permit of the calls while the limiter is disabled
+	 */
+	private static final Permit UNLIMITED = new Permit() {
+		public void release() {
+		}
+	};
+
+	private final ConcurrentMap<String, AimdLimit> limits = new ConcurrentHashMap<String, AimdLimit>();
+
+	private volatile boolean enabled = DEFAULT_ENABLED;
+
+	private volatile int initialLimit = DEFAULT_INITIAL_LIMIT;
+
+	private volatile int minLimit = DEFAULT_MIN_LIMIT;
+
+	private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+
+	private volatile double backoffRatio = Double.parseDouble(DEFAULT_BACKOFF_RATIO);
+
+	private volatile double tolerance = Double.parseDouble(DEFAULT_LATENCY_TOLERANCE);
+
+	private volatile long retryAfter = DEFAULT_RETRY_AFTER;
+
+	private ObjectName objectName;
+
+	@Activate
+	protected void activate(Map<String, Object> properties) {
+		modified(properties);
+		objectName = ComponentSupport.registerMBean(this, ConcurrencyLimiterMBean.class, OBJECT_NAME, "concurrency limiter");
+	}
+
+	@Modified
+	protected void modified(Map<String, Object> properties) {
+		Object enabledValue = properties.get(PROP_ENABLED);
+		enabled = enabledValue != null ? Boolean.valueOf(enabledValue.toString()) : DEFAULT_ENABLED;
+		initialLimit = ComponentSupport.toInt(properties.get(PROP_INITIAL_LIMIT), DEFAULT_INITIAL_LIMIT);
+		minLimit = ComponentSupport.toInt(properties.get(PROP_MIN_LIMIT), DEFAULT_MIN_LIMIT);
+		maxLimit = ComponentSupport.toInt(properties.get(PROP_MAX_LIMIT), DEFAULT_MAX_LIMIT);
+		double ratio = ComponentSupport.toDouble(properties.get(PROP_BACKOFF_RATIO), Double.parseDouble(DEFAULT_BACKOFF_RATIO));
+		if (ratio <= 0 || ratio >= 1) {
+			log.warn("Backoff ratio has to be between 0 and 1: "+ratio);
+			ratio = Double.parseDouble(DEFAULT_BACKOFF_RATIO);
+		}
+		backoffRatio = ratio;
+		double latencyTolerance = ComponentSupport.toDouble(properties.get(PROP_LATENCY_TOLERANCE), Double.parseDouble(DEFAULT_LATENCY_TOLERANCE));
+		if (latencyTolerance <= 1) {
+			log.warn("Latency tolerance has to be above 1: "+latencyTolerance);
+			latencyTolerance = Double.parseDouble(DEFAULT_LATENCY_TOLERANCE);
+		}
+		tolerance = latencyTolerance;
+		retryAfter = ComponentSupport.toInt(properties.get(PROP_RETRY_AFTER), DEFAULT_RETRY_AFTER);
+		limits.clear();
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		ComponentSupport.unregisterMBean(objectName, "concurrency limiter");
+		objectName = null;
+		limits.clear();
+	}
+
+	public Permit tryAcquire(String service) {
+		if (!enabled || service == null) return UNLIMITED;
+		AimdLimit limit = limits.get(service);
+		if (limit == null) {
+			AimdLimit newLimit = new AimdLimit(initialLimit, minLimit, maxLimit, backoffRatio, tolerance);
+			limit = limits.putIfAbsent(service, newLimit);
+			if (limit == null) limit = newLimit;
+		}
+		int inFlight = limit.tryAcquire();
+		return inFlight < 0 ? null : new LimitPermit(limit, inFlight);
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	public Map<String, AimdLimit.Snapshot> getSnapshots() {
+		Map<String, AimdLimit.Snapshot> ret = new TreeMap<String, AimdLimit.Snapshot>();
+		for (Map.Entry<String, AimdLimit> entry : limits.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().getSnapshot());
+		}
+		return ret;
+	}
+
+	public String[] getServices() {
+		return new TreeMap<String, Object>(limits).keySet().toArray(new String[0]);
+	}
+
+	public String[] getSummary() {
+		List<String> ret = new ArrayList<String>();
+		for (Map.Entry<String, AimdLimit.Snapshot> entry : getSnapshots().entrySet()) {
+			ret.add(entry.getKey() + ": " + entry.getValue());
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public int getLimit(String service) {
+		AimdLimit limit = service != null ? limits.get(service) : null;
+		return limit != null ? limit.getSnapshot().getLimit() : initialLimit;
+	}
+
+	public int getInFlight(String service) {
+		AimdLimit limit = service != null ? limits.get(service) : null;
+		return limit != null ? limit.getSnapshot().getInFlight() : 0;
+	}
+
+	public long getRejectedCount(String service) {
+		AimdLimit limit = service != null ? limits.get(service) : null;
+		return limit != null ? limit.getSnapshot().getRejected() : 0;
+	}
+
+	public void reset() {
+		limits.clear();
+	}
+
+	private static final class LimitPermit implements Permit {
+		private final AimdLimit limit;
+		private final int inFlight;
+		private final long start = System.nanoTime();
+
+		LimitPermit(AimdLimit limit, int inFlight) {
+			this.limit = limit;
+			this.inFlight = inFlight;
+		}
+
+		public void release() {
+			limit.release(start, System.nanoTime() - start, inFlight);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.liveSense.service.gwt;
+
+/**
+ * JMX view of the {@link ConcurrencyLimiter}.
+ */
+public interface ConcurrencyLimiterMBean {
+
+	/**
+	 * @return the services with a limit
+	 */
+	String[] getServices();
+
+	/**
+	 * @return one line by service with the limit, the calls in flight, the accepted and the rejected calls
+	 */
+	String[] getSummary();
+
+	int getLimit(String service);
+
+	int getInFlight(String service);
+
+	long getRejectedCount(String service);
+
+	/**
+	 * Drops the limits, they start again from the initial limit.
+	 */
+	void reset();
+}
@@ -0,0 +1,191 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Conditional response of a read-only call. The entity tag of the response is a 64 bit FNV-1a
+ * hash of the encoded response, or of the call and the version token of the service if the
+ * service supplies one (then the service method is not even invoked when the client has the
+ * current response). If the entity tag matches the <code>If-None-Match</code> header of the
+ * request, the response is <code>304 Not Modified</code> without a body.
+ * <p/>
+ * The hash is not cryptographic, it only has to tell the responses of the same call apart.
+ */
+public final class ConditionalResponse {
+
+	public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+	public static final String ETAG_HEADER = "ETag";
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final String ifNoneMatch;
+
+	private String etag;
+
+	private boolean notModified;
+
+	/**
+	 * @param ifNoneMatch the <code>If-None-Match</code> header of the request, can be <code>null</code>
+	 */
+	public ConditionalResponse(String ifNoneMatch) {
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	/**
+	 * @param parts the encoded response, or the parts of the call and the version token
+	 * @return the strong entity tag of the parts (with the quotes)
+	 */
+	public static String etag(String... parts) {
+		long hash = FNV_OFFSET_BASIS;
+		for (String part : parts) {
+			String value = String.valueOf(part);
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+				hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+			}
+			// Separator, so the parts "ab","c" and "a","bc" differ
+			hash = (hash ^ 0xffff) * FNV_PRIME;
+		}
+		StringBuilder ret = new StringBuilder(18);
+		ret.append('"');
+		String hex = Long.toHexString(hash);
+		for (int i = hex.length(); i < 16; i++) {
+			ret.append('0');
+		}
+		return ret.append(hex).append('"').toString();
+	}
+
+	/**
+	 * Sets the entity tag of the response, the response is not modified if it matches the
+	 * <code>If-None-Match</code> header.
+	 *
+	 * @param etag the entity tag
+	 */
+	public void setETag(String etag) {
+		this.etag = etag;
+		this.notModified = matches(ifNoneMatch, etag);
+	}
+
+	/**
+	 * @return the entity tag of the response or <code>null</code> if the response has none
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return true if the client has the current response
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	/**
+	 * @param ifNoneMatch the <code>If-None-Match</code> header, a list of entity tags or <code>*</code>
+	 * @param etag the entity tag of the response
+	 * @return true if one of the entity tags (weakly) matches the entity tag of the response
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null) return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.equals("*") || tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Response of a request with an <code>If-None-Match</code> header, which can be turned into a
+	 * <code>304 Not Modified</code> response after the call when the response is written by
+	 * code which can not be changed (<code>RemoteServiceServlet.processPost()</code>). After
+	 * {@link #notModified(String)} the status, the headers and the body written are dropped.
+	 */
+	static final class NotModifiedResponse extends HttpServletResponseWrapper {
+
+		private boolean notModified;
+
+		NotModifiedResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		/**
+		 * Sends the <code>304 Not Modified</code> status.
+		 *
+		 * @param etag the entity tag of the response
+		 */
+		void notModified(String etag) {
+			HttpServletResponse response = (HttpServletResponse) getResponse();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			response.setHeader(ETAG_HEADER, etag);
+			notModified = true;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			if (!notModified) super.setStatus(sc);
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			if (!notModified) super.setContentLength(len);
+		}
+
+		@Override
+		public void setContentType(String type) {
+			if (!notModified) super.setContentType(type);
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			if (!notModified) super.setHeader(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			if (!notModified) super.addHeader(name, value);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (!notModified) return super.getOutputStream();
+			return new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			};
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (!notModified) return super.getWriter();
+			return new PrintWriter(new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+				}
+
+				@Override
+				public void flush() {
+				}
+
+				@Override
+				public void close() {
+				}
+			});
+		}
+	}
+}
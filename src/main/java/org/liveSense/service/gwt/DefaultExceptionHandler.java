@@ -8,13 +8,29 @@ import com.google.web.bindery.requestfactory.shared.ServerFailure;
 
 public class DefaultExceptionHandler implements ExceptionHandler {
 	Logger log = LoggerFactory.getLogger(DefaultExceptionHandler.class);
+
+	/**
+	 * Failures are logged rate-limited by exception type
+	 */
+	private final FailureLogger failureLog = new FailureLogger(log);
 	/**
 	 * 
 	 */
 	private GWTRequestFactoryServlet requestFactoryServlet;
 	
 	public ServerFailure createServerFailure(Throwable throwable) {
-		log.error("Faliure: ", throwable);
+		logFailure(throwable);
+		return toServerFailure(throwable);
+	}
+
+	/**
+	 * Creates the failure sent to the client without logging it, for the callers logging the
+	 * failure themselves.
+	 *
+	 * @param throwable the failure
+	 * @return the failure sent to the client
+	 */
+	public ServerFailure toServerFailure(Throwable throwable) {
 		ServerFailure failure = null;
 		try {
 			failure = this.requestFactoryServlet.failure(throwable);
@@ -24,6 +40,15 @@ public class DefaultExceptionHandler implements ExceptionHandler {
 		return failure;
 	}
 
+	/**
+	 * Logs the failure, unless too many failures of its type were logged recently.
+	 *
+	 * @param throwable the failure
+	 */
+	public void logFailure(Throwable throwable) {
+		failureLog.error("Failure: ", throwable);
+	}
+
 	/**
 	 * @return the requestFactoryServlet
 	 */
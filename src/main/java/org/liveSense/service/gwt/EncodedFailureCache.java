@@ -0,0 +1,74 @@
+package org.liveSense.service.gwt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.liveSense.service.gwt.exceptions.AccessDeniedException;
+import org.liveSense.service.gwt.exceptions.InternalException;
+import org.liveSense.service.gwt.exceptions.ServiceUnavailableException;
+
+/**
+ * Cache of the encoded failure responses of the stackless {@link AccessDeniedException}s,
+ * {@link InternalException}s and {@link ServiceUnavailableException}s. Such an exception without
+ * cause is fully described by its type and message (and retry delay), so its encoded form can be
+ * reused. Other failures are never cached.
+ * <p/>
+ * The cache is cleared when it grows above its maximum size.
+ */
+public class EncodedFailureCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private final ConcurrentMap<String, String> encoded = new ConcurrentHashMap<String, String>();
+
+	private final int maxSize;
+
+	public EncodedFailureCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public EncodedFailureCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param th the failure
+	 * @return the encoded failure or <code>null</code> if it is not cached
+	 */
+	public String get(Throwable th) {
+		String key = key(th);
+		return key != null ? encoded.get(key) : null;
+	}
+
+	/**
+	 * Caches the encoded failure if the failure can be cached.
+	 *
+	 * @param th the failure
+	 * @param value the encoded failure
+	 */
+	public void put(Throwable th, String value) {
+		String key = key(th);
+		if (key == null || value == null) return;
+		if (encoded.size() >= maxSize) {
+			encoded.clear();
+		}
+		encoded.put(key, value);
+	}
+
+	public void clear() {
+		encoded.clear();
+	}
+
+	private static String key(Throwable th) {
+		if (th == null || th.getCause() != null
+				|| (th.getClass() != AccessDeniedException.class && th.getClass() != InternalException.class
+						&& th.getClass() != ServiceUnavailableException.class)
+				|| th.getStackTrace().length != 0) {
+			return null;
+		}
+		if (th instanceof ServiceUnavailableException) {
+			return th.getClass().getName() + '\n' + th.getMessage() + '\n' + ((ServiceUnavailableException) th).getRetryAfter();
+		}
+		return th.getClass().getName() + '\n' + th.getMessage();
+	}
+}
@@ -0,0 +1,120 @@
+package org.liveSense.service.gwt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Rate-limited error logger. Every exception type can be logged a limited number of times in an
+ * interval, the further failures of the type are only counted. The number of suppressed failures
+ * is logged with the first failure of the type in a later interval.
+ * <p/>
+ * Exceptions without stack trace are logged with their message only.
+ */
+public class FailureLogger {
+
+	public static final int DEFAULT_MAX_PER_INTERVAL = 10;
+
+	public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final Logger logger;
+
+	private final int maxPerInterval;
+
+	private final long intervalMillis;
+
+	private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	public FailureLogger(Logger logger) {
+		this(logger, DEFAULT_MAX_PER_INTERVAL, DEFAULT_INTERVAL_MILLIS);
+	}
+
+	public FailureLogger(Logger logger, int maxPerInterval, long intervalMillis) {
+		this.logger = logger;
+		this.maxPerInterval = maxPerInterval;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Counts the failure and tells whether it can be logged.
+	 *
+	 * @param th the failure
+	 * @return <code>false</code> if the failure has to be suppressed
+	 */
+	public boolean isLoggable(Throwable th) {
+		if (!logger.isErrorEnabled()) return false;
+		Window window = getWindow(th);
+		long now = System.currentTimeMillis();
+		long start = window.start.get();
+		if (now - start >= intervalMillis && window.start.compareAndSet(start, now)) {
+			long suppressed = window.suppressed.getAndSet(0);
+			window.logged.set(0);
+			if (suppressed > 0) {
+				logger.error(suppressed + " failures of type " + th.getClass().getName() + " were not logged in the last "
+						+ TimeUnit.MILLISECONDS.toSeconds(now - start) + " seconds");
+			}
+		}
+		if (window.logged.incrementAndGet() <= maxPerInterval) {
+			return true;
+		}
+		window.suppressed.incrementAndGet();
+		window.totalSuppressed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Logs the failure if it is not suppressed.
+	 *
+	 * @param message the message
+	 * @param th the failure
+	 */
+	public void error(String message, Throwable th) {
+		if (isLoggable(th)) {
+			if (th.getStackTrace().length == 0) {
+				logger.error(message + " " + th.getClass().getName() + ": " + th.getMessage());
+			} else {
+				logger.error(message, th);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of suppressed failures by exception type since the logger was created
+	 */
+	public Map<String, Long> getSuppressedCounts() {
+		Map<String, Long> ret = new HashMap<String, Long>();
+		for (Map.Entry<String, Window> entry : windows.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().totalSuppressed.get());
+		}
+		return ret;
+	}
+
+	private Window getWindow(Throwable th) {
+		// Keyed by name, so the classes of redeployed bundles are not kept
+		String type = th.getClass().getName();
+		Window window = windows.get(type);
+		if (window == null) {
+			Window newWindow = new Window(System.currentTimeMillis());
+			window = windows.putIfAbsent(type, newWindow);
+			if (window == null) window = newWindow;
+		}
+		return window;
+	}
+
+	private static final class Window {
+		final AtomicLong start;
+		final AtomicInteger logged = new AtomicInteger();
+		final AtomicLong suppressed = new AtomicLong();
+		final AtomicLong totalSuppressed = new AtomicLong();
+
+		Window(long start) {
+			this.start = new AtomicLong(start);
+		}
+	}
+}
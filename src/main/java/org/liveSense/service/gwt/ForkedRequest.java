@@ -0,0 +1,153 @@
+package org.liveSense.service.gwt;
+
+import java.io.BufferedReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Request of a forked part of a call (see {@link ServiceCallContext#fork()}). The parts of a
+ * call may run in several threads at the same time, but the request of the container is not
+ * thread-safe, so every part gets its own view of it:
+ * <ul>
+ * <li>the attributes are a snapshot taken when the part is forked, the attributes set by the
+ * part are seen only by the part,</li>
+ * <li>the parameters, cookies, locales and the session (which the container may parse or create
+ * at the first use) are read under the lock of the request,</li>
+ * <li>the body is read by the call, it is not available.</li>
+ * </ul>
+ */
+final class ForkedRequest extends HttpServletRequestWrapper {
+
+	private final HttpServletRequest request;
+
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	/**
+	 * Has to be created by the thread owning the request.
+	 *
+	 * @param request the request of the call
+	 */
+	ForkedRequest(HttpServletRequest request) {
+		super(request);
+		this.request = request;
+		for (Enumeration<?> names = request.getAttributeNames(); names.hasMoreElements();) {
+			String name = (String) names.nextElement();
+			attributes.put(name, request.getAttribute(name));
+		}
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	@Override
+	public void setAttribute(String name, Object o) {
+		if (o == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, o);
+		}
+	}
+
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	@Override
+	public String getParameter(String name) {
+		synchronized (request) {
+			return request.getParameter(name);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Map getParameterMap() {
+		synchronized (request) {
+			return request.getParameterMap();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Enumeration getParameterNames() {
+		synchronized (request) {
+			return request.getParameterNames();
+		}
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		synchronized (request) {
+			return request.getParameterValues(name);
+		}
+	}
+
+	@Override
+	public Cookie[] getCookies() {
+		synchronized (request) {
+			return request.getCookies();
+		}
+	}
+
+	@Override
+	public Locale getLocale() {
+		synchronized (request) {
+			return request.getLocale();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Enumeration getLocales() {
+		synchronized (request) {
+			return request.getLocales();
+		}
+	}
+
+	@Override
+	public HttpSession getSession() {
+		synchronized (request) {
+			return request.getSession();
+		}
+	}
+
+	@Override
+	public HttpSession getSession(boolean create) {
+		synchronized (request) {
+			return request.getSession(create);
+		}
+	}
+
+	@Override
+	public ServletInputStream getInputStream() {
+		throw new IllegalStateException("The body of the request is read by the call");
+	}
+
+	@Override
+	public BufferedReader getReader() {
+		throw new IllegalStateException("The body of the request is read by the call");
+	}
+
+	@Override
+	public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+		throw new IllegalStateException("The body of the request is read by the call");
+	}
+}
@@ -0,0 +1,138 @@
+package org.liveSense.service.gwt;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response of a forked part of a call (see {@link ServiceCallContext#fork()}). The parts of a
+ * call may run in several threads at the same time and the response is written by the call
+ * when all of them are done, so the parts can read the response but can not change it: the
+ * status, the headers, the cookies and the body are set by the request thread only (the
+ * changes throw {@link IllegalStateException}).
+ */
+final class ForkedResponse extends HttpServletResponseWrapper {
+
+	ForkedResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	private static IllegalStateException readOnly() {
+		return new IllegalStateException("The response is shared by the parts of the call, it can not be changed by them");
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		throw readOnly();
+	}
+
+	@Override
+	public void sendError(int sc, String msg) {
+		throw readOnly();
+	}
+
+	@Override
+	public void sendError(int sc) {
+		throw readOnly();
+	}
+
+	@Override
+	public void sendRedirect(String location) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setDateHeader(String name, long date) {
+		throw readOnly();
+	}
+
+	@Override
+	public void addDateHeader(String name, long date) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		throw readOnly();
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		throw readOnly();
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		throw readOnly();
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void setStatus(int sc, String sm) {
+		throw readOnly();
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		throw readOnly();
+	}
+
+	@Override
+	public PrintWriter getWriter() {
+		throw readOnly();
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setContentType(String type) {
+		throw readOnly();
+	}
+
+	@Override
+	public void setBufferSize(int size) {
+		throw readOnly();
+	}
+
+	@Override
+	public void flushBuffer() {
+		throw readOnly();
+	}
+
+	@Override
+	public void resetBuffer() {
+		throw readOnly();
+	}
+
+	@Override
+	public void reset() {
+		throw readOnly();
+	}
+
+	@Override
+	public void setLocale(Locale loc) {
+		throw readOnly();
+	}
+}
@@ -22,22 +22,31 @@ package org.liveSense.service.gwt;
  */
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.jcr.LoginException;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
@@ -51,21 +60,28 @@ import org.apache.sling.auth.core.spi.AuthenticationInfo;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.liveSense.core.BundleProxyClassLoader;
-import org.liveSense.core.CompositeClassLoader;
 import org.liveSense.core.Configurator;
 import org.liveSense.misc.jcrWrapper.RequestWrapper;
 import org.liveSense.service.gwt.exceptions.AccessDeniedException;
 import org.liveSense.service.gwt.exceptions.InternalException;
+import org.liveSense.service.gwt.exceptions.ServiceUnavailableException;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gwt.user.client.rpc.IncompatibleRemoteServiceException;
+import com.google.gwt.user.client.rpc.RpcTokenException;
 import com.google.gwt.user.client.rpc.SerializationException;
 import com.google.gwt.user.server.rpc.RPC;
+import com.google.gwt.user.server.rpc.RPCRequest;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import com.google.gwt.user.server.rpc.SerializationPolicy;
 import com.google.gwt.user.server.rpc.SerializationPolicyLoader;
+import com.google.gwt.user.server.rpc.SerializationPolicyProvider;
 
 /**
  * Extending google's remote service servlet to enable resolving of resources through
@@ -120,6 +136,23 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
 
 	private final Logger payloadLogger = LoggerFactory.getLogger("GWTRPC");
 
+	private final PayloadLogger payloadLog = new PayloadLogger(payloadLogger);
+
+	/**
+	 * Rate-limited logging of the failures of the calls
+	 */
+	private final FailureLogger failureLog = new FailureLogger(payloadLogger);
+
+	/**
+	 * Rate-limited logging of the exceptions thrown by throwRPCException()
+	 */
+	private final FailureLogger errorLog = new FailureLogger(log);
+
+	/**
+	 * Encoded responses of the stackless failures
+	 */
+	private final EncodedFailureCache encodedFailures = new EncodedFailureCache();
+
 	/**
      * The <code>org.osgi.framework.Bundle</code> to load resources from.
      */
@@ -141,13 +174,101 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
 	
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	ResourceResolverFactory resourceResolverFactory;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	SerializationPolicyRegistry serializationPolicyRegistry;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	JcrSessionPool sessionPool;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	AuthenticationCache authenticationCache;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallMetrics callMetrics;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallExecutor callExecutor;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	ConcurrencyLimiter concurrencyLimiter;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	ResponseCache responseCache;
+
+	/**
+	 * {@link CachedResponse} annotations of the service methods, {@link #NOT_CACHED} if the method is not cached
+	 */
+	private final ConcurrentMap<Method, Object> cachedResponses = new ConcurrentHashMap<Method, Object>();
+
+	private static final Object NOT_CACHED = new Object();
+
+	/**
+	 * Whether the service methods are read-only
+	 */
+	private final ConcurrentMap<Method, Boolean> readOnlyMethods = new ConcurrentHashMap<Method, Boolean>();
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallCoalescer callCoalescer;
+
+	/**
+	 * Prefix of the successful RPC responses
+	 */
+	private static final String RPC_SUCCESS = "//OK";
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	/**
+	 * Asynchronous execution of the calls, set by the init parameters at the first call
+	 */
+	private volatile AsyncExecution asyncExecution;
+
+	/**
+	 * Serialization policy provider used to decode the requests. If the shared registry is
+	 * available the policy is looked up in the registry every time instead of google's
+	 * per servlet cache, which is never invalidated.
+	 */
+	private final SerializationPolicyProvider serializationPolicyProvider = new SerializationPolicyProvider() {
+		public SerializationPolicy getSerializationPolicy(String moduleBaseURL, String strongName) {
+			if (serializationPolicyRegistry == null) {
+				return GWTRPCServlet.this.getSerializationPolicy(moduleBaseURL, strongName);
+			}
+			SerializationPolicy serializationPolicy = doGetSerializationPolicy(getThreadLocalRequest(), moduleBaseURL, strongName);
+			if (serializationPolicy == null) {
+				log.warn("Failed to get the SerializationPolicy '" + strongName + "' for module '" + moduleBaseURL
+						+ "'; a legacy, 1.3.3 compatible, serialization policy will be used.  You may experience SerializationExceptions as a result.");
+				serializationPolicy = RPC.getDefaultSerializationPolicy();
+			}
+			return serializationPolicy;
+		}
+	};
 	
+	/**
+	 * @param name the symbolic name of the bundle
+	 * @return the proxy classloader of the current revision of the bundle, it is shared by the calls
+	 * when the bundle index is registered
+	 */
 	public ClassLoader getClassLoaderByBundle(String name) throws ClassNotFoundException {
-		return new BundleProxyClassLoader(getBundleByName(name));
+		BundleIndex index = getBundleIndex();
+		Bundle bundle = getBundleByName(name);
+		return index != null ? index.getClassLoader(bundle) : new BundleProxyClassLoader(bundle);
 	}
 
 	
-	private final HashMap<String, ClassLoader> classLoaders = new HashMap<String, ClassLoader>();
+	private final ClassLoaderRegistry classLoaders = new ClassLoaderRegistry();
+
+	private final MessageFormatCache messageFormats = new MessageFormatCache();
+
+	private final List<BundleListener> bundleListeners = new ArrayList<BundleListener>();
+
+	/**
+	 * Bundles by symbolic name and their classloaders
+	 */
+	private final BundleIndex bundleIndex = new BundleIndex();
+
+	private volatile boolean bundleIndexRegistered;
 
 
     /**
@@ -158,9 +279,105 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
      */
     protected void setClassLoader(ClassLoader classLoader) {
         //this.classLoader = classLoader;
-    	classLoaders.put(classLoader.toString(), classLoader);
+    	classLoaders.add(classLoader);
+    	// Keeps the class index of the composite classloader up to date
+    	addBundleListener(classLoaders);
+    	// Resource bundles of updated bundles are reloaded
+    	addBundleListener(messageFormats);
     }
 
+	/**
+	 * Registers a bundle listener which is removed when the servlet is destroyed.
+	 * 
+	 * @param listener the listener
+	 */
+	protected void addBundleListener(BundleListener listener) {
+		BundleContext context = getBundleContext();
+		if (context == null) {
+			log.warn("No bundle context, bundle listener is not registered: "+listener);
+			return;
+		}
+		synchronized (bundleListeners) {
+			if (bundleListeners.contains(listener)) return;
+			bundleListeners.add(listener);
+		}
+		try {
+			context.addBundleListener(listener);
+		} catch (IllegalStateException e) {
+			synchronized (bundleListeners) {
+				bundleListeners.remove(listener);
+			}
+			log.warn("Bundle is stopped, bundle listener is not registered: "+listener);
+		}
+	}
+
+	private static BundleContext getBundleContext() {
+		Bundle bundle = FrameworkUtil.getBundle(GWTRPCServlet.class);
+		return bundle != null ? bundle.getBundleContext() : null;
+	}
+
+	protected void removeBundleListener(BundleListener listener) {
+		synchronized (bundleListeners) {
+			if (!bundleListeners.remove(listener)) return;
+		}
+		BundleContext context = getBundleContext();
+		if (context != null) {
+			try {
+				context.removeBundleListener(listener);
+			} catch (IllegalStateException e) {
+				// Bundle is already stopped, the listener is removed by the framework
+			}
+		}
+	}
+
+	/**
+	 * Processes the POST requests asynchronously on the call executor if the asynchronous
+	 * execution is enabled (see {@link AsyncExecution}). The response of a conditional request
+	 * is wrapped, so it can be turned into a <code>304 Not Modified</code> response (see
+	 * {@link ConditionalResponse}).
+	 */
+	@Override
+	protected void service(final HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if ("POST".equals(request.getMethod()) && getAsyncExecution().dispatch(request, response, callExecutor, new AsyncExecution.Task() {
+			public void run(HttpServletResponse asyncResponse) throws Exception {
+				serviceConditional(request, asyncResponse);
+			}
+		})) {
+			return;
+		}
+		serviceConditional(request, response);
+	}
+
+	private void serviceConditional(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if ("POST".equals(request.getMethod()) && request.getHeader(ConditionalResponse.IF_NONE_MATCH_HEADER) != null) {
+			response = new ConditionalResponse.NotModifiedResponse(response);
+		}
+		super.service(request, response);
+	}
+
+	private AsyncExecution getAsyncExecution() {
+		AsyncExecution ret = asyncExecution;
+		if (ret == null) {
+			ret = AsyncExecution.fromConfig(getServletConfig());
+			asyncExecution = ret;
+		}
+		return ret;
+	}
+
+	@Override
+	public void destroy() {
+		List<BundleListener> listeners;
+		synchronized (bundleListeners) {
+			listeners = new ArrayList<BundleListener>(bundleListeners);
+		}
+		for (BundleListener listener : listeners) {
+			removeBundleListener(listener);
+		}
+		bundleIndexRegistered = false;
+		bundleIndex.clear();
+		super.destroy();
+	}
+
     /**
      * The <code>ClassLoader</code> to use when GWT reflects on RPC classes.
      */
@@ -176,16 +393,24 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
     private String processException(String phase, String payload, Throwable e) {
         String ret = "EX";
         try {
-        	ret = RPC.encodeResponseForFailure(null, e);
-            payloadLogger.error(">>> ("+phase+") User: "+getUser()+" Payload: "+payload+" Return: "+ret, e);
+        	ret = encodedFailures.get(e);
+        	if (ret == null) {
+        		ret = RPC.encodeResponseForFailure(null, e);
+        		encodedFailures.put(e, ret);
+        	}
+        	if (failureLog.isLoggable(e)) {
+        		payloadLog.error(">>>", phase, getUser(), "Payload", payload, "Return", ret, e);
+        	}
         } catch (Exception ex) {
         	try {
 				ret = RPC.encodeResponseForFailure(null, new SerializationException("Serialization error", ex));
 			} catch (SerializationException e2) {
 			}
-            payloadLogger.error(">>> ("+phase+") User: "+getUser()+" Payload: "+payload+" Return: "+ret, ex);
+        	if (failureLog.isLoggable(ex)) {
+        		payloadLog.error(">>>", phase, getUser(), "Payload", payload, "Return", ret, ex);
+        	}
         }
-        payloadLogger.info("<<< ("+phase+") User: "+getUser()+" Return: "+ret);
+        payloadLog.info("<<<", phase, getUser(), null, "Return", ret);
         return ret;
     }
     
@@ -223,65 +448,451 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
         
         
         ClassLoader oldClassLoader = null;
-        boolean osgiContext =false;
 
         // Custom classloader - OSGi context
-        if (!classLoaders.isEmpty()) {
-        	osgiContext = true;
-        }
-        	
+        ClassLoader compositeClassLoader = classLoaders.getCompositeClassLoader();
+        boolean osgiContext = compositeClassLoader != null;
 
         if (osgiContext) {
         	oldClassLoader = Thread.currentThread().getContextClassLoader();
 
-            // Generating composite classloader from map
-            CompositeClassLoader cClassLoader = new CompositeClassLoader();
-            for (String key : classLoaders.keySet()) {
-                cClassLoader.add(classLoaders.get(key));            	
-            }
-            
             // Set contextClassLoader
-            Thread.currentThread().setContextClassLoader(cClassLoader);
+            Thread.currentThread().setContextClassLoader(compositeClassLoader);
         }    
+        CallMetrics metrics = callMetrics;
+        ServiceCallContext context = new ServiceCallContext(getThreadLocalRequest(), getThreadLocalResponse(), config.getDefaultLocale());
+        context.setCallMetrics(metrics);
+        context.setConcurrencyLimiter(concurrencyLimiter);
+        ServiceCallContext previousContext = ServiceCallContext.attach(context);
+        long start = System.nanoTime();
+        long authenticationNanos = -1;
+        long callInitNanos = -1;
+        long callFinalNanos = -1;
         try {
             // Authenticating - OSGi context
             if (osgiContext) {
-            	auth.handleSecurity(getThreadLocalRequest(), getThreadLocalResponse());
+            	handleSecurity();
+            	authenticationNanos = System.nanoTime() - start;
             }
             
             // CallInit
+            long phaseStart = System.nanoTime();
             try {
             	callInit();
-                payloadLogger.info (">>> (callInit) User: "+getUser()+" Payload: "+payload);
+                payloadLog.info(">>>", "callInit", getUser(), null, "Payload", payload);
             } catch (Throwable e) {
             	return processException("callInit", payload, e);
+            } finally {
+            	callInitNanos = System.nanoTime() - phaseStart;
             }
             
             // ProcessCall
             result = "";
+            HttpServletResponse response = getThreadLocalResponse();
+            ConditionalResponse conditional = null;
             try {
-            	result = super.processCall(payload);
-                payloadLogger.info(">>> (processCall) User: "+getUser()+" Result: "+result);
+            	if (RpcBatch.isBatch(payload)) {
+            		result = processBatch(payload);
+            	} else {
+            		conditional = new ConditionalResponse(response instanceof ConditionalResponse.NotModifiedResponse
+            				? getThreadLocalRequest().getHeader(ConditionalResponse.IF_NONE_MATCH_HEADER) : null);
+            		result = invokeAndEncodeResponse(payload, conditional);
+            	}
             } catch (Throwable e) {
+            	conditional = null;
                 result = processException("processCall", payload, e);
 			} finally {
 				// callFinal
+				phaseStart = System.nanoTime();
 				try {
 					callFinal();
 				} catch (Throwable e) {
 					return processException("callFinal", payload, e);
 				} finally {
+					callFinalNanos = System.nanoTime() - phaseStart;
 				}
 			}
+            // The response is not modified only if the whole call succeeded
+            if (conditional != null) {
+            	if (conditional.isNotModified()) {
+            		((ConditionalResponse.NotModifiedResponse) response).notModified(conditional.getETag());
+            	} else if (conditional.getETag() != null) {
+            		response.setHeader(ConditionalResponse.ETAG_HEADER, conditional.getETag());
+            	}
+            }
             return result;						
 
         } finally {
+        	releaseUserSessions();
+        	if (metrics != null) {
+        		// The operation is set when the request is decoded
+        		String operation = context.getOperation() != null ? context.getOperation() : getClass().getName();
+        		metrics.record(operation, CallMetrics.PHASE_TOTAL, System.nanoTime() - start);
+        		if (authenticationNanos >= 0) metrics.record(operation, CallMetrics.PHASE_AUTHENTICATION, authenticationNanos);
+        		if (callInitNanos >= 0) metrics.record(operation, CallMetrics.PHASE_CALL_INIT, callInitNanos);
+        		if (callFinalNanos >= 0) metrics.record(operation, CallMetrics.PHASE_CALL_FINAL, callFinalNanos);
+        	}
+        	ServiceCallContext.detach(previousContext);
             if (osgiContext) {
             	Thread.currentThread().setContextClassLoader(oldClassLoader);
             }
         }
     }
 
+    /**
+     * Decodes the payload, invokes the service method and encodes the result like
+     * <code>RemoteServiceServlet.processCall()</code>, but the serialization policy is
+     * resolved through the shared serialization policy registry if it is available.
+     * <p/>
+     * The invocation and the encoding are done like <code>RPC.invokeAndEncodeResponse()</code>,
+     * but separately, so the latencies of the decode, invoke and encode phases can be recorded.
+     * The invocation is limited by the concurrency limiter of the service interface if it is available.
+     * The responses of the methods annotated with {@link CachedResponse} are looked up in the response
+     * cache first, the identical concurrent calls of the read-only methods share one invocation if the
+     * call coalescer is available.
+     * <p/>
+     * The successful responses of the read-only methods get an entity tag. If the servlet supplies a
+     * version token of the call (see {@link #getResponseVersion(Method, Object[])}), the entity tag
+     * is computed from the call and the token, and the method is not invoked if the client has the
+     * current response.
+     *
+     * @param payload the UTF-8 request payload
+     * @param conditional the conditional response of the call, <code>null</code> if the call has no entity tag (calls of a batch)
+     * @return the encoded response, it is not sent if the response is not modified
+     * @throws SerializationException if we cannot serialize the response
+     * @throws ServiceUnavailableException if the call is rejected by the concurrency limiter
+     */
+    private String invokeAndEncodeResponse(final String payload, ConditionalResponse conditional) throws SerializationException, ServiceUnavailableException {
+    	checkPermutationStrongName();
+
+    	ServiceCallContext context = ServiceCallContext.current();
+    	final CallMetrics metrics = context != null ? context.getCallMetrics() : null;
+    	try {
+    		long start = System.nanoTime();
+    		final RPCRequest rpcRequest = RPC.decodeRequest(payload, getClass(), serializationPolicyProvider);
+    		onAfterRequestDeserialized(rpcRequest);
+    		Method method = rpcRequest.getMethod();
+    		final long decoded = System.nanoTime();
+    		String operation = null;
+    		if (metrics != null) {
+    			operation = method.getDeclaringClass().getName() + "." + method.getName();
+    			context.setOperation(operation);
+    		}
+    		boolean versioned = false;
+    		if (conditional != null && isReadOnly(method)) {
+    			String version = getResponseVersion(method, rpcRequest.getParameters());
+    			if (version != null) {
+    				versioned = true;
+    				conditional.setETag(ConditionalResponse.etag(method.getDeclaringClass().getName(), method.getName(),
+    						String.valueOf(getUser()), String.valueOf(getLocale()), payload, version));
+    				if (conditional.isNotModified()) {
+    					if (metrics != null) metrics.record(operation, CallMetrics.PHASE_DECODE, decoded - start);
+    					payloadLog.info(">>>", "processCall", getUser(), method.getName(), "Not modified", conditional.getETag());
+    					return "";
+    				}
+    			}
+    		}
+    		ResponseCache cache = responseCache;
+    		CachedResponse cached = cache != null ? getCachedResponse(method) : null;
+    		String cacheKey = null;
+    		long cacheGeneration = 0;
+    		if (cached != null) {
+    			cacheKey = cache.key(method.getDeclaringClass().getName() + "." + method.getName(),
+    					cached.shared() ? ResponseCache.SHARED_SCOPE : String.valueOf(getUser()), getLocale(), payload);
+    			String cachedResult = cache.get(cacheKey);
+    			if (cachedResult != null) {
+    				if (conditional != null && !versioned && isReadOnly(method)) {
+    					conditional.setETag(ConditionalResponse.etag(cachedResult));
+    				}
+    				if (metrics != null) metrics.record(operation, CallMetrics.PHASE_DECODE, decoded - start);
+    				payloadLog.info(">>>", "processCall", getUser(), method.getName(), "Cached result", cachedResult);
+    				return cachedResult;
+    			}
+    			// Read before the call, so a response computed during an invalidation is not cached
+    			cacheGeneration = cache.getGeneration();
+    		}
+    		if (metrics != null) {
+    			metrics.record(operation, CallMetrics.PHASE_DECODE, decoded - start);
+    		}
+    		String result;
+    		CallCoalescer coalescer = callCoalescer;
+    		if (coalescer != null && isReadOnly(method)) {
+    			final String metricsOperation = operation;
+    			result = coalesce(coalescer, coalescer.key(method.getDeclaringClass().getName() + "." + method.getName(),
+    					String.valueOf(getUser()), getLocale(), payload), new Callable<String>() {
+    				public String call() throws Exception {
+    					return invokeAndEncode(rpcRequest, metrics, metricsOperation, decoded);
+    				}
+    			});
+    		} else {
+    			result = invokeAndEncode(rpcRequest, metrics, operation, decoded);
+    		}
+    		if (cacheKey != null && result.startsWith(RPC_SUCCESS)) {
+    			// Only the successful responses are cached, failures are retried
+    			cache.put(cacheKey, result, cached.ttl() * 1000L, cached.invalidatedBy(), cacheGeneration);
+    		}
+    		if (conditional != null && isReadOnly(method)) {
+    			if (!result.startsWith(RPC_SUCCESS)) {
+    				conditional.setETag(null);
+    			} else if (!versioned) {
+    				conditional.setETag(ConditionalResponse.etag(result));
+    			}
+    		}
+    		// Logged here, where the method is known for the per-method sampling
+    		payloadLog.info(">>>", "processCall", getUser(), rpcRequest.getMethod().getName(), "Result", result);
+    		return result;
+    	} catch (IncompatibleRemoteServiceException ex) {
+    		log("An IncompatibleRemoteServiceException was thrown while processing this call.", ex);
+    		return RPC.encodeResponseForFailure(null, ex);
+    	} catch (RpcTokenException tokenException) {
+    		log("An RpcTokenException was thrown while processing this call.", tokenException);
+    		return RPC.encodeResponseForFailure(null, tokenException);
+    	}
+    }
+
+    /**
+     * Returns the version token of the response of a read-only call, e.g. the modification time or
+     * the revision of the data the method reads. If the service supplies one, the entity tag of the
+     * response is computed from the call and the token without invoking the method.
+     *
+     * @param method the service method
+     * @param parameters the parameters of the call
+     * @return the version token or <code>null</code> if the entity tag is computed from the encoded response
+     */
+    protected String getResponseVersion(Method method, Object[] parameters) {
+    	return null;
+    }
+
+    /**
+     * Invokes the service method of a decoded request and encodes the result.
+     *
+     * @param rpcRequest the decoded request
+     * @param metrics the metrics of the call or <code>null</code>
+     * @param operation the operation of the metrics
+     * @param decoded the end of the decode phase
+     * @return the encoded response
+     */
+    private String invokeAndEncode(RPCRequest rpcRequest, CallMetrics metrics, String operation, long decoded)
+    		throws SerializationException, ServiceUnavailableException {
+    	Method method = rpcRequest.getMethod();
+    	SerializationPolicy policy = rpcRequest.getSerializationPolicy();
+    	long invoked = decoded;
+    	ServiceCallContext context = ServiceCallContext.current();
+    	ConcurrencyLimiter limiter = context != null ? context.getConcurrencyLimiter() : null;
+    	ConcurrencyLimiter.Permit permit = null;
+    	if (limiter != null) {
+    		permit = limiter.tryAcquire(method.getDeclaringClass().getName());
+    		if (permit == null) {
+    			throw new ServiceUnavailableException("Service is overloaded, retry later", limiter.getRetryAfter(), false);
+    		}
+    	}
+    	String result;
+    	try {
+    		Object ret;
+    		try {
+    			ret = method.invoke(this, rpcRequest.getParameters());
+    		} finally {
+    			if (permit != null) permit.release();
+    		}
+    		invoked = System.nanoTime();
+    		result = RPC.encodeResponseForSuccess(method, ret, policy, rpcRequest.getFlags());
+    	} catch (IllegalAccessException e) {
+    		SecurityException securityException = new SecurityException("Blocked attempt to access inaccessible method '"
+    				+ method + "' on target '" + getClass().getName() + "'; this is either misconfiguration or a hack attempt");
+    		securityException.initCause(e);
+    		throw securityException;
+    	} catch (IllegalArgumentException e) {
+    		SecurityException securityException = new SecurityException("Blocked attempt to invoke method '"
+    				+ method + "' on target '" + getClass().getName() + "' with invalid arguments");
+    		securityException.initCause(e);
+    		throw securityException;
+    	} catch (InvocationTargetException e) {
+    		invoked = System.nanoTime();
+    		result = RPC.encodeResponseForFailure(method, e.getCause(), policy, rpcRequest.getFlags());
+    	}
+    	if (metrics != null) {
+    		metrics.record(operation, CallMetrics.PHASE_INVOKE, invoked - decoded);
+    		metrics.record(operation, CallMetrics.PHASE_ENCODE, System.nanoTime() - invoked);
+    	}
+    	return result;
+    }
+
+    /**
+     * Executes the call through the coalescer, the failure of the call (or of the call it waited
+     * for) is rethrown as it is.
+     */
+    private static String coalesce(CallCoalescer coalescer, String key, Callable<String> call)
+    		throws SerializationException, ServiceUnavailableException {
+    	try {
+    		return coalescer.execute(key, call);
+    	} catch (SerializationException e) {
+    		throw e;
+    	} catch (ServiceUnavailableException e) {
+    		throw e;
+    	} catch (RuntimeException e) {
+    		throw e;
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new IllegalStateException("Interrupted while waiting for the identical call", e);
+    	} catch (Exception e) {
+    		throw new IllegalStateException("Call failed", e);
+    	}
+    }
+
+    /**
+     * Looks up the {@link CachedResponse} annotation of the service method in the service interface,
+     * then in the servlet.
+     *
+     * @param method the service method
+     * @return the annotation or <code>null</code> if the response of the method is not cached
+     */
+    private CachedResponse getCachedResponse(Method method) {
+    	Object ret = cachedResponses.get(method);
+    	if (ret == null) {
+    		ret = method.getAnnotation(CachedResponse.class);
+    		if (ret == null) {
+    			Method implementation = getImplementation(method);
+    			ret = implementation != null ? implementation.getAnnotation(CachedResponse.class) : null;
+    		}
+    		if (ret == null) ret = NOT_CACHED;
+    		cachedResponses.put(method, ret);
+    	}
+    	return ret != NOT_CACHED ? (CachedResponse) ret : null;
+    }
+
+    /**
+     * @param method the service method
+     * @return true if the method, its service interface, its implementation in the servlet or the
+     *         servlet is annotated {@link ReadOnly}
+     */
+    private boolean isReadOnly(Method method) {
+    	Boolean ret = readOnlyMethods.get(method);
+    	if (ret == null) {
+    		Method implementation = getImplementation(method);
+    		ret = method.isAnnotationPresent(ReadOnly.class) || method.getDeclaringClass().isAnnotationPresent(ReadOnly.class)
+    				|| (implementation != null && implementation.isAnnotationPresent(ReadOnly.class))
+    				|| getClass().isAnnotationPresent(ReadOnly.class);
+    		readOnlyMethods.put(method, ret);
+    	}
+    	return ret;
+    }
+
+    private Method getImplementation(Method method) {
+    	try {
+    		return getClass().getMethod(method.getName(), method.getParameterTypes());
+    	} catch (NoSuchMethodException e) {
+    		// Not implemented by the servlet, the call fails anyway
+    		return null;
+    	}
+    }
+
+    /**
+     * Processes the calls of a batch request (see {@link RpcBatch}). Authentication, <code>callInit()</code>
+     * and <code>callFinal()</code> are done once for the whole batch by <code>processCall()</code>.
+     * <p/>
+     * The calls of a parallel batch are run on the call executor (if it is available), the first one
+     * by the request thread. Every parallel call has its own forked call context, so its own user session
+     * and its own view of the request and the response: these calls can not change the response
+     * (see {@link ServiceCallContext#fork()}). The calls of a sequential batch are run one after the
+     * other by the request thread in the call context of the request, like a single call. A failing
+     * call is encoded as the failure response of that call only.
+     *
+     * @param payload the batch request
+     * @return the batch response with the responses of the calls in the order of the request
+     */
+    private String processBatch(String payload) {
+    	RpcBatch batch = RpcBatch.decode(payload, maxBatchSize);
+    	ServiceCallContext context = getCallContext();
+    	String operation = getClass().getName() + ".batch";
+    	context.setOperation(operation);
+
+    	CallExecutor executor = callExecutor;
+    	boolean parallel = executor != null && batch.isParallel() && batch.getPayloads().size() > 1;
+    	ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    	List<BatchCall> calls = new ArrayList<BatchCall>(batch.getPayloads().size());
+    	for (String call : batch.getPayloads()) {
+    		calls.add(new BatchCall(call, parallel ? context.fork() : context, classLoader));
+    	}
+
+    	List<String> responses = new ArrayList<String>(calls.size());
+    	if (parallel) {
+    		List<Future<String>> futures = new ArrayList<Future<String>>(calls.size() - 1);
+    		for (int i = 1; i < calls.size(); i++) {
+    			futures.add(executor.submit(calls.get(i)));
+    		}
+    		responses.add(calls.get(0).call());
+    		for (int i = 0; i < futures.size(); i++) {
+    			Future<String> future = futures.get(i);
+    			String call = calls.get(i + 1).payload;
+    			try {
+    				responses.add(future.get());
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    				future.cancel(true);
+    				responses.add(processException("processCall", call, e));
+    			} catch (ExecutionException e) {
+    				// BatchCall encodes its failures, only errors can get here
+    				responses.add(processException("processCall", call, e.getCause()));
+    			}
+    		}
+    	} else {
+    		for (BatchCall call : calls) {
+    			responses.add(call.call());
+    		}
+    		// The calls set their own operations in the call context of the request
+    		context.setOperation(operation);
+    	}
+    	return RpcBatch.encodeResponse(responses);
+    }
+
+    /**
+     * A call of a batch. Runs in the context of the request (context classloader, call context,
+     * its request and response as thread local request and response) in any thread. The user
+     * sessions of a forked call context are released by the call, the sessions of the call context
+     * of the request are released when the whole batch is done.
+     */
+    private final class BatchCall implements Callable<String> {
+    	private final String payload;
+    	private final ServiceCallContext context;
+    	private final ClassLoader classLoader;
+
+    	BatchCall(String payload, ServiceCallContext context, ClassLoader classLoader) {
+    		this.payload = payload;
+    		this.context = context;
+    		this.classLoader = classLoader;
+    	}
+
+    	public String call() {
+    		Thread thread = Thread.currentThread();
+    		ClassLoader oldClassLoader = thread.getContextClassLoader();
+    		HttpServletRequest oldRequest = perThreadRequest.get();
+    		HttpServletResponse oldResponse = perThreadResponse.get();
+    		thread.setContextClassLoader(classLoader);
+    		perThreadRequest.set(context.getRequest());
+    		perThreadResponse.set(context.getResponse());
+    		ServiceCallContext previousContext = ServiceCallContext.attach(context);
+    		try {
+    			return invokeAndEncodeResponse(payload, null);
+    		} catch (Throwable e) {
+    			return processException("processCall", payload, e);
+    		} finally {
+    			if (context.getCall() != context) context.releaseSessions();
+    			ServiceCallContext.detach(previousContext);
+    			restore(perThreadRequest, oldRequest);
+    			restore(perThreadResponse, oldResponse);
+    			thread.setContextClassLoader(oldClassLoader);
+    		}
+    	}
+    }
+
+    private static <T> void restore(ThreadLocal<T> threadLocal, T value) {
+    	if (value == null) {
+    		threadLocal.remove();
+    	} else {
+    		threadLocal.set(value);
+    	}
+    }
+
 	public abstract void callInit() throws Throwable;
 
 	public abstract void callFinal() throws Throwable;
@@ -305,8 +916,89 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
      *         strong name, or <code>null</code> if there is none
      */
     @Override
-    protected SerializationPolicy doGetSerializationPolicy(HttpServletRequest request, String moduleBaseURL, String strongName) {
+    protected SerializationPolicy doGetSerializationPolicy(final HttpServletRequest request, String moduleBaseURL, String strongName) {
     	
+        String serializationPolicyFilePath = getSerializationPolicyFilePath(request, moduleBaseURL, strongName);
+        if (serializationPolicyFilePath == null) {
+        	return null;
+        }
+
+        // Shared registry - the file is opened only if it was not preloaded
+        SerializationPolicyRegistry registry = serializationPolicyRegistry;
+        if (registry != null) {
+        	return registry.getSerializationPolicy(serializationPolicyFilePath, new SerializationPolicyRegistry.Source() {
+				public InputStream openStream(String policyFilePath) throws IOException {
+					return openSerializationPolicy(request, policyFilePath);
+				}
+			});
+        }
+
+        SerializationPolicy serializationPolicy = null;
+
+        // Open the RPC resource file read its contents.
+        InputStream is = openSerializationPolicy(request, serializationPolicyFilePath);
+        try {
+            if (is != null) {
+                try {
+                    //serializationPolicy = SerializationPolicyLoader.loadFromStream(is);
+                	
+                	ArrayList<ClassNotFoundException> errorList = new ArrayList<ClassNotFoundException>();
+                	serializationPolicy = SerializationPolicyLoader.loadFromStream(is, errorList);
+                	
+                	if (errorList != null && errorList.size()>0) {
+                		for (ClassNotFoundException e : errorList) {
+                            log.error(
+                                    "ERROR: Could not find class '" + e.getMessage()
+                                            + "' listed in the serialization policy file '"
+                                            + serializationPolicyFilePath + "'"
+                                            + "; your server's classpath may be misconfigured - "+e.getMessage());
+                		}
+                	}
+                } catch (ParseException e) {
+                    log.error(
+                            "ERROR: Failed to parse the policy file '"
+                                    + serializationPolicyFilePath + "'", e);
+                } catch (IOException e) {
+                    log.error(
+                            "ERROR: Could not read the policy file '"
+                                    + serializationPolicyFilePath + "'", e);
+                } catch (Throwable e) {
+                	if (e instanceof ClassNotFoundException) {
+                		log.info("ERROR: GWT doGetSerializationPolicy: "+e.getMessage()+" Maybe the class is not available for this bundle? (Missing from dynamic import or Import in MANIFEST.MF or there is no bundle that exports)", e);
+                	} else {
+                		log.info("ERROR: GWT doGetSerializationPolicy: "+e.getMessage(), e);                    		
+                	}
+				}
+            } else {
+                String message = "ERROR: The serialization policy file '"
+                        + serializationPolicyFilePath
+                        + "' was not found; did you forget to include it in this deployment?";
+                log.error(message);
+            }
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore this error
+                }
+            }
+        }
+
+        return serializationPolicy;
+    }
+
+    /**
+     * Returns the path of the serialization policy file for given module base URL and strong name.
+     *
+     * @param request       the HTTP request being serviced
+     * @param moduleBaseURL as specified in the incoming payload
+     * @param strongName    a strong name that uniquely identifies a serialization
+     *                      policy file
+     * @return the path of the policy file or <code>null</code> if the module is not in the same
+     *         web application as this servlet
+     */
+    protected String getSerializationPolicyFilePath(HttpServletRequest request, String moduleBaseURL, String strongName) {
         // The request can tell you the path of the web app relative to the
         // container root.
         String contextPath = request.getContextPath();
@@ -321,8 +1013,6 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
             }
         }
 
-        SerializationPolicy serializationPolicy = null;
-
         /*
         * Check that the module path must be in the same web app as the servlet
         * itself. If you need to implement a scheme different than this, override
@@ -335,117 +1025,78 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
                     + contextPath
                     + ".  Your module may not be properly configured or your client and server code maybe out of date.";
             log.info(message);
-        } else {
-            // Strip off the context path from the module base URL. It should be a
-            // strict prefix.
-            String contextRelativePath = rootPath + modulePath.substring(contextPath.length());
+            return null;
+        }
+        // Strip off the context path from the module base URL. It should be a
+        // strict prefix.
+        String contextRelativePath = rootPath + modulePath.substring(contextPath.length());
 
-            String serializationPolicyFilePath = SerializationPolicyLoader.getSerializationPolicyFileName(contextRelativePath
-                    + strongName);
+        return SerializationPolicyLoader.getSerializationPolicyFileName(contextRelativePath
+                + strongName);
+    }
 
-            // Open the RPC resource file read its contents.
-            InputStream is = null;
+    /**
+     * Opens the serialization policy file from the client bundle (if it was set), over the
+     * Sling ResourceResolver or from the servlet context.
+     *
+     * @param request                    the HTTP request being serviced
+     * @param serializationPolicyFilePath the path of the policy file
+     * @return the stream of the policy file or <code>null</code> if it was not found
+     */
+    protected InputStream openSerializationPolicy(HttpServletRequest request, String serializationPolicyFilePath) {
+        InputStream is = null;
 
-            // if the clientBundle was set by the extending class, load the resource from it instead of the servlet context
-            if (clientBundle != null) {
-                try {
-                    is = clientBundle.getResource(serializationPolicyFilePath).openStream();
-                } catch (IOException e) {
-                    //ignore
-                } catch (NullPointerException e) {
-					
-				}
-                // There is no client bundle defined, we try to load the configuration over SLING ResourceResolver
-                if (is == null) {
-                }
-                
-            // We are trying resource resolver in OSGi if clientBundle has not been set
-            } else if (resourceResolverFactory != null) {
-        		ResourceResolver resolver = null;
-        		Session session = null;
-
-            	try {
-            		session = repository.loginAdministrative(null);
-            		
-        			Map<String, Object> authInfo = new HashMap<String, Object>();
-        			authInfo.put(JcrResourceConstants  .AUTHENTICATION_INFO_SESSION,
-        					session);
-        			try {
-        				resolver = resourceResolverFactory
-        						.getResourceResolver(authInfo);
-        			} catch (org.apache.sling.api.resource.LoginException e) {
-        			}
-
-            		if (resolver != null) {
-                		Resource res = resolver.resolve(getThreadLocalRequest(), serializationPolicyFilePath);
-                		if (res != null) 
-                			is = res.adaptTo(InputStream.class);
-                		resolver.close();
-            		}
-            	} catch (Throwable e) {
-            		
-            	} finally {
-            		if (resolver != null && resolver.isLive()) {
-            			resolver.close();
-            		}
-            		if (session != null && session.isLive()) {
-            			session.logout();
-            		}
-            	}
-        	} else {
-                is = getServletContext().getResourceAsStream(
-                        serializationPolicyFilePath);
-            }
+        // if the clientBundle was set by the extending class, load the resource from it instead of the servlet context
+        if (clientBundle != null) {
             try {
-                if (is != null) {
-                    try {
-                        //serializationPolicy = SerializationPolicyLoader.loadFromStream(is);
-                    	
-                    	ArrayList<ClassNotFoundException> errorList = new ArrayList<ClassNotFoundException>();
-                    	serializationPolicy = SerializationPolicyLoader.loadFromStream(is, errorList);
-                    	
-                    	if (errorList != null && errorList.size()>0) {
-                    		for (ClassNotFoundException e : errorList) {
-	                            log.error(
-	                                    "ERROR: Could not find class '" + e.getMessage()
-	                                            + "' listed in the serialization policy file '"
-	                                            + serializationPolicyFilePath + "'"
-	                                            + "; your server's classpath may be misconfigured - "+e.getMessage());
-                    		}
-                    	}
-                    } catch (ParseException e) {
-                        log.error(
-                                "ERROR: Failed to parse the policy file '"
-                                        + serializationPolicyFilePath + "'", e);
-                    } catch (IOException e) {
-                        log.error(
-                                "ERROR: Could not read the policy file '"
-                                        + serializationPolicyFilePath + "'", e);
-                    } catch (Throwable e) {
-                    	if (e instanceof ClassNotFoundException) {
-                    		log.info("ERROR: GWT doGetSerializationPolicy: "+e.getMessage()+" Maybe the class is not available for this bundle? (Missing from dynamic import or Import in MANIFEST.MF or there is no bundle that exports)", e);
-                    	} else {
-                    		log.info("ERROR: GWT doGetSerializationPolicy: "+e.getMessage(), e);                    		
-                    	}
-					}
-                } else {
-                    String message = "ERROR: The serialization policy file '"
-                            + serializationPolicyFilePath
-                            + "' was not found; did you forget to include it in this deployment?";
-                    log.error(message);
-                }
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        // Ignore this error
-                    }
-                }
+                is = clientBundle.getResource(serializationPolicyFilePath).openStream();
+            } catch (IOException e) {
+                //ignore
+            } catch (NullPointerException e) {
+				
+			}
+            // There is no client bundle defined, we try to load the configuration over SLING ResourceResolver
+            if (is == null) {
             }
-        }
+            
+        // We are trying resource resolver in OSGi if clientBundle has not been set
+        } else if (resourceResolverFactory != null) {
+    		ResourceResolver resolver = null;
+    		Session session = null;
 
-        return serializationPolicy;
+        	try {
+        		session = repository.loginAdministrative(null);
+        		
+    			Map<String, Object> authInfo = new HashMap<String, Object>();
+    			authInfo.put(JcrResourceConstants  .AUTHENTICATION_INFO_SESSION,
+    					session);
+    			try {
+    				resolver = resourceResolverFactory
+    						.getResourceResolver(authInfo);
+    			} catch (org.apache.sling.api.resource.LoginException e) {
+    			}
+
+        		if (resolver != null) {
+            		Resource res = resolver.resolve(request, serializationPolicyFilePath);
+            		if (res != null) 
+            			is = res.adaptTo(InputStream.class);
+            		resolver.close();
+        		}
+        	} catch (Throwable e) {
+        		
+        	} finally {
+        		if (resolver != null && resolver.isLive()) {
+        			resolver.close();
+        		}
+        		if (session != null && session.isLive()) {
+        			session.logout();
+        		}
+        	}
+    	} else {
+            is = getServletContext().getResourceAsStream(
+                    serializationPolicyFilePath);
+        }
+        return is;
     }
 
     /**
@@ -468,45 +1119,92 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
 		this.rootPath = rootPath;
 	}
 
+	/**
+	 * Sets the maximum number of calls in a batch request, larger batches are rejected.
+	 *
+	 * @param maxBatchSize the maximum number of calls
+	 */
+	protected void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Returns the context of the current call. Outside of a call (and in threads the context
+	 * was not attached to) a context of the thread local request is created.
+	 *
+	 * @return the context of the call
+	 */
+	protected ServiceCallContext getCallContext() {
+		ServiceCallContext context = ServiceCallContext.current();
+		if (context == null) {
+			context = new ServiceCallContext(getThreadLocalRequest(), getThreadLocalResponse(), config.getDefaultLocale());
+		}
+		return context;
+	}
+
 	protected RequestWrapper getRequest() {
-		return new RequestWrapper(this.getThreadLocalRequest(), null);
+		return getCallContext().getRequestWrapper();
 	}
 
 	protected String getUser() {
-		return (String)this.getThreadLocalRequest().getAttribute("org.osgi.service.http.authentication.remote.user");
+		return getCallContext().getUser();
 	}
 	
 	public Bundle getBundleByName(String name) {
-		 Bundle[] ret = packageAdmin.getBundles(name, null);
-		 if (ret != null && ret.length > 0) {
-			 return ret[0];
-		 }
-		 return null;
+		BundleIndex index = getBundleIndex();
+		return index != null ? index.getBundle(name, packageAdmin) : BundleIndex.lookupBundle(name, packageAdmin);
 	}
 
-	protected Locale getLocale() {
-		if (getThreadLocalRequest().getAttribute("locale") == null) {
-			RequestWrapper rw = new RequestWrapper(getThreadLocalRequest(), config.getDefaultLocale());
-			getThreadLocalRequest().setAttribute("locale", rw.getLocale());
-			return rw.getLocale();
-		} else {
-			return getThreadLocalRequest().getLocale();
+	/**
+	 * @return the bundle index, registered as a bundle listener at the first use, or
+	 * <code>null</code> if it could not be registered (it would not see the changes of the bundles)
+	 */
+	private BundleIndex getBundleIndex() {
+		if (!bundleIndexRegistered) {
+			if (getBundleContext() == null) return null;
+			addBundleListener(bundleIndex);
+			synchronized (bundleListeners) {
+				bundleIndexRegistered = bundleListeners.contains(bundleIndex);
+			}
+			if (!bundleIndexRegistered) return null;
 		}
+		return bundleIndex;
+	}
+
+	protected Locale getLocale() {
+		return getCallContext().getLocale();
 	}
 	
 	protected void setLocale(Locale locale) {
-		getThreadLocalRequest().setAttribute("locale", locale);		
+		getCallContext().setLocale(locale);
 	}
 	
 	public String formatMessage(String key, Object[] args) {
-		String message = getResourceBundle().getString(key);
-		return MessageFormat.format(message, args);
+		return messageFormats.format(getResourceBundle(), getLocale(), key, args);
 	}
 	
+	/**
+	 * Returns the user session of the call. The session is shared in the call, the caller gets its
+	 * own view of it: logging out the view does not touch the session, the session is logged out
+	 * at the end of the call.
+	 */
 	protected Session getUserSession(Repository repository) throws AccessDeniedException, InternalException {
+		ServiceCallContext context = getCallContext();
+		Session session = context.getUserSession(repository);
+		if (session != null) {
+			return session;
+		}
 		try {
-			AuthenticationInfo info = (AuthenticationInfo) this.getThreadLocalRequest().getAttribute("org.apache.sling.commons.auth.spi.AuthenticationInfo");
-            return repository.login(new SimpleCredentials(getUser(), info.getPassword()));
+			AuthenticationInfo info = getAuthenticationInfo(context);
+			JcrSessionPool pool = sessionPool;
+			if (pool == null) {
+				session = repository.login(new SimpleCredentials(context.getUser(), info.getPassword()));
+				context.setUserSession(repository, session, false);
+			} else {
+				session = pool.borrow(repository, context.getUser(), info.getPassword());
+				context.setUserSession(repository, session, true);
+			}
+			return context.getUserSession(repository);
 		} catch (LoginException ex) {
 			throw new AccessDeniedException(formatMessage("accessDeniedForUser",new Object[]{getUser(), ex}));
 		} catch (RepositoryException ex) {
@@ -514,8 +1212,76 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
 		}
 	}
 
+	/**
+	 * Returns the authentication info of the call. A hit of the authentication cache restores
+	 * the user only, the request is authenticated by the authentication support when the
+	 * credentials are needed.
+	 */
+	private AuthenticationInfo getAuthenticationInfo(ServiceCallContext context) {
+		AuthenticationInfo info = context.getAuthenticationInfo();
+		if (info == null && authenticationCache != null) {
+			// The parts of the call authenticate the request of the call, the request thread waits for them
+			ServiceCallContext call = context.getCall();
+			HttpServletRequest request = call.getRequest();
+			synchronized (request) {
+				info = call.getAuthenticationInfo();
+				if (info == null && auth.handleSecurity(request, call.getResponse())) {
+					info = call.getAuthenticationInfo();
+				}
+			}
+			if (info != null && call != context) {
+				context.getRequest().setAttribute(ServiceCallContext.AUTHENTICATION_INFO_ATTRIBUTE, info);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Authenticates the current request, through the authentication cache if it is available.
+	 *
+	 * @return the result of <code>AuthenticationSupport.handleSecurity()</code>
+	 */
+	protected boolean handleSecurity() {
+		AuthenticationCache cache = authenticationCache;
+		if (cache != null) {
+			return cache.handleSecurity(auth, getThreadLocalRequest(), getThreadLocalResponse());
+		}
+		return auth.handleSecurity(getThreadLocalRequest(), getThreadLocalResponse());
+	}
+
+	/**
+	 * Drops the cached authentication and the pooled sessions of the current user.
+	 * Has to be called on logout and on password change.
+	 */
+	protected void invalidateAuthentication() {
+		String user = getUser();
+		AuthenticationCache cache = authenticationCache;
+		if (cache != null) {
+			cache.invalidate(getThreadLocalRequest());
+			if (user != null) cache.invalidateUser(user);
+		}
+		JcrSessionPool pool = sessionPool;
+		if (pool != null && user != null) {
+			pool.evict(user);
+		}
+	}
+
+	/**
+	 * Returns the pooled sessions of the call which were not logged out to the session pool.
+	 * Called at the end of every call.
+	 */
+	protected void releaseUserSessions() {
+		ServiceCallContext context = ServiceCallContext.current();
+		if (context != null) {
+			context.releaseSessions();
+		}
+	}
+
 	public String getExceptionMessage(Throwable th) {
-		return formatMessage("exception",new Object[]{th.getClass().getName(), th.getStackTrace()[0].getFileName(), th.getStackTrace()[0].getMethodName(), th.getStackTrace()[0].getLineNumber()});
+		// Stackless exceptions have no stack trace element
+		StackTraceElement[] stackTrace = th.getStackTrace();
+		StackTraceElement top = stackTrace.length > 0 ? stackTrace[0] : null;
+		return formatMessage("exception",new Object[]{th.getClass().getName(), top != null ? top.getFileName() : null, top != null ? top.getMethodName() : null, top != null ? top.getLineNumber() : -1});
 	}
 
 	protected Object throwRPCExceptionLocalized(String key) throws Exception  {
@@ -553,36 +1319,46 @@ public abstract class GWTRPCServlet extends RemoteServiceServlet {
 		if (args != null) {
 
 			try {
-				StringBuffer sb = new StringBuffer();
-				MessageFormat.format(message, args, sb, null);
-				result = sb.toString();
+				result = messageFormats.formatPattern(getLocale(), message, args);
 			} catch (IllegalArgumentException e1) {
 				log.error("Error in format message", e1);
 			}
 		}
-		if (th != null) log.error(result, th);
-		else log.error(result);
-
 		if (th != null) {
+			errorLog.error(result, th);
 			if (th instanceof InternalException) {
 				throw (InternalException)th;
 			} else if (th instanceof AccessDeniedException) {
 				throw (AccessDeniedException)th;
 			} else throw new InternalException(result, th);
 		}
-		throw new InternalException(result);
+		// Expected failure, the stack trace would only point here
+		InternalException ex = new InternalException(result, null, false);
+		if (errorLog.isLoggable(ex)) log.error(result);
+		throw ex;
 	}
 
 	public ResourceBundle getResourceBundle() {
-		return (ResourceBundle)getThreadLocalRequest().getAttribute("resourceBundle");
+		return getCallContext().getResourceBundle();
 	}
 	
 	public void setResourceBundle(
 		ResourceBundle resourceBundle) {
-		getThreadLocalRequest().setAttribute("resourceBundle", resourceBundle);
+		getCallContext().setResourceBundle(resourceBundle);
 	
 	}
 
+	/**
+	 * Compiles the messages of the resource bundle for the locale, so the first calls using
+	 * them do not have to. Meant to be called at the activation of the service.
+	 *
+	 * @param resourceBundle the resource bundle
+	 * @param locale the locale of the formatting
+	 */
+	protected void preloadMessages(ResourceBundle resourceBundle, Locale locale) {
+		messageFormats.preload(resourceBundle, locale);
+	}
+
 	public SlingRepository getRepository() {
 		return repository;
 	}
@@ -20,7 +20,6 @@ package org.liveSense.service.gwt;
  * @author Robert Csakany (robson@semmi.se)
  * @created Jan 04, 2011
  */
-import com.google.gwt.user.server.rpc.RPCServletUtils;
 import com.google.web.bindery.autobean.shared.AutoBean;
 import com.google.web.bindery.autobean.shared.AutoBeanCodex;
 import com.google.web.bindery.autobean.vm.AutoBeanFactorySource;
@@ -31,7 +30,9 @@ import com.google.web.bindery.requestfactory.server.SimpleRequestProcessor;
 import com.google.web.bindery.requestfactory.shared.RequestFactory;
 import com.google.web.bindery.requestfactory.shared.ServerFailure;
 import com.google.web.bindery.requestfactory.shared.ServiceLocator;
+import com.google.web.bindery.requestfactory.shared.messages.InvocationMessage;
 import com.google.web.bindery.requestfactory.shared.messages.MessageFactory;
+import com.google.web.bindery.requestfactory.shared.messages.RequestMessage;
 import com.google.web.bindery.requestfactory.shared.messages.ResponseMessage;
 import com.google.web.bindery.requestfactory.shared.messages.ServerFailureMessage;
 import org.apache.felix.scr.annotations.Component;
@@ -43,13 +44,15 @@ import org.apache.sling.auth.core.AuthenticationSupport;
 import org.apache.sling.auth.core.spi.AuthenticationInfo;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.liveSense.core.ClassInstanceCache;
-import org.liveSense.core.CompositeClassLoader;
 import org.liveSense.core.Configurator;
 import org.liveSense.core.service.OSGIClassLoaderManager;
 import org.liveSense.misc.jcrWrapper.RequestWrapper;
 import org.liveSense.service.gwt.exceptions.AccessDeniedException;
 import org.liveSense.service.gwt.exceptions.InternalException;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.service.packageadmin.PackageAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,11 +64,14 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.MessageFormat;
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Extending google's request factory servlet
@@ -100,6 +106,18 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 	private final Logger log = LoggerFactory.getLogger(GWTRequestFactoryServlet.class);
 
 	public static final Logger payloadLogger = LoggerFactory.getLogger("GWTREQUESTFACTORY");
+
+	private static final PayloadLogger payloadLog = new PayloadLogger(payloadLogger);
+
+	/**
+	 * Rate-limited logging of the failures of the calls
+	 */
+	private final FailureLogger failureLog = new FailureLogger(log);
+
+	/**
+	 * Encoded responses of the stackless failures
+	 */
+	private final EncodedFailureCache encodedFailures = new EncodedFailureCache();
 	
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	private Configurator config;
@@ -125,6 +143,27 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	ClassInstanceCache instanceCache;
 
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	JcrSessionPool sessionPool;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	AuthenticationCache authenticationCache;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallMetrics callMetrics;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallExecutor callExecutor;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	ConcurrencyLimiter concurrencyLimiter;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	ResponseCache responseCache;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	CallCoalescer callCoalescer;
+
 	private static final String JSON_CHARSET = "UTF-8";
 	private static final String JSON_CONTENT_TYPE = "application/json";
 	
@@ -165,6 +204,35 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 
 	protected SimpleRequestProcessor processor;
 
+	/**
+	 * Runs the read-only invocations of a request in parallel, used if the <code>parallelInvocations</code>
+	 * init parameter is true
+	 */
+	private ParallelRequestProcessor parallelProcessor;
+
+	/**
+	 * Looks up the responses of the cacheable requests in the response cache and coalesces the identical read-only requests
+	 */
+	private CachingRequestProcessor cachingProcessor;
+
+	private ServiceLayer serviceLayer;
+
+	/**
+	 * Bundle aware cache of the service layer resolutions
+	 */
+	private OsgiServiceLayerCache serviceLayerCache;
+
+	private OsgiServiceLayerDecorator serviceLayerDecorator;
+
+	private final List<BundleListener> bundleListeners = new ArrayList<BundleListener>();
+
+	/**
+	 * Bundles by symbolic name and their classloaders
+	 */
+	private final BundleIndex bundleIndex = new BundleIndex();
+
+	private volatile boolean bundleIndexRegistered;
+
 	/**
 	 * @return the defaultExceptionHandler
 	 */
@@ -190,25 +258,209 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 	}
 	
 	protected void initOsgiProcessor() {
-		// Set google serviceLayerCache off
+		// Set google serviceLayerCache off, it is JVM wide and never invalidated.
+		// OsgiServiceLayerCache is used instead, which is invalidated by bundle events.
 		System.setProperty("gwt.rf.ServiceLayerCache", new Boolean(false).toString());
 		
 		getDefaultExceptionHandler().setRequestFactoryServlet(this);
 		ClassLoader old = Thread.currentThread().getContextClassLoader();
 		Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
-		processor = new SimpleRequestProcessor(ServiceLayer.create(new OsgiServiceLayerDecorator(dynamicClassLoaderManager.getPackageAdminClassLoader(null), serviceLocator, instanceCache)));
+		if (serviceLayerCache != null) {
+			removeBundleListener(serviceLayerCache);
+			removeBundleListener(serviceLayerDecorator);
+		}
+		serviceLayerCache = new OsgiServiceLayerCache();
+		serviceLayerDecorator = new OsgiServiceLayerDecorator(dynamicClassLoaderManager.getPackageAdminClassLoader(null), serviceLocator, instanceCache);
+		addBundleListener(serviceLayerCache);
+		addBundleListener(serviceLayerDecorator);
+		serviceLayer = ServiceLayer.create(serviceLayerCache, serviceLayerDecorator);
+		processor = new SimpleRequestProcessor(serviceLayer);
 		processor.setExceptionHandler(getDefaultExceptionHandler());
+		parallelProcessor = new ParallelRequestProcessor(processor, serviceLayer) {
+			@Override
+			protected <T> Callable<T> inCallContext(Callable<T> task) {
+				return GWTRequestFactoryServlet.this.inCallContext(task);
+			}
+		};
+		cachingProcessor = new CachingRequestProcessor(serviceLayer) {
+			@Override
+			protected String getResponseVersion(List<Method> domainMethods) {
+				return GWTRequestFactoryServlet.this.getResponseVersion(domainMethods);
+			}
+
+			@Override
+			protected String processUncached(String payload) {
+				if (parallelInvocations && parallelProcessor != null) {
+					return parallelProcessor.process(payload, callExecutor);
+				}
+				return processor.process(payload);
+			}
+		};
 		Thread.currentThread().setContextClassLoader(old);
 	}
 
+	/**
+	 * Returns the version token of the response of a read-only request, e.g. the modification
+	 * time or the revision of the data the methods read. If the servlet supplies one, the entity
+	 * tag of the response is computed from the request and the token without processing it.
+	 *
+	 * @param domainMethods the domain methods of the invocations of the request
+	 * @return the version token or <code>null</code> if the entity tag is computed from the response
+	 */
+	protected String getResponseVersion(List<Method> domainMethods) {
+		return null;
+	}
+
+	/**
+	 * Registers a bundle listener which is removed when the servlet is destroyed.
+	 * 
+	 * @param listener the listener
+	 */
+	protected void addBundleListener(BundleListener listener) {
+		BundleContext context = getBundleContext();
+		if (context == null) {
+			log.warn("No bundle context, bundle listener is not registered: "+listener);
+			return;
+		}
+		synchronized (bundleListeners) {
+			if (bundleListeners.contains(listener)) return;
+			bundleListeners.add(listener);
+		}
+		try {
+			context.addBundleListener(listener);
+		} catch (IllegalStateException e) {
+			synchronized (bundleListeners) {
+				bundleListeners.remove(listener);
+			}
+			log.warn("Bundle is stopped, bundle listener is not registered: "+listener);
+		}
+	}
+
+	private static BundleContext getBundleContext() {
+		Bundle bundle = FrameworkUtil.getBundle(GWTRequestFactoryServlet.class);
+		return bundle != null ? bundle.getBundleContext() : null;
+	}
+
+	protected void removeBundleListener(BundleListener listener) {
+		synchronized (bundleListeners) {
+			if (!bundleListeners.remove(listener)) return;
+		}
+		BundleContext context = getBundleContext();
+		if (context != null) {
+			try {
+				context.removeBundleListener(listener);
+			} catch (IllegalStateException e) {
+				// Bundle is already stopped, the listener is removed by the framework
+			}
+		}
+	}
+
+	/**
+	 * Processes the POST requests asynchronously on the call executor if the asynchronous
+	 * execution is enabled (see {@link AsyncExecution}).
+	 */
+	@Override
+	protected void service(final HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if ("POST".equals(request.getMethod()) && getAsyncExecution().dispatch(request, response, callExecutor, new AsyncExecution.Task() {
+			public void run(HttpServletResponse asyncResponse) throws Exception {
+				GWTRequestFactoryServlet.super.service(request, asyncResponse);
+			}
+		})) {
+			return;
+		}
+		super.service(request, response);
+	}
+
+	private AsyncExecution getAsyncExecution() {
+		AsyncExecution ret = asyncExecution;
+		if (ret == null) {
+			ret = AsyncExecution.fromConfig(getServletConfig());
+			asyncExecution = ret;
+		}
+		return ret;
+	}
+
+	@Override
+	public void destroy() {
+		List<BundleListener> listeners;
+		synchronized (bundleListeners) {
+			listeners = new ArrayList<BundleListener>(bundleListeners);
+		}
+		for (BundleListener listener : listeners) {
+			removeBundleListener(listener);
+		}
+		bundleIndexRegistered = false;
+		bundleIndex.clear();
+		PooledContentReader.clear();
+		PooledContentWriter.clear();
+		super.destroy();
+	}
+
 	private void ensureConfig() {
 		String symbolMapsDirectory = getServletConfig().getInitParameter("symbolMapsDirectory");
 		if (symbolMapsDirectory != null) {
 			Logging.setSymbolMapsDirectory(symbolMapsDirectory);
 		}
+		String maxContentLength = getServletConfig().getInitParameter("maxContentLength");
+		if (maxContentLength != null) {
+			try {
+				this.maxContentLength = Integer.parseInt(maxContentLength.trim());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid maxContentLength init parameter: "+maxContentLength);
+			}
+		}
+		String gzipThreshold = getServletConfig().getInitParameter("gzipThreshold");
+		if (gzipThreshold != null) {
+			try {
+				this.gzipThreshold = Integer.parseInt(gzipThreshold.trim());
+			} catch (NumberFormatException e) {
+				log.warn("Invalid gzipThreshold init parameter: "+gzipThreshold);
+			}
+		}
+		this.parallelInvocations = Boolean.valueOf(getServletConfig().getInitParameter("parallelInvocations"));
+		String readOnlyMethods = getServletConfig().getInitParameter("readOnlyMethods");
+		if (readOnlyMethods != null && parallelProcessor != null && !readOnlyMethods.equals(this.readOnlyMethods)) {
+			Set<String> names = new HashSet<String>();
+			for (String name : readOnlyMethods.split(",")) {
+				if (name.trim().length() > 0) names.add(name.trim());
+			}
+			parallelProcessor.setReadOnlyNames(names);
+			this.readOnlyMethods = readOnlyMethods;
+		}
 	}
+
+	/**
+	 * Maximum size of the request body in bytes, can be set by the <code>maxContentLength</code> init parameter
+	 */
+	private volatile int maxContentLength = PooledContentReader.DEFAULT_MAX_CONTENT_LENGTH;
+
+	/**
+	 * Minimum length of the responses to gzip, can be set by the <code>gzipThreshold</code> init parameter.
+	 * Negative value disables the compression.
+	 */
+	private volatile int gzipThreshold = PooledContentWriter.DEFAULT_GZIP_THRESHOLD;
+
+	/**
+	 * Whether the read-only invocations of a request run in parallel (on the call executor),
+	 * can be set by the <code>parallelInvocations</code> init parameter
+	 */
+	private volatile boolean parallelInvocations;
+
+	/**
+	 * Service methods (<code>className.methodName</code>) and classes handled as read-only
+	 * without the {@link ReadOnly} annotation, comma separated list of the <code>readOnlyMethods</code>
+	 * init parameter
+	 */
+	private volatile String readOnlyMethods;
+
+	/**
+	 * Asynchronous execution of the calls, set by the init parameters at the first call
+	 */
+	private volatile AsyncExecution asyncExecution;
 	
-	private final HashMap<String, ClassLoader> classLoaders = new HashMap<String, ClassLoader>();
+	private final ClassLoaderRegistry classLoaders = new ClassLoaderRegistry();
+
+	private final MessageFormatCache messageFormats = new MessageFormatCache();
 
 
     /**
@@ -219,12 +471,26 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
      */
     protected void setClassLoader(ClassLoader classLoader) {
         //this.classLoader = classLoader;
-    	classLoaders.put(classLoader.toString(), classLoader);
+    	classLoaders.add(classLoader);
+    	// Keeps the class index of the composite classloader up to date
+    	addBundleListener(classLoaders);
+    	// Resource bundles of updated bundles are reloaded
+    	addBundleListener(messageFormats);
     }
 
 
 	public abstract void callInit() throws Throwable;
 
+	/**
+	 * Records the latency of a phase of the call, the operation is the servlet. The service
+	 * methods are recorded by the service layer decorator.
+	 */
+	private void recordPhase(CallMetrics metrics, String phase, long phaseStart) {
+		if (metrics != null) {
+			metrics.record(getClass().getName(), phase, System.nanoTime() - phaseStart);
+		}
+	}
+
 	public abstract void callFinal() throws Throwable;
 	
 	public abstract ServerFailure failure(Throwable throwable);
@@ -232,7 +498,8 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 	static final MessageFactory FACTORY = AutoBeanFactorySource.create(MessageFactory.class);
     
 	private AutoBean<ServerFailureMessage> createFailureMessage(Throwable throwable) {	
-		ServerFailure failure = defaultExceptionHandler.createServerFailure(throwable);
+		// Logged by the caller
+		ServerFailure failure = defaultExceptionHandler.toServerFailure(throwable);
 		AutoBean<ServerFailureMessage> bean = FACTORY.failure();
 		ServerFailureMessage msg = bean.as();
 		msg.setExceptionType(failure.getExceptionType());
@@ -244,6 +511,31 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 	}
 
 
+	/**
+	 * @param payload the request
+	 * @return the name of the domain method whose payload log sample rate applies to the request,
+	 * or <code>null</code> if no sample rate is configured by method (the request is not decoded then)
+	 */
+	private String getSampledMethod(String payload) {
+		ServiceLayer layer = serviceLayer;
+		if (payload == null || layer == null || !payloadLog.isSampledByMethod()) return null;
+		try {
+			RequestMessage request = AutoBeanCodex.decode(FACTORY, RequestMessage.class, payload).as();
+			List<InvocationMessage> invocations = request.getInvocations();
+			if (invocations == null || request.getRequestFactory() == null) return null;
+			layer.resolveRequestFactory(request.getRequestFactory());
+			List<String> methods = new ArrayList<String>(invocations.size());
+			for (InvocationMessage invocation : invocations) {
+				Method domainMethod = layer.resolveDomainMethod(invocation.getOperation());
+				if (domainMethod != null) methods.add(domainMethod.getName());
+			}
+			return payloadLog.getSampledMethod(methods);
+		} catch (RuntimeException e) {
+			// Malformed request, reported by the processor
+			return null;
+		}
+	}
+
 	/**
      * Process exception and convert it to JSON object
      * @param phase
@@ -252,12 +544,17 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
      * @return
      */
     private String processException(String phase, String payload, Throwable e) {
+        String ret = encodedFailures.get(e);
+        if (ret != null) {
+        	return ret;
+        }
 
         AutoBean<ResponseMessage> responseBean = FACTORY.response();
         // Create a new response envelope, since the state is unknown
         responseBean = FACTORY.response();
         responseBean.as().setGeneralFailure(createFailureMessage(e).as());
-        String ret = AutoBeanCodex.encode(responseBean).getPayload();
+        ret = AutoBeanCodex.encode(responseBean).getPayload();
+        encodedFailures.put(e, ret);
         // Return a JSON-formatted payload
         return ret;
     }
@@ -276,156 +573,286 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 			ServletException {
 
         ClassLoader oldClassLoader = null;
-        boolean customClassloader =false;
 
         // Inititalizing threadLocal variables
 		perThreadContext.set(getServletContext());
 		perThreadRequest.set(request);
 		perThreadResponse.set(response);
+		CallMetrics metrics = callMetrics;
+		ServiceCallContext context = new ServiceCallContext(request, response, config.getDefaultLocale());
+		context.setCallMetrics(metrics);
+		context.setConcurrencyLimiter(concurrencyLimiter);
+		ServiceCallContext previousContext = ServiceCallContext.attach(context);
+		long start = System.nanoTime();
+		long phaseStart;
 
         // Custom classloader - OSGi context
-        if (!classLoaders.isEmpty()) {
-        	customClassloader = true;
-        }
-        	
+        ClassLoader compositeClassLoader = classLoaders.getCompositeClassLoader();
+        boolean customClassloader = compositeClassLoader != null;
 
         if (customClassloader) {
         	// Backup old contextClassLoader
         	oldClassLoader = Thread.currentThread().getContextClassLoader();
 
-            // Generating composite classloader from map
-            CompositeClassLoader cClassLoader = new CompositeClassLoader();
-            for (String key : classLoaders.keySet()) {
-                cClassLoader.add(classLoaders.get(key));            	
-            }
-            
             // Set contextClassLoader
-            Thread.currentThread().setContextClassLoader(cClassLoader);
+            Thread.currentThread().setContextClassLoader(compositeClassLoader);
         }    
         
         String payload = null;
         String jsonRequestString = null;
         boolean error = false;
         boolean callInitExecuted = false;
+        ResponseCache cache = responseCache;
+        CallCoalescer coalescer = callCoalescer;
+        // The request is decoded before processing only if it can be cached, coalesced or tagged:
+        // without an If-None-Match header the response is tagged only when it is decoded anyway
+        String ifNoneMatch = request.getHeader(ConditionalResponse.IF_NONE_MATCH_HEADER);
+        ConditionalResponse conditional = ifNoneMatch != null || cache != null || coalescer != null
+        		? new ConditionalResponse(ifNoneMatch) : null;
+        boolean notModified = false;
+        boolean processed = false;
 
         try {
         	try {
 				ensureConfig();
-				jsonRequestString = RPCServletUtils.readContent(request, JSON_CONTENT_TYPE, JSON_CHARSET);
+				jsonRequestString = PooledContentReader.readContent(request, JSON_CONTENT_TYPE, JSON_CHARSET, maxContentLength);
         	} catch (Throwable e) {
 				error = true;
 				payload = processException("processRuntimeException", payload, e);
-            	payloadLogger.error ("<<< (process) User: "+getUser()+" Payload: "+payload);
-				log.error("Unexpected error on RequestFactory doPost init", e);
+				if (failureLog.isLoggable(e)) {
+					payloadLog.error("<<<", "process", getUser(), "Payload", payload, null);
+					log.error("Unexpected error on RequestFactory doPost init", e);
+				}
         	}
 
         	
         	// Authenticating - OSGi context
             if (authenticationSupport != null && !error) {
+            	phaseStart = System.nanoTime();
 	            try {
-	            	authenticationSupport.handleSecurity(getThreadLocalRequest(), getThreadLocalResponse());
+	            	handleSecurity();
 	            } catch (Throwable e) {
 	            	error = true;
 	            	payload = processException("handleSecurity", jsonRequestString, e);
+	            	if (failureLog.isLoggable(e)) {
+	            		payloadLog.error("<<<", "handleSecurity", getUser(), "Payload", payload, e);
+	            	}
 	            }
+	            recordPhase(metrics, CallMetrics.PHASE_AUTHENTICATION, phaseStart);
             }
                         
             // CallInit
             if (!error) {
+            	phaseStart = System.nanoTime();
 	            try {
 	            	callInit();
 	            	callInitExecuted = true;
 	            } catch (Throwable e) {
 	            	error = true;
 	            	payload = processException("callInit", jsonRequestString, e);
-                	payloadLogger.error ("<<< (callInit) User: "+getUser()+" Payload: "+payload, e);
+	            	if (failureLog.isLoggable(e)) {
+	            		payloadLog.error("<<<", "callInit", getUser(), "Payload", payload, e);
+	            	}
 	            }
+	            recordPhase(metrics, CallMetrics.PHASE_CALL_INIT, phaseStart);
             }
             
             // Process the request
             if (!error) {
+            	phaseStart = System.nanoTime();
     			try {
-                	payloadLogger.info (">>> (process) User: "+getUser()+" Payload: "+jsonRequestString);
-    				payload = processor.process(jsonRequestString);
-    				response.setStatus(HttpServletResponse.SC_OK);
-    				response.setContentType(RequestFactory.JSON_CONTENT_TYPE_UTF8);
-                	payloadLogger.info ("<<< (process) User: "+getUser()+" Payload: "+payload);
+                	String method = getSampledMethod(jsonRequestString);
+                	payloadLog.info(">>>", "process", getUser(), method, "Payload", jsonRequestString);
+    				if (cachingProcessor != null) {
+    					payload = cachingProcessor.process(jsonRequestString, cache, coalescer, conditional, getUser(), getLocale());
+    				} else {
+    					payload = processor.process(jsonRequestString);
+    				}
+    				// The status and the entity tag are set after callFinal(), its failure is sent instead of a 304
+    				notModified = conditional != null && conditional.isNotModified();
+    				processed = true;
+                	payloadLog.info("<<<", "process", getUser(), method, "Payload", payload);
     			} catch (Throwable e) {
     				error = true;
     				payload = processException("processRuntimeException", payload, e);
-                	payloadLogger.error ("<<< (process) User: "+getUser()+" Payload: "+payload, e);
-    				log.error("Unexpected error", e);
+    				if (failureLog.isLoggable(e)) {
+    					payloadLog.error("<<<", "process", getUser(), "Payload", payload, e);
+    					log.error("Unexpected error", e);
+    				}
     			}
+    			recordPhase(metrics, CallMetrics.PHASE_PROCESS, phaseStart);
             }
             	
            	// callFinal
             if (callInitExecuted) {
+            	phaseStart = System.nanoTime();
 				try {
 					callFinal();
 				} catch (Throwable e) {
+					// The failure has to be sent
+					notModified = false;
+					if (conditional != null) conditional.setETag(null);
 					payload = processException("callFinal", payload, e);
-					payloadLogger.error ("<<< (callFinal) User: "+getUser()+" Payload: "+payload, e);
+					if (failureLog.isLoggable(e)) {
+						payloadLog.error("<<<", "callFinal", getUser(), "Payload", payload, e);
+					}
 				}
+				recordPhase(metrics, CallMetrics.PHASE_CALL_FINAL, phaseStart);
+            }
+            if (processed) {
+            	if (notModified) {
+            		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            	} else {
+            		response.setStatus(HttpServletResponse.SC_OK);
+            		response.setContentType(RequestFactory.JSON_CONTENT_TYPE_UTF8);
+            	}
+            	if (conditional != null && conditional.getETag() != null) {
+            		response.setHeader(ConditionalResponse.ETAG_HEADER, conditional.getETag());
+            	}
             }
         } catch (Throwable e) {
+			notModified = false;
 			payload = processException("processRuntimeException", payload, e);
-        	payloadLogger.error ("<<< (process) User: "+getUser()+" Payload: "+payload, e);
-			log.error("Unexpected error", e);
+			if (failureLog.isLoggable(e)) {
+				payloadLog.error("<<<", "process", getUser(), "Payload", payload, e);
+				log.error("Unexpected error", e);
+			}
         } finally {
+        	releaseUserSessions();
+        	recordPhase(metrics, CallMetrics.PHASE_TOTAL, start);
+        	ServiceCallContext.detach(previousContext);
         	if (customClassloader) {
             	Thread.currentThread().setContextClassLoader(oldClassLoader);
             }
 
-        	// The Writer must be obtained after setting the content type
 			perThreadContext.set(null);
 			perThreadRequest.set(null);
 			perThreadResponse.set(null);
-			response.setCharacterEncoding(config.getEncoding());
-        	PrintWriter writer = response.getWriter();
-			writer.print(payload);
-			writer.flush();
+			if (!notModified) {
+				// The content is encoded with the character encoding of the response
+				response.setCharacterEncoding(config.getEncoding());
+				PooledContentWriter.writeContent(request, response, String.valueOf(payload), gzipThreshold);
+			}
         }
 	}
     	
+	/**
+	 * Wraps a task of the current call to run in an other thread: the task runs with the context
+	 * classloader, the thread local servlet context and a fork of the call context of the current
+	 * call, whose views of the request and the response are the thread local request and
+	 * response (the task can not change the response, see {@link ServiceCallContext#fork()}).
+	 * The sessions the task opens are released when it is done.
+	 *
+	 * @param task the task
+	 * @return the task running in the context of the current call
+	 */
+	protected <T> Callable<T> inCallContext(final Callable<T> task) {
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		final ServletContext servletContext = perThreadContext.get();
+		final ServiceCallContext context = getCallContext().fork();
+		return new Callable<T>() {
+			public T call() throws Exception {
+				Thread thread = Thread.currentThread();
+				ClassLoader oldClassLoader = thread.getContextClassLoader();
+				ServletContext oldServletContext = perThreadContext.get();
+				HttpServletRequest oldRequest = perThreadRequest.get();
+				HttpServletResponse oldResponse = perThreadResponse.get();
+				thread.setContextClassLoader(classLoader);
+				perThreadContext.set(servletContext);
+				perThreadRequest.set(context.getRequest());
+				perThreadResponse.set(context.getResponse());
+				ServiceCallContext previousContext = ServiceCallContext.attach(context);
+				try {
+					return task.call();
+				} finally {
+					context.releaseSessions();
+					ServiceCallContext.detach(previousContext);
+					perThreadContext.set(oldServletContext);
+					perThreadRequest.set(oldRequest);
+					perThreadResponse.set(oldResponse);
+					thread.setContextClassLoader(oldClassLoader);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the context of the current call. Outside of a call (and in threads the context
+	 * was not attached to) a context of the thread local request is created.
+	 *
+	 * @return the context of the call
+	 */
+	protected ServiceCallContext getCallContext() {
+		ServiceCallContext context = ServiceCallContext.current();
+		if (context == null) {
+			context = new ServiceCallContext(getThreadLocalRequest(), getThreadLocalResponse(), config.getDefaultLocale());
+		}
+		return context;
+	}
+
 	protected RequestWrapper getRequest() {
-		return new RequestWrapper(this.getThreadLocalRequest(), null);
+		return getCallContext().getRequestWrapper();
 	}
 
 	protected String getUser() {
-		return (String)this.getThreadLocalRequest().getAttribute("org.osgi.service.http.authentication.remote.user");
+		return getCallContext().getUser();
 	}
 	
 	public Bundle getBundleByName(String name) {
-		 Bundle[] ret = packageAdmin.getBundles(name, null);
-		 if (ret != null && ret.length > 0) {
-			 return ret[0];
-		 }
-		 return null;
+		BundleIndex index = getBundleIndex();
+		return index != null ? index.getBundle(name, packageAdmin) : BundleIndex.lookupBundle(name, packageAdmin);
 	}
 
-	protected Locale getLocale() {
-		if (getThreadLocalRequest().getAttribute("locale") == null) {
-			RequestWrapper rw = new RequestWrapper(getThreadLocalRequest(), config.getDefaultLocale());
-			getThreadLocalRequest().setAttribute("locale", rw.getLocale());
-			return rw.getLocale();
-		} else {
-			return getThreadLocalRequest().getLocale();
+	/**
+	 * @return the bundle index, registered as a bundle listener at the first use, or
+	 * <code>null</code> if it could not be registered (it would not see the changes of the bundles)
+	 */
+	private BundleIndex getBundleIndex() {
+		if (!bundleIndexRegistered) {
+			if (getBundleContext() == null) return null;
+			addBundleListener(bundleIndex);
+			synchronized (bundleListeners) {
+				bundleIndexRegistered = bundleListeners.contains(bundleIndex);
+			}
+			if (!bundleIndexRegistered) return null;
 		}
+		return bundleIndex;
+	}
+
+	protected Locale getLocale() {
+		return getCallContext().getLocale();
 	}
 	
 	protected void setLocale(Locale locale) {
-		getThreadLocalRequest().setAttribute("locale", locale);		
+		getCallContext().setLocale(locale);
 	}
 	
 	public String formatMessage(String key, Object[] args) {
-		String message = getResourceBundle().getString(key);
-		return MessageFormat.format(message, args);
+		return messageFormats.format(getResourceBundle(), getLocale(), key, args);
 	}
 	
+	/**
+	 * Returns the user session of the call. The session is shared in the call, the caller gets its
+	 * own view of it: logging out the view does not touch the session, the session is logged out
+	 * at the end of the call.
+	 */
 	protected Session getUserSession(Repository repository) throws AccessDeniedException, InternalException {
+		ServiceCallContext context = getCallContext();
+		Session session = context.getUserSession(repository);
+		if (session != null) {
+			return session;
+		}
 		try {
-			AuthenticationInfo info = (AuthenticationInfo) this.getThreadLocalRequest().getAttribute("org.apache.sling.commons.auth.spi.AuthenticationInfo");
-            return repository.login(new SimpleCredentials(getUser(), info.getPassword()));
+			AuthenticationInfo info = getAuthenticationInfo(context);
+			JcrSessionPool pool = sessionPool;
+			if (pool == null) {
+				session = repository.login(new SimpleCredentials(context.getUser(), info.getPassword()));
+				context.setUserSession(repository, session, false);
+			} else {
+				session = pool.borrow(repository, context.getUser(), info.getPassword());
+				context.setUserSession(repository, session, true);
+			}
+			return context.getUserSession(repository);
 		} catch (LoginException ex) {
 			throw new AccessDeniedException(formatMessage("accessDeniedForUser",new Object[]{getUser(), ex}));
 		} catch (RepositoryException ex) {
@@ -433,16 +860,92 @@ public abstract class GWTRequestFactoryServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * Returns the authentication info of the call. A hit of the authentication cache restores
+	 * the user only, the request is authenticated by the authentication support when the
+	 * credentials are needed.
+	 */
+	private AuthenticationInfo getAuthenticationInfo(ServiceCallContext context) {
+		AuthenticationInfo info = context.getAuthenticationInfo();
+		if (info == null && authenticationCache != null) {
+			// The parts of the call authenticate the request of the call, the request thread waits for them
+			ServiceCallContext call = context.getCall();
+			HttpServletRequest request = call.getRequest();
+			synchronized (request) {
+				info = call.getAuthenticationInfo();
+				if (info == null && authenticationSupport.handleSecurity(request, call.getResponse())) {
+					info = call.getAuthenticationInfo();
+				}
+			}
+			if (info != null && call != context) {
+				context.getRequest().setAttribute(ServiceCallContext.AUTHENTICATION_INFO_ATTRIBUTE, info);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Authenticates the current request, through the authentication cache if it is available.
+	 *
+	 * @return the result of <code>AuthenticationSupport.handleSecurity()</code>
+	 */
+	protected boolean handleSecurity() {
+		AuthenticationCache cache = authenticationCache;
+		if (cache != null) {
+			return cache.handleSecurity(authenticationSupport, getThreadLocalRequest(), getThreadLocalResponse());
+		}
+		return authenticationSupport.handleSecurity(getThreadLocalRequest(), getThreadLocalResponse());
+	}
+
+	/**
+	 * Drops the cached authentication and the pooled sessions of the current user.
+	 * Has to be called on logout and on password change.
+	 */
+	protected void invalidateAuthentication() {
+		String user = getUser();
+		AuthenticationCache cache = authenticationCache;
+		if (cache != null) {
+			cache.invalidate(getThreadLocalRequest());
+			if (user != null) cache.invalidateUser(user);
+		}
+		JcrSessionPool pool = sessionPool;
+		if (pool != null && user != null) {
+			pool.evict(user);
+		}
+	}
+
+	/**
+	 * Returns the pooled sessions of the call which were not logged out to the session pool.
+	 * Called at the end of every call.
+	 */
+	protected void releaseUserSessions() {
+		ServiceCallContext context = ServiceCallContext.current();
+		if (context != null) {
+			context.releaseSessions();
+		}
+	}
+
 	public ResourceBundle getResourceBundle() {
-		return (ResourceBundle)getThreadLocalRequest().getAttribute("resourceBundle");
+		return getCallContext().getResourceBundle();
 	}
 	
 	public void setResourceBundle(
 		ResourceBundle resourceBundle) {
-		getThreadLocalRequest().setAttribute("resourceBundle", resourceBundle);
+		getCallContext().setResourceBundle(resourceBundle);
 	
 	}
 
+	/**
+	 * Compiles the messages of the resource bundle for the locale, so the first calls using
+	 * them do not have to. Meant to be called at the activation of the service.
+	 *
+	 * @param resourceBundle the resource bundle
+	 * @param locale the locale of the formatting
+	 */
+	protected void preloadMessages(ResourceBundle resourceBundle, Locale locale) {
+		messageFormats.preload(resourceBundle, locale);
+	}
+
 	public SlingRepository getRepository() {
 		return repository;
 	}
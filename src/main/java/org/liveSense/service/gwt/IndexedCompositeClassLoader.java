@@ -0,0 +1,128 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Composite classloader which remembers the class loaded for each class name, so after
+ * the warm-up a class is resolved with one map lookup instead of asking the delegates
+ * one by one (paying for a <code>ClassNotFoundException</code> on every miss).
+ * <p/>
+ * The misses are kept in a bounded concurrent negative cache, when it is full the new misses
+ * are not remembered. A hit of the negative cache throws an exception without stack trace.
+ * The loaded classes are dropped when their bundle is updated, uninstalled or refreshed, the
+ * negative cache is cleared on every bundle state change (a missing class may become available).
+ */
+public class IndexedCompositeClassLoader extends ClassLoader {
+
+	private static final int MAX_MISSES = 1024;
+
+	private final ClassLoader[] delegates;
+
+	private final BundleScopedCache<String, Class<?>> index = new BundleScopedCache<String, Class<?>>();
+
+	private final Set<String> misses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public IndexedCompositeClassLoader(Collection<ClassLoader> delegates) {
+		super(null);
+		this.delegates = delegates.toArray(new ClassLoader[delegates.size()]);
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		Class<?> clazz = index.get(name);
+		if (clazz != null) {
+			return clazz;
+		}
+		if (misses.contains(name)) {
+			throw new KnownMissException(name);
+		}
+		long generation = index.getGeneration();
+		for (ClassLoader delegate : delegates) {
+			try {
+				clazz = delegate.loadClass(name);
+				return index.put(name, clazz, generation, clazz);
+			} catch (ClassNotFoundException e) {
+				// Trying the next one
+			}
+		}
+		if (misses.size() < MAX_MISSES) {
+			misses.add(name);
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	@Override
+	public URL getResource(String name) {
+		for (ClassLoader delegate : delegates) {
+			URL url = delegate.getResource(name);
+			if (url != null) return url;
+		}
+		return null;
+	}
+
+	@Override
+	public Enumeration<URL> getResources(String name) throws IOException {
+		List<URL> urls = new ArrayList<URL>();
+		for (ClassLoader delegate : delegates) {
+			Enumeration<URL> e = delegate.getResources(name);
+			while (e != null && e.hasMoreElements()) {
+				urls.add(e.nextElement());
+			}
+		}
+		return Collections.enumeration(urls);
+	}
+
+	/**
+	 * Invalidates the index on bundle state changes.
+	 *
+	 * @param event the bundle event
+	 */
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.RESOLVED:
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			index.bundleChanged(event);
+			clearMisses();
+			break;
+		default:
+			break;
+		}
+	}
+
+	public void clear() {
+		index.clear();
+		clearMisses();
+	}
+
+	private void clearMisses() {
+		misses.clear();
+	}
+
+	/**
+	 * Thrown by the hits of the negative cache, the stack trace would only point here
+	 */
+	private static final class KnownMissException extends ClassNotFoundException {
+		private static final long serialVersionUID = 1L;
+
+		KnownMissException(String name) {
+			super(name);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
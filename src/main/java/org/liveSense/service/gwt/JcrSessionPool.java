@@ -0,0 +1,41 @@
+package org.liveSense.service.gwt;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Pool of authenticated JCR sessions keyed by user.
+ * <p/>
+ * A borrowed session is returned to the pool by its <code>logout()</code> method, it is not
+ * logged out from the repository. Sessions are refreshed (pending changes are dropped) when
+ * they are borrowed.
+ */
+public interface JcrSessionPool {
+
+	/**
+	 * Borrows a session of the user, logs in only if there is no idle session of the user.
+	 * If the password differs from the one the idle sessions were opened with, the idle
+	 * sessions of the user are dropped.
+	 *
+	 * @param repository the repository to log in
+	 * @param user the user id
+	 * @param password the password of the user
+	 * @return the session, its <code>logout()</code> returns it to the pool
+	 * @throws RepositoryException if the login failed
+	 */
+	Session borrow(Repository repository, String user, char[] password) throws RepositoryException;
+
+	/**
+	 * Logs out the idle sessions of the user. Sessions borrowed at the moment are logged out
+	 * when they are returned.
+	 *
+	 * @param user the user id
+	 */
+	void evict(String user);
+
+	/**
+	 * Logs out all the idle sessions.
+	 */
+	void evictAll();
+}
@@ -0,0 +1,328 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JCR session pool. The idle sessions of a user are kept in a LIFO deque, so the most recently
+ * used (warmest) session is borrowed first and the old ones expire. Idle sessions older than
+ * the idle TTL are logged out by a background sweep.
+ * <p/>
+ * The pool of a user remembers the digest of the password its sessions were opened with, when a
+ * different password arrives the pool of the user is dropped.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT JCR session pool", description="Pool of the user sessions of the GWT servlets")
+@Service(JcrSessionPool.class)
+public class JcrSessionPoolImpl implements JcrSessionPool {
+
+	private static final Logger log = LoggerFactory.getLogger(JcrSessionPoolImpl.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final int DEFAULT_IDLE_TTL = 60;
+	@Property(intValue=DEFAULT_IDLE_TTL, label="Idle TTL", description="Idle sessions are logged out after this many seconds")
+	public static final String PROP_IDLE_TTL = "session.pool.idle.ttl";
+
+	public static final int DEFAULT_MAX_IDLE_PER_USER = 4;
+	@Property(intValue=DEFAULT_MAX_IDLE_PER_USER, label="Max idle sessions per user", description="Maximum number of idle sessions of a user")
+	public static final String PROP_MAX_IDLE_PER_USER = "session.pool.max.idle.per.user";
+
+	public static final int DEFAULT_MAX_IDLE = 256;
+	@Property(intValue=DEFAULT_MAX_IDLE, label="Max idle sessions", description="Maximum number of idle sessions")
+	public static final String PROP_MAX_IDLE = "session.pool.max.idle";
+
+	private final ConcurrentMap<String, UserPool> pools = new ConcurrentHashMap<String, UserPool>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	private volatile long idleTtlMillis = TimeUnit.SECONDS.toMillis(DEFAULT_IDLE_TTL);
+
+	private volatile int maxIdlePerUser = DEFAULT_MAX_IDLE_PER_USER;
+
+	private volatile int maxIdle = DEFAULT_MAX_IDLE;
+
+	private ScheduledExecutorService sweeper;
+
+	@Activate
+	protected void activate(Map<String, Object> properties) {
+		modified(properties);
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GWT JCR session pool sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTtlMillis / 2);
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	@Modified
+	protected void modified(Map<String, Object> properties) {
+		idleTtlMillis = TimeUnit.SECONDS.toMillis(ComponentSupport.toInt(properties.get(PROP_IDLE_TTL), DEFAULT_IDLE_TTL));
+		maxIdlePerUser = ComponentSupport.toInt(properties.get(PROP_MAX_IDLE_PER_USER), DEFAULT_MAX_IDLE_PER_USER);
+		maxIdle = ComponentSupport.toInt(properties.get(PROP_MAX_IDLE), DEFAULT_MAX_IDLE);
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+		evictAll();
+	}
+
+	public Session borrow(Repository repository, String user, char[] password) throws RepositoryException {
+		byte[] digest = digest(user, password);
+		UserPool pool;
+		for (;;) {
+			pool = pools.get(user);
+			if (pool != null && pool.repository == repository && MessageDigest.isEqual(pool.passwordDigest, digest)) {
+				break;
+			}
+			UserPool newPool = new UserPool(repository, digest);
+			if (pool == null ? pools.putIfAbsent(user, newPool) == null : pools.replace(user, pool, newPool)) {
+				if (pool != null) pool.close();
+				pool = newPool;
+				break;
+			}
+		}
+
+		Session session;
+		while ((session = pool.poll()) != null) {
+			try {
+				if (session.isLive()) {
+					session.refresh(false);
+					return pooled(pool, session);
+				}
+			} catch (RepositoryException e) {
+				log.debug("Dropping broken pooled session of "+user, e);
+			}
+			logout(session);
+		}
+		session = repository.login(new SimpleCredentials(user, password));
+		return pooled(pool, session);
+	}
+
+	public void evict(String user) {
+		UserPool pool = pools.remove(user);
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	public void evictAll() {
+		for (Iterator<UserPool> it = pools.values().iterator(); it.hasNext();) {
+			UserPool pool = it.next();
+			it.remove();
+			pool.close();
+		}
+	}
+
+	/**
+	 * Logs out the expired idle sessions and drops the empty pools
+	 */
+	void sweep() {
+		long expired = System.currentTimeMillis() - idleTtlMillis;
+		for (Map.Entry<String, UserPool> entry : pools.entrySet()) {
+			UserPool pool = entry.getValue();
+			pool.expire(expired);
+			if (pool.idle.isEmpty() && pool.borrowed.get() == 0 && pools.remove(entry.getKey(), pool)) {
+				// Sessions borrowed concurrently are logged out when they are returned
+				pool.close();
+			}
+		}
+	}
+
+	private void release(UserPool pool, Session session) {
+		pool.borrowed.decrementAndGet();
+		if (!pool.closed && session.isLive()) {
+			try {
+				if (session.hasPendingChanges()) {
+					session.refresh(false);
+				}
+				if (pool.idle.size() < maxIdlePerUser && idleCount.incrementAndGet() <= maxIdle) {
+					pool.idle.offerFirst(new IdleSession(session, System.currentTimeMillis()));
+					// Closed while it was added
+					if (pool.closed) pool.close();
+					return;
+				}
+				idleCount.decrementAndGet();
+			} catch (RepositoryException e) {
+				log.debug("Could not return session to the pool", e);
+			}
+		}
+		logout(session);
+	}
+
+	private Session pooled(final UserPool pool, final Session session) {
+		pool.borrowed.incrementAndGet();
+		return (Session) Proxy.newProxyInstance(session.getClass().getClassLoader(),
+				getInterfaces(session.getClass()), new PooledSessionHandler(pool, session));
+	}
+
+	private static Class<?>[] getInterfaces(Class<?> clazz) {
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) {
+				interfaces.add(i);
+			}
+		}
+		interfaces.add(Session.class);
+		return interfaces.toArray(new Class<?>[interfaces.size()]);
+	}
+
+	private static void logout(Session session) {
+		try {
+			if (session.isLive()) {
+				session.logout();
+			}
+		} catch (RuntimeException e) {
+			log.debug("Could not log out session", e);
+		}
+	}
+
+	private static byte[] digest(String user, char[] password) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(user.getBytes(UTF8));
+			md.update((byte) 0);
+			if (password != null) {
+				ByteBuffer bytes = UTF8.encode(CharBuffer.wrap(password));
+				md.update(bytes);
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class IdleSession {
+		final Session session;
+		final long since;
+
+		IdleSession(Session session, long since) {
+			this.session = session;
+			this.since = since;
+		}
+	}
+
+	private final class UserPool {
+		final Repository repository;
+		final byte[] passwordDigest;
+		final ConcurrentLinkedDeque<IdleSession> idle = new ConcurrentLinkedDeque<IdleSession>();
+		final AtomicInteger borrowed = new AtomicInteger();
+		volatile boolean closed;
+
+		UserPool(Repository repository, byte[] passwordDigest) {
+			this.repository = repository;
+			this.passwordDigest = passwordDigest;
+		}
+
+		Session poll() {
+			IdleSession idleSession = idle.pollFirst();
+			if (idleSession == null) return null;
+			idleCount.decrementAndGet();
+			return idleSession.session;
+		}
+
+		void expire(long expired) {
+			// The oldest sessions are at the end
+			IdleSession idleSession;
+			while ((idleSession = idle.peekLast()) != null && idleSession.since < expired) {
+				if (idle.removeLastOccurrence(idleSession)) {
+					idleCount.decrementAndGet();
+					logout(idleSession.session);
+				}
+			}
+		}
+
+		void close() {
+			closed = true;
+			Session session;
+			while ((session = poll()) != null) {
+				logout(session);
+			}
+		}
+	}
+
+	/**
+	 * Returns the session to the pool on logout, the session can not be used after that
+	 */
+	private final class PooledSessionHandler implements InvocationHandler {
+		final UserPool pool;
+		final Session session;
+		final AtomicBoolean released = new AtomicBoolean();
+
+		PooledSessionHandler(UserPool pool, Session session) {
+			this.pool = pool;
+			this.session = session;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("logout".equals(name) && method.getParameterTypes().length == 0) {
+				if (released.compareAndSet(false, true)) {
+					release(pool, session);
+				}
+				return null;
+			}
+			if ("isLive".equals(name) && method.getParameterTypes().length == 0) {
+				return !released.get() && session.isLive();
+			}
+			if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+				return System.identityHashCode(proxy);
+			}
+			if (released.get() && !"toString".equals(name)) {
+				throw new IllegalStateException("Session has been returned to the pool");
+			}
+			try {
+				return method.invoke(session, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package org.liveSense.service.gwt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear (HDR style) buckets of microseconds.
+ * <p/>
+ * Every power of two range is divided into {@link #SUB_BUCKETS} linear buckets, so the relative
+ * error of a recorded value is below 1/8 (values below 16 microseconds are exact). Values above
+ * about 70 minutes are recorded in the last bucket.
+ * <p/>
+ * The counters are striped by thread, so concurrent recorders rarely hit the same cache line.
+ * Recording is a few atomic increments, reading builds a {@link Snapshot} by summing the stripes.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final long MAX_VALUE = (1L << 32) - 1;
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	// count, sum of nanos, max of micros at the end of every stripe
+	private static final int COUNT = BUCKETS;
+	private static final int SUM = BUCKETS + 1;
+	private static final int MAX = BUCKETS + 2;
+	// Stripes are padded to separate cache lines
+	private static final int STRIPE_LENGTH = BUCKETS + 3 + 8;
+
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		while (stripes < cpus && stripes < 8) stripes <<= 1;
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		int offset = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH;
+		counters.incrementAndGet(offset + index(Math.min(micros, MAX_VALUE)));
+		counters.incrementAndGet(offset + COUNT);
+		counters.addAndGet(offset + SUM, nanos);
+		long max;
+		while (micros > (max = counters.get(offset + MAX))) {
+			if (counters.compareAndSet(offset + MAX, max, micros)) break;
+		}
+	}
+
+	public Snapshot getSnapshot() {
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		long sum = 0;
+		long max = 0;
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			int offset = stripe * STRIPE_LENGTH;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] += counters.get(offset + i);
+			}
+			count += counters.get(offset + COUNT);
+			sum += counters.get(offset + SUM);
+			max = Math.max(max, counters.get(offset + MAX));
+		}
+		return new Snapshot(buckets, count, sum, max);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counters.length(); i++) {
+			counters.set(i, 0);
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return (shift + 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the highest value recorded in the bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / HALF_SUB_BUCKETS - 1;
+		long subBucket = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Point in time copy of the histogram. The counters are read one by one, so a snapshot
+	 * taken while values are recorded may be off by the values recorded meanwhile.
+	 */
+	public static class Snapshot {
+		private final long[] buckets;
+		private final long count;
+		private final long sumNanos;
+		private final long maxMicros;
+
+		Snapshot(long[] buckets, long count, long sumNanos, long maxMicros) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sumNanos = sumNanos;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean latency in microseconds
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : sumNanos / 1000.0 / count;
+		}
+
+		/**
+		 * @return the maximum latency in microseconds
+		 */
+		public long getMax() {
+			return maxMicros;
+		}
+
+		/**
+		 * @param percentile the percentile (0 - 100)
+		 * @return the latency in microseconds below which the given percent of the latencies are
+		 */
+		public long getPercentile(double percentile) {
+			long total = 0;
+			for (long bucket : buckets) total += bucket;
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total);
+			if (rank < 1) rank = 1;
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank) {
+					return Math.min(highestValue(i), maxMicros);
+				}
+			}
+			return maxMicros;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + Math.round(getMean()) + "us p50=" + getPercentile(50) + "us p90="
+					+ getPercentile(90) + "us p99=" + getPercentile(99) + "us p999=" + getPercentile(99.9) + "us max=" + maxMicros + "us";
+		}
+	}
+}
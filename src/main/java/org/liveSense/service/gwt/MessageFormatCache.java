@@ -0,0 +1,259 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.PropertyResourceBundle;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+/**
+ * Cache of the compiled message formats, keyed by the name of the resource bundle, locale and
+ * message key (or by locale and pattern for the messages not coming from a resource bundle).
+ * <p/>
+ * <code>MessageFormat</code> is not thread safe, so every entry keeps one instance which is
+ * taken by the formatting thread and put back after the formatting. A thread finding the
+ * instance taken formats with a clone of it instead of parsing the pattern again.
+ * <p/>
+ * The resource bundles are identified by their base name and locale (the class name for the
+ * class based resource bundles), the cache does not keep the resource bundles. The messages of resource
+ * bundles without a known name (property resource bundles before Java 8) are not cached.
+ * When the cache is full, new messages are formatted without being cached. The cache is
+ * cleared when any bundle is updated or uninstalled (the resource bundles may come from it).
+ * The cache has to be registered as a bundle listener to receive these events.
+ */
+public class MessageFormatCache implements SynchronousBundleListener {
+
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	/**
+	 * <code>ResourceBundle.getBaseBundleName()</code>, available since Java 8
+	 */
+	private static final Method BASE_BUNDLE_NAME;
+
+	static {
+		Method method = null;
+		try {
+			method = ResourceBundle.class.getMethod("getBaseBundleName");
+		} catch (NoSuchMethodException e) {
+			// Older runtime, only the class based resource bundles are cached
+		}
+		BASE_BUNDLE_NAME = method;
+	}
+
+	private final ConcurrentMap<Key, PooledFormat> formats = new ConcurrentHashMap<Key, PooledFormat>();
+
+	private final ConcurrentMap<Key, Boolean> preloaded = new ConcurrentHashMap<Key, Boolean>();
+
+	private final int maxSize;
+
+	public MessageFormatCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public MessageFormatCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Formats the message of the resource bundle.
+	 *
+	 * @param bundle the resource bundle
+	 * @param locale the locale of the formatting
+	 * @param key the key of the message
+	 * @param args the arguments of the message
+	 * @return the formatted message
+	 * @throws MissingResourceException if there is no such message in the resource bundle
+	 */
+	public String format(ResourceBundle bundle, Locale locale, String key, Object[] args) {
+		String name = getName(bundle);
+		if (name == null) {
+			return newFormat(locale, bundle.getString(key)).format(args, new StringBuffer(), null).toString();
+		}
+		Key k = new Key(name, locale, key);
+		PooledFormat format = formats.get(k);
+		if (format == null) {
+			format = put(k, bundle.getString(key));
+		}
+		return format.format(args);
+	}
+
+	/**
+	 * Formats the pattern.
+	 *
+	 * @param locale the locale of the formatting
+	 * @param pattern the pattern
+	 * @param args the arguments of the pattern
+	 * @return the formatted message
+	 * @throws IllegalArgumentException if the pattern is invalid
+	 */
+	public String formatPattern(Locale locale, String pattern, Object[] args) {
+		Key k = new Key(null, locale, pattern);
+		PooledFormat format = formats.get(k);
+		if (format == null) {
+			format = put(k, pattern);
+		}
+		return format.format(args);
+	}
+
+	/**
+	 * Compiles all the messages of the resource bundle for the locale, only at the first call
+	 * with the name of the resource bundle and locale. Meant to be called at the activation,
+	 * not per request. Invalid patterns are skipped, they fail when they are used.
+	 *
+	 * @param bundle the resource bundle
+	 * @param locale the locale of the formatting
+	 */
+	public void preload(ResourceBundle bundle, Locale locale) {
+		String name = getName(bundle);
+		if (name == null || preloaded.putIfAbsent(new Key(name, locale, null), Boolean.TRUE) != null) {
+			return;
+		}
+		for (Enumeration<String> keys = bundle.getKeys(); keys.hasMoreElements() && formats.size() < maxSize;) {
+			String key = keys.nextElement();
+			Key k = new Key(name, locale, key);
+			if (formats.containsKey(k)) continue;
+			try {
+				Object value = bundle.getObject(key);
+				if (value instanceof String) {
+					put(k, (String) value);
+				}
+			} catch (IllegalArgumentException e) {
+				// Not a valid pattern
+			} catch (MissingResourceException e) {
+				// Removed meanwhile
+			}
+		}
+	}
+
+	/**
+	 * Drops the formats of the resource bundle.
+	 *
+	 * @param bundle the resource bundle
+	 */
+	public void invalidate(ResourceBundle bundle) {
+		String name = getName(bundle);
+		if (name == null) return;
+		for (Key k : formats.keySet()) {
+			if (name.equals(k.name)) formats.remove(k);
+		}
+		for (Key k : preloaded.keySet()) {
+			if (name.equals(k.name)) preloaded.remove(k);
+		}
+	}
+
+	public void clear() {
+		formats.clear();
+		preloaded.clear();
+	}
+
+	public int size() {
+		return formats.size();
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	private PooledFormat put(Key key, String pattern) {
+		PooledFormat format = new PooledFormat(newFormat(key.locale, pattern));
+		if (formats.size() >= maxSize) {
+			// Full, the format is used only by this call
+			return format;
+		}
+		PooledFormat previous = formats.putIfAbsent(key, format);
+		return previous != null ? previous : format;
+	}
+
+	private static MessageFormat newFormat(Locale locale, String pattern) {
+		return locale != null ? new MessageFormat(pattern, locale) : new MessageFormat(pattern);
+	}
+
+	/**
+	 * @param bundle the resource bundle
+	 * @return the base name and locale of the resource bundle, the class name of a class based
+	 * resource bundle or <code>null</code> if the resource bundle has no known name
+	 */
+	private static String getName(ResourceBundle bundle) {
+		if (bundle == null) return null;
+		if (BASE_BUNDLE_NAME != null) {
+			try {
+				String name = (String) BASE_BUNDLE_NAME.invoke(bundle);
+				// The locale of the resource bundle found for the base name, the messages differ by it
+				if (name != null) return name + "_" + bundle.getLocale();
+			} catch (Exception e) {
+				// Fall back to the class name
+			}
+		}
+		return bundle instanceof PropertyResourceBundle ? null : bundle.getClass().getName();
+	}
+
+	private static final class PooledFormat {
+		final MessageFormat prototype;
+		final AtomicReference<MessageFormat> free;
+
+		PooledFormat(MessageFormat prototype) {
+			this.prototype = prototype;
+			this.free = new AtomicReference<MessageFormat>((MessageFormat) prototype.clone());
+		}
+
+		String format(Object[] args) {
+			MessageFormat format = free.getAndSet(null);
+			if (format == null) {
+				format = (MessageFormat) prototype.clone();
+			}
+			try {
+				return format.format(args, new StringBuffer(), null).toString();
+			} finally {
+				free.set(format);
+			}
+		}
+	}
+
+	private static final class Key {
+		final String name;
+		final Locale locale;
+		final String key;
+		final int hash;
+
+		Key(String name, Locale locale, String key) {
+			this.name = name;
+			this.locale = locale;
+			this.key = key;
+			int h = name != null ? name.hashCode() : 0;
+			h = 31 * h + (locale != null ? locale.hashCode() : 0);
+			h = 31 * h + (key != null ? key.hashCode() : 0);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			return (name == null ? other.name == null : name.equals(other.name))
+					&& (locale == null ? other.locale == null : locale.equals(other.locale))
+					&& (key == null ? other.key == null : key.equals(other.key));
+		}
+	}
+}
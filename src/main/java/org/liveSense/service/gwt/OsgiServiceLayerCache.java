@@ -0,0 +1,285 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+
+import com.google.web.bindery.requestfactory.server.ServiceLayerDecorator;
+import com.google.web.bindery.requestfactory.shared.BaseProxy;
+import com.google.web.bindery.requestfactory.shared.Locator;
+import com.google.web.bindery.requestfactory.shared.RequestContext;
+import com.google.web.bindery.requestfactory.shared.RequestFactory;
+import com.google.web.bindery.requestfactory.shared.ServiceLocator;
+
+/**
+ * OSGi aware replacement of google's ServiceLayerCache. It has to be the first decorator
+ * of the service layer. The reflective resolutions of the layers below are memoized and
+ * tagged with the bundles of the resolved classes, so an update, uninstall or refresh
+ * of a bundle drops only the entries of that bundle.
+ * <p/>
+ * Google's cache is disabled (gwt.rf.ServiceLayerCache=false), because it is JVM wide and
+ * never invalidated.
+ */
+public class OsgiServiceLayerCache extends ServiceLayerDecorator implements SynchronousBundleListener {
+
+	private static final Object NULL = new Object();
+
+	private final BundleScopedCache<CacheKey, Object> cache = new BundleScopedCache<CacheKey, Object>();
+
+	public void bundleChanged(BundleEvent event) {
+		cache.bundleChanged(event);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public Method getGetter(Class<?> domainType, String property) {
+		CacheKey key = new CacheKey("getGetter", domainType, property);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Method method = super.getGetter(domainType, property);
+			value = store(key, generation, method, domainType, declaringClass(method));
+		}
+		return (Method) unwrap(value);
+	}
+
+	@Override
+	public Method getSetter(Class<?> domainType, String property) {
+		CacheKey key = new CacheKey("getSetter", domainType, property);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Method method = super.getSetter(domainType, property);
+			value = store(key, generation, method, domainType, declaringClass(method));
+		}
+		return (Method) unwrap(value);
+	}
+
+	@Override
+	public Class<?> getIdType(Class<?> domainType) {
+		CacheKey key = new CacheKey("getIdType", domainType);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<?> idType = super.getIdType(domainType);
+			value = store(key, generation, idType, domainType, idType);
+		}
+		return (Class<?>) unwrap(value);
+	}
+
+	@Override
+	public Type getRequestReturnType(Method contextMethod) {
+		CacheKey key = new CacheKey("getRequestReturnType", contextMethod);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			value = store(key, generation, super.getRequestReturnType(contextMethod), contextMethod.getDeclaringClass());
+		}
+		return (Type) unwrap(value);
+	}
+
+	@Override
+	public boolean requiresServiceLocator(Method contextMethod, Method domainMethod) {
+		CacheKey key = new CacheKey("requiresServiceLocator", contextMethod, domainMethod);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			value = store(key, generation, super.requiresServiceLocator(contextMethod, domainMethod), declaringClass(contextMethod), declaringClass(domainMethod));
+		}
+		return (Boolean) value;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends BaseProxy> resolveClass(String typeToken) {
+		CacheKey key = new CacheKey("resolveClass", typeToken);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends BaseProxy> clazz = super.resolveClass(typeToken);
+			value = store(key, generation, clazz, clazz);
+		}
+		return (Class<? extends BaseProxy>) unwrap(value);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> Class<? extends T> resolveClientType(Class<?> domainClass, Class<T> clientType, boolean required) {
+		CacheKey key = new CacheKey("resolveClientType", domainClass, clientType, required);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends T> clazz = super.resolveClientType(domainClass, clientType, required);
+			value = store(key, generation, clazz, domainClass, clientType, clazz);
+		}
+		return (Class<? extends T>) unwrap(value);
+	}
+
+	@Override
+	public Class<?> resolveDomainClass(Class<?> clazz) {
+		CacheKey key = new CacheKey("resolveDomainClass", clazz);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<?> domainClass = super.resolveDomainClass(clazz);
+			value = store(key, generation, domainClass, clazz, domainClass);
+		}
+		return (Class<?>) unwrap(value);
+	}
+
+	@Override
+	public Method resolveDomainMethod(String operation) {
+		CacheKey key = new CacheKey("resolveDomainMethod", operation);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Method method = super.resolveDomainMethod(operation);
+			value = store(key, generation, method, declaringClass(method));
+		}
+		return (Method) unwrap(value);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends Locator<?, ?>> resolveLocator(Class<?> domainType) {
+		CacheKey key = new CacheKey("resolveLocator", domainType);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends Locator<?, ?>> locator = super.resolveLocator(domainType);
+			value = store(key, generation, locator, domainType, locator);
+		}
+		return (Class<? extends Locator<?, ?>>) unwrap(value);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends RequestContext> resolveRequestContext(String requestContextToken) {
+		CacheKey key = new CacheKey("resolveRequestContext", requestContextToken);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends RequestContext> requestContext = super.resolveRequestContext(requestContextToken);
+			value = store(key, generation, requestContext, requestContext);
+		}
+		return (Class<? extends RequestContext>) unwrap(value);
+	}
+
+	@Override
+	public Method resolveRequestContextMethod(String operation) {
+		CacheKey key = new CacheKey("resolveRequestContextMethod", operation);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Method method = super.resolveRequestContextMethod(operation);
+			value = store(key, generation, method, declaringClass(method));
+		}
+		return (Method) unwrap(value);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends RequestFactory> resolveRequestFactory(String token) {
+		CacheKey key = new CacheKey("resolveRequestFactory", token);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends RequestFactory> requestFactory = super.resolveRequestFactory(token);
+			value = store(key, generation, requestFactory, requestFactory);
+		}
+		return (Class<? extends RequestFactory>) unwrap(value);
+	}
+
+	@Override
+	public Class<?> resolveServiceClass(Class<? extends RequestContext> requestContextClass) {
+		CacheKey key = new CacheKey("resolveServiceClass", requestContextClass);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<?> serviceClass = super.resolveServiceClass(requestContextClass);
+			value = store(key, generation, serviceClass, requestContextClass, serviceClass);
+		}
+		return (Class<?>) unwrap(value);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends ServiceLocator> resolveServiceLocator(Class<? extends RequestContext> requestContext) {
+		CacheKey key = new CacheKey("resolveServiceLocator", requestContext);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			Class<? extends ServiceLocator> locator = super.resolveServiceLocator(requestContext);
+			value = store(key, generation, locator, requestContext, locator);
+		}
+		return (Class<? extends ServiceLocator>) unwrap(value);
+	}
+
+	@Override
+	public String resolveTypeToken(Class<? extends BaseProxy> proxyType) {
+		CacheKey key = new CacheKey("resolveTypeToken", proxyType);
+		Object value = cache.get(key);
+		if (value == null) {
+			long generation = cache.getGeneration();
+			value = store(key, generation, super.resolveTypeToken(proxyType), proxyType);
+		}
+		return (String) unwrap(value);
+	}
+
+	/**
+	 * Stores the resolved value. Unresolved (<code>null</code>) values are only stored
+	 * when they depend on a class, otherwise nothing would invalidate them when the
+	 * missing class is deployed. The value is not stored if a bundle changed since the
+	 * given generation of the cache.
+	 */
+	private Object store(CacheKey key, long generation, Object value, Class<?>... owners) {
+		if (value == null) {
+			boolean owned = false;
+			for (Class<?> owner : owners) {
+				owned |= owner != null;
+			}
+			if (!owned) return NULL;
+			value = NULL;
+		}
+		return cache.put(key, value, generation, owners);
+	}
+
+	private static Object unwrap(Object value) {
+		return value == NULL ? null : value;
+	}
+
+	private static Class<?> declaringClass(Method method) {
+		return method != null ? method.getDeclaringClass() : null;
+	}
+
+	private static final class CacheKey {
+		private final String method;
+		private final Object[] args;
+		private final int hash;
+
+		CacheKey(String method, Object... args) {
+			this.method = method;
+			this.args = args;
+			this.hash = 31 * method.hashCode() + Arrays.hashCode(args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof CacheKey)) return false;
+			CacheKey other = (CacheKey) obj;
+			return hash == other.hash && method.equals(other.method) && Arrays.equals(args, other.args);
+		}
+	}
+}
@@ -1,25 +1,48 @@
 package org.liveSense.service.gwt;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.Set;
 
 import javax.validation.ConstraintViolation;
 
 import org.liveSense.core.ClassInstanceCache;
+import org.liveSense.service.gwt.exceptions.ServiceUnavailableException;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
 
 import com.google.web.bindery.requestfactory.server.ServiceLayerDecorator;
 import com.google.web.bindery.requestfactory.shared.Locator;
 import com.google.web.bindery.requestfactory.shared.RequestContext;
 import com.google.web.bindery.requestfactory.shared.ServiceLocator;
 
-public class OsgiServiceLayerDecorator extends ServiceLayerDecorator {
+public class OsgiServiceLayerDecorator extends ServiceLayerDecorator implements SynchronousBundleListener {
+
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
 
 	ClassLoader classLoader = null;
 	ServiceLocator serviceLocator = null;
 	ClassInstanceCache instanceCache = null;
 
+	/**
+	 * Invokers of the domain methods. They are dropped when the bundle of the method goes away.
+	 */
+	private final BundleScopedCache<Method, MethodHandle> invokers = new BundleScopedCache<Method, MethodHandle>();
+
+	/**
+	 * Locator instances by locator class. They are dropped when the bundle of the locator goes away.
+	 */
+	private final BundleScopedCache<Class<?>, Object> locators = new BundleScopedCache<Class<?>, Object>();
+
+	/**
+	 * Service instances by request context. They are dropped when the bundle of the request
+	 * context or of the service goes away, so the service class is resolved again.
+	 */
+	private final BundleScopedCache<Class<?>, Object> serviceInstances = new BundleScopedCache<Class<?>, Object>();
+
 	public OsgiServiceLayerDecorator(ClassLoader classLoader, ServiceLocator serviceLocator, ClassInstanceCache instanceCache) {
 		this.classLoader = classLoader;
 		this.serviceLocator = serviceLocator;
@@ -35,27 +58,66 @@ public class OsgiServiceLayerDecorator extends ServiceLayerDecorator {
 		return classLoader;
 	}
 
+	public void bundleChanged(BundleEvent event) {
+		invokers.bundleChanged(event);
+		locators.bundleChanged(event);
+		serviceInstances.bundleChanged(event);
+	}
+
+	/**
+	 * Invokes the domain method, limited by the concurrency limiter of the domain service if it
+	 * is available. The exceptions of the method fail the request (like before), the rejections
+	 * of the limiter are reported to the client as the failure of the invocation.
+	 */
 	@Override
 	public Object invoke(Method domainMethod, Object... args) {
-		Throwable ex;
+		ServiceCallContext context = ServiceCallContext.current();
+		CallMetrics metrics = context != null ? context.getCallMetrics() : null;
+		ConcurrencyLimiter limiter = context != null ? context.getConcurrencyLimiter() : null;
+		MethodHandle invoker;
 		try {
-			domainMethod.setAccessible(true);
-			if (Modifier.isStatic(domainMethod.getModifiers())) {
-				return domainMethod.invoke(null, args);
-			} else {
-				Object[] realArgs = new Object[args.length - 1];
-				System.arraycopy(args, 1, realArgs, 0, realArgs.length);
-				return domainMethod.invoke(args[0], realArgs);
-			}
-		} catch (IllegalArgumentException e) {
-			ex = e;
+			invoker = getInvoker(domainMethod);
 		} catch (IllegalAccessException e) {
-			ex = e;
-		} catch (InvocationTargetException e) {
-			//return report(e);
-			ex = e.getTargetException();
+			return die(e, "Could not invoke method %s", domainMethod.getDeclaringClass().getName()+"."+domainMethod.getName());
+		}
+		ConcurrencyLimiter.Permit permit = null;
+		if (limiter != null) {
+			permit = limiter.tryAcquire(domainMethod.getDeclaringClass().getName());
+			if (permit == null) {
+				return report(new InvocationTargetException(new ServiceUnavailableException("Service is overloaded, retry later", limiter.getRetryAfter(), false)));
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			return (Object) invoker.invokeExact(args);
+		} catch (Throwable e) {
+			return die(e, "Could not invoke method %s", domainMethod.getDeclaringClass().getName()+"."+domainMethod.getName());
+		} finally {
+			if (permit != null) {
+				permit.release();
+			}
+			if (metrics != null) {
+				metrics.record(domainMethod.getDeclaringClass().getName() + "." + domainMethod.getName(),
+						CallMetrics.PHASE_INVOKE, System.nanoTime() - start);
+			}
 		}
-		return die(ex, "Could not invoke method %s", args[0].getClass().getName()+"."+domainMethod.getName());
+	}
+
+	/**
+	 * Returns the invoker of the method. The invoker takes the arguments as an array: the
+	 * receiver is the first element for instance methods, so the array is spread as it is,
+	 * there is no need to copy the arguments.
+	 */
+	private MethodHandle getInvoker(Method domainMethod) throws IllegalAccessException {
+		MethodHandle invoker = invokers.get(domainMethod);
+		if (invoker == null) {
+			long generation = invokers.getGeneration();
+			domainMethod.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(domainMethod);
+			invoker = handle.asSpreader(Object[].class, handle.type().parameterCount()).asType(INVOKER_TYPE);
+			invoker = invokers.put(domainMethod, invoker, generation, domainMethod.getDeclaringClass());
+		}
+		return invoker;
 	}
 
 
@@ -67,19 +129,38 @@ public class OsgiServiceLayerDecorator extends ServiceLayerDecorator {
 
 	@Override
 	public Object createServiceInstance(Class<? extends RequestContext> requestContext) {
-		//		We are in OSGi context we use OSGiServiceLocator
-		//	    Class<? extends ServiceLocator> locatorType = getTop().resolveServiceLocator(requestContext);
-		//	    ServiceLocator locator = getTop().createServiceLocator(locatorType);
-		Class<?> serviceClass = getTop().resolveServiceClass(requestContext);
-		//	    return locator.getInstance(serviceClass);
-		return serviceLocator.getInstance(serviceClass);
+		Object ret = serviceInstances.get(requestContext);
+		if (ret == null) {
+			long generation = serviceInstances.getGeneration();
+			//		We are in OSGi context we use OSGiServiceLocator
+			//	    Class<? extends ServiceLocator> locatorType = getTop().resolveServiceLocator(requestContext);
+			//	    ServiceLocator locator = getTop().createServiceLocator(locatorType);
+			Class<?> serviceClass = getTop().resolveServiceClass(requestContext);
+			//	    return locator.getInstance(serviceClass);
+			ret = serviceLocator.getInstance(serviceClass);
+			if (ret != null) {
+				ret = serviceInstances.put(requestContext, ret, generation, requestContext, serviceClass);
+			}
+		}
+		return ret;
 	}
 
+	/**
+	 * Returns the locator instance of the instance cache. The locator is not instantiated
+	 * reflectively by the next layer.
+	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends Locator<?, ?>> T createLocator(Class<T> clazz) {
-		// Searching for locator and setting 
-		super.createLocator(clazz);
-		return (T) instanceCache.getInstance(clazz);
+		Object ret = locators.get(clazz);
+		if (ret == null) {
+			long generation = locators.getGeneration();
+			ret = instanceCache.getInstance(clazz);
+			if (ret != null) {
+				ret = locators.put(clazz, ret, generation, clazz);
+			}
+		}
+		return (T) ret;
 	}
 
 	 @Override
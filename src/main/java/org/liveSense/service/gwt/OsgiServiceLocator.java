@@ -44,7 +44,7 @@ public class OsgiServiceLocator implements ServiceLocator {
 	@Override
 	public Object getInstance(Class<?> clazz) {
 		if (clazz != null) {
-			return getInstance(clazz.getName());
+			return instanceCache.getInstance(clazz);
 		}
 		return null;
 	}
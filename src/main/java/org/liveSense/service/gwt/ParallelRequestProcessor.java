@@ -0,0 +1,290 @@
+package org.liveSense.service.gwt;
+
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.web.bindery.autobean.shared.AutoBean;
+import com.google.web.bindery.autobean.shared.AutoBeanCodex;
+import com.google.web.bindery.autobean.shared.Splittable;
+import com.google.web.bindery.autobean.vm.AutoBeanFactorySource;
+import com.google.web.bindery.requestfactory.server.ServiceLayer;
+import com.google.web.bindery.requestfactory.server.SimpleRequestProcessor;
+import com.google.web.bindery.requestfactory.shared.BaseProxy;
+import com.google.web.bindery.requestfactory.shared.InstanceRequest;
+import com.google.web.bindery.requestfactory.shared.messages.InvocationMessage;
+import com.google.web.bindery.requestfactory.shared.messages.MessageFactory;
+import com.google.web.bindery.requestfactory.shared.messages.OperationMessage;
+import com.google.web.bindery.requestfactory.shared.messages.RequestMessage;
+import com.google.web.bindery.requestfactory.shared.messages.ResponseMessage;
+import com.google.web.bindery.requestfactory.shared.messages.ViolationMessage;
+
+/**
+ * Request processor running the read-only invocations of a RequestFactory request at the same
+ * time. <code>SimpleRequestProcessor</code> invokes the methods of a request one after the other,
+ * this processor splits the request into parts:
+ * <ul>
+ * <li>every invocation of a run of (at least two) read-only invocations (see {@link ReadOnly}) is
+ * a part on its own, the parts of the run are processed in parallel on the call executor,</li>
+ * <li>a run of other invocations is one part, processed after the parts before it are done, so
+ * the writes are kept in order (and the reads after them see them).</li>
+ * </ul>
+ * The parts are processed by the wrapped processor and their responses are merged into one
+ * response in the order of the invocations. Requests with entity operations (the changes of
+ * the proxies) are processed as a whole, the invocations depend on the applied operations.
+ * <p/>
+ * Only the invocations whose arguments and result carry no proxies run in parallel. The parts
+ * are processed separately, so the synthetic ids of the value proxies would collide in the
+ * merged response and the operations of an entity referenced by several parts would be
+ * repeated; an invocation with proxies is processed with its neighbours like a write.
+ * <p/>
+ * The tasks run in other threads, the servlet has to carry the context of the call over by
+ * {@link #inCallContext(Callable)}.
+ */
+public abstract class ParallelRequestProcessor {
+
+	private static final MessageFactory FACTORY = AutoBeanFactorySource.create(MessageFactory.class);
+
+	private final SimpleRequestProcessor processor;
+
+	private final ServiceLayer serviceLayer;
+
+	/**
+	 * Read-only methods (<code>class.method</code>) and classes by configuration
+	 */
+	private volatile Set<String> readOnlyNames = Collections.emptySet();
+
+	public ParallelRequestProcessor(SimpleRequestProcessor processor, ServiceLayer serviceLayer) {
+		this.processor = processor;
+		this.serviceLayer = serviceLayer;
+	}
+
+	/**
+	 * Wraps a task to run in the context of the current call.
+	 *
+	 * @param task the task
+	 * @return the task running in the context of the current call in any thread
+	 */
+	protected abstract <T> Callable<T> inCallContext(Callable<T> task);
+
+	/**
+	 * Marks service methods and service classes read-only without the annotation.
+	 *
+	 * @param readOnlyNames names of the methods (<code>className.methodName</code>) and classes
+	 */
+	public void setReadOnlyNames(Set<String> readOnlyNames) {
+		this.readOnlyNames = readOnlyNames;
+	}
+
+	/**
+	 * @param payload the payload sent by the client
+	 * @param executor the executor of the parallel parts, the request is processed sequentially if it is <code>null</code>
+	 * @return the payload to return to the client
+	 */
+	public String process(String payload, CallExecutor executor) {
+		if (executor == null) {
+			return processor.process(payload);
+		}
+		RequestMessage request = AutoBeanCodex.decode(FACTORY, RequestMessage.class, payload).as();
+		List<InvocationMessage> invocations = request.getInvocations();
+		List<OperationMessage> operations = request.getOperations();
+		if (invocations == null || invocations.size() < 2 || (operations != null && !operations.isEmpty())
+				|| request.getRequestFactory() == null) {
+			return processor.process(payload);
+		}
+
+		boolean[] readOnly = new boolean[invocations.size()];
+		try {
+			serviceLayer.resolveRequestFactory(request.getRequestFactory());
+			for (int i = 0; i < readOnly.length; i++) {
+				String operation = invocations.get(i).getOperation();
+				readOnly[i] = isReadOnly(operation) && !carriesProxies(operation);
+			}
+		} catch (RuntimeException e) {
+			// Unknown request factory or operation, reported by the processor
+			return processor.process(payload);
+		}
+		// A read-only invocation without read-only neighbours has nothing to run in parallel with
+		boolean[] parallel = new boolean[readOnly.length];
+		boolean any = false;
+		for (int i = 0; i < readOnly.length; i++) {
+			parallel[i] = readOnly[i] && ((i > 0 && readOnly[i - 1]) || (i + 1 < readOnly.length && readOnly[i + 1]));
+			any |= parallel[i];
+		}
+		if (!any) {
+			return processor.process(payload);
+		}
+
+		List<ResponseMessage> responses = new ArrayList<ResponseMessage>(invocations.size());
+		int start = 0;
+		while (start < invocations.size()) {
+			int end = start + 1;
+			while (end < invocations.size() && parallel[end] == parallel[start]) {
+				end++;
+			}
+			List<InvocationMessage> run = invocations.subList(start, end);
+			if (parallel[start]) {
+				processParallel(request, run, executor, responses);
+			} else {
+				responses.add(processPart(request, run));
+			}
+			start = end;
+		}
+		return merge(responses);
+	}
+
+	private void processParallel(RequestMessage request, List<InvocationMessage> run, CallExecutor executor,
+			List<ResponseMessage> responses) {
+		List<Future<ResponseMessage>> futures = new ArrayList<Future<ResponseMessage>>(run.size() - 1);
+		for (int i = 1; i < run.size(); i++) {
+			futures.add(executor.submit(inCallContext(new Part(request, run.subList(i, i + 1)))));
+		}
+		boolean done = false;
+		try {
+			responses.add(inCallContext(new Part(request, run.subList(0, 1))).call());
+			for (Future<ResponseMessage> future : futures) {
+				responses.add(future.get());
+			}
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the invocations", e);
+		} catch (ExecutionException e) {
+			throw rethrow(e.getCause());
+		} catch (Exception e) {
+			throw rethrow(e);
+		} finally {
+			if (!done) {
+				for (Future<ResponseMessage> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+	}
+
+	private ResponseMessage processPart(RequestMessage request, List<InvocationMessage> invocations) {
+		AutoBean<RequestMessage> bean = FACTORY.request();
+		bean.as().setRequestFactory(request.getRequestFactory());
+		bean.as().setInvocations(new ArrayList<InvocationMessage>(invocations));
+		String response = processor.process(AutoBeanCodex.encode(bean).getPayload());
+		return AutoBeanCodex.decode(FACTORY, ResponseMessage.class, response).as();
+	}
+
+	/**
+	 * Merges the responses of the parts. A general failure of a part fails the whole request,
+	 * like a general failure of <code>SimpleRequestProcessor</code> does.
+	 */
+	private String merge(List<ResponseMessage> responses) {
+		List<Splittable> invocationResults = new ArrayList<Splittable>();
+		List<Boolean> statusCodes = new ArrayList<Boolean>();
+		List<OperationMessage> operations = new ArrayList<OperationMessage>();
+		List<ViolationMessage> violations = new ArrayList<ViolationMessage>();
+		for (ResponseMessage response : responses) {
+			if (response.getGeneralFailure() != null) {
+				AutoBean<ResponseMessage> failure = FACTORY.response();
+				failure.as().setGeneralFailure(response.getGeneralFailure());
+				return AutoBeanCodex.encode(failure).getPayload();
+			}
+			if (response.getInvocationResults() != null) invocationResults.addAll(response.getInvocationResults());
+			if (response.getStatusCodes() != null) statusCodes.addAll(response.getStatusCodes());
+			if (response.getOperations() != null) operations.addAll(response.getOperations());
+			if (response.getViolations() != null) violations.addAll(response.getViolations());
+		}
+		AutoBean<ResponseMessage> bean = FACTORY.response();
+		ResponseMessage ret = bean.as();
+		if (!invocationResults.isEmpty()) {
+			ret.setInvocationResults(invocationResults);
+			ret.setStatusCodes(statusCodes);
+		}
+		if (!operations.isEmpty()) ret.setOperations(operations);
+		if (!violations.isEmpty()) ret.setViolations(violations);
+		return AutoBeanCodex.encode(bean).getPayload();
+	}
+
+	private boolean isReadOnly(String operation) {
+		Method domainMethod = serviceLayer.resolveDomainMethod(operation);
+		if (domainMethod == null) {
+			return false;
+		}
+		Class<?> serviceClass = domainMethod.getDeclaringClass();
+		if (domainMethod.isAnnotationPresent(ReadOnly.class) || serviceClass.isAnnotationPresent(ReadOnly.class)) {
+			return true;
+		}
+		Set<String> names = readOnlyNames;
+		return !names.isEmpty() && (names.contains(serviceClass.getName() + "." + domainMethod.getName()) || names.contains(serviceClass.getName()));
+	}
+
+	/**
+	 * @return true if the invocation is an instance request or its arguments or result may hold proxies
+	 */
+	private boolean carriesProxies(String operation) {
+		Method contextMethod = serviceLayer.resolveRequestContextMethod(operation);
+		if (contextMethod == null || InstanceRequest.class.isAssignableFrom(contextMethod.getReturnType())) {
+			return true;
+		}
+		for (Type parameter : contextMethod.getGenericParameterTypes()) {
+			if (isProxyType(parameter)) return true;
+		}
+		return isProxyType(serviceLayer.getRequestReturnType(contextMethod));
+	}
+
+	private static boolean isProxyType(Type type) {
+		if (type instanceof Class<?>) {
+			Class<?> clazz = (Class<?>) type;
+			if (clazz.isArray()) return isProxyType(clazz.getComponentType());
+			// Object and the raw collections can hold proxies
+			return BaseProxy.class.isAssignableFrom(clazz) || clazz == Object.class || clazz.getTypeParameters().length > 0;
+		} else if (type instanceof ParameterizedType) {
+			ParameterizedType parameterized = (ParameterizedType) type;
+			if (BaseProxy.class.isAssignableFrom((Class<?>) parameterized.getRawType())) return true;
+			for (Type argument : parameterized.getActualTypeArguments()) {
+				if (isProxyType(argument)) return true;
+			}
+			return false;
+		} else if (type instanceof GenericArrayType) {
+			return isProxyType(((GenericArrayType) type).getGenericComponentType());
+		} else if (type instanceof WildcardType) {
+			for (Type bound : ((WildcardType) type).getUpperBounds()) {
+				if (isProxyType(bound)) return true;
+			}
+			return false;
+		}
+		// Type variables
+		return true;
+	}
+
+	private static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		} else if (e instanceof Error) {
+			throw (Error) e;
+		}
+		throw new IllegalStateException("Invocation failed", e);
+	}
+
+	/**
+	 * A part of the request
+	 */
+	private final class Part implements Callable<ResponseMessage> {
+		private final RequestMessage request;
+		private final List<InvocationMessage> invocations;
+
+		Part(RequestMessage request, List<InvocationMessage> invocations) {
+			this.request = request;
+			this.invocations = invocations;
+		}
+
+		public ResponseMessage call() {
+			return processPart(request, invocations);
+		}
+	}
+}
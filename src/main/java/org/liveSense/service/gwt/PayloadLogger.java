@@ -0,0 +1,401 @@
+package org.liveSense.service.gwt;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Payload logger of the GWT servlets.
+ * <p/>
+ * The request thread only checks the level and the sampling and puts the references of the
+ * message parts into a lock-free ring buffer, the messages are built and written by a
+ * background thread. When the logger is disabled nothing is allocated, when the buffer is
+ * full the event is dropped (and counted) instead of blocking the request.
+ * <p/>
+ * The payloads are truncated by the request thread, so the buffer keeps only the logged part
+ * of them. The buffer is limited by the number of buffered payload characters too
+ * ({@link #MAX_BUFFERED_CHARS}), so a slow appender can not pin the large payloads in the heap.
+ * <p/>
+ * Info events are sampled: every Nth call (on average) is logged, where N is configured per
+ * method name, per user or by default. Errors are always logged.
+ * <p/>
+ * The writer parks while the buffer is empty and is unparked by the next event. When the buffer
+ * is resized, the writer writes the events of the old buffer before it switches to the new one
+ * (the events put into the old buffer after that are written by the threads putting them).
+ * After {@link #shutdown()} no writer is started, the events are written by the request threads
+ * until the logger is configured again.
+ */
+public class PayloadLogger {
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * Maximum number of payload characters in the buffer, an event exceeding it is dropped
+	 * unless the buffer is empty
+	 */
+	private static final long MAX_BUFFERED_CHARS = 8 * 1024 * 1024;
+
+	private static volatile Settings settings = new Settings(0, 1, Collections.<String, Integer>emptyMap(), Collections.<String, Integer>emptyMap());
+
+	private static volatile RingBuffer buffer = new RingBuffer(DEFAULT_BUFFER_SIZE);
+
+	private static volatile Writer writer;
+
+	/**
+	 * Set by {@link #shutdown()}, cleared by {@link #configure(int, int, int, Map, Map)}
+	 */
+	private static boolean stopped;
+
+	private final Logger logger;
+
+	public PayloadLogger(Logger logger) {
+		this.logger = logger;
+	}
+
+	/**
+	 * Configures all the payload loggers.
+	 *
+	 * @param truncateLength maximum length of a logged payload, 0 means no truncation
+	 * @param bufferSize size of the ring buffer (rounded up to power of two)
+	 * @param sampleRate default sample rate, 1 logs every call, 0 logs nothing
+	 * @param userSampleRates sample rates by user
+	 * @param methodSampleRates sample rates by service method name
+	 */
+	public static synchronized void configure(int truncateLength, int bufferSize, int sampleRate,
+			Map<String, Integer> userSampleRates, Map<String, Integer> methodSampleRates) {
+		settings = new Settings(truncateLength, sampleRate, userSampleRates, methodSampleRates);
+		stopped = false;
+		if (buffer.capacity() != RingBuffer.capacityFor(bufferSize)) {
+			RingBuffer old = buffer;
+			buffer = new RingBuffer(bufferSize);
+			Writer w = writer;
+			if (w != null) {
+				// Switches to the new buffer when the old one is written
+				LockSupport.unpark(w);
+			} else {
+				drain(old);
+			}
+		}
+	}
+
+	/**
+	 * Stops the background writer, the buffered events are written before it stops. No writer
+	 * is started until the logger is configured again, the events are written by the threads
+	 * logging them.
+	 */
+	public static synchronized void shutdown() {
+		stopped = true;
+		Writer w = writer;
+		if (w != null) {
+			w.running = false;
+			LockSupport.unpark(w);
+			try {
+				w.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		drain(buffer);
+	}
+
+	/**
+	 * @return the number of events dropped because the buffer was full
+	 */
+	public static long getDroppedCount() {
+		return buffer.dropped.get();
+	}
+
+	public boolean isInfoEnabled(String user, String method) {
+		return logger.isInfoEnabled() && settings.sample(user, method);
+	}
+
+	/**
+	 * @return true if sample rates are configured by method, so the callers whose method is
+	 * known only after decoding the request have to find it out
+	 */
+	public boolean isSampledByMethod() {
+		return logger.isInfoEnabled() && !settings.methodSampleRates.isEmpty();
+	}
+
+	/**
+	 * @param methods the methods invoked by a call
+	 * @return the method whose sample rate applies to the call: the first one with a configured
+	 * sample rate, otherwise the first one, or <code>null</code> if there is none
+	 */
+	public String getSampledMethod(List<String> methods) {
+		Map<String, Integer> rates = settings.methodSampleRates;
+		for (String method : methods) {
+			if (rates.containsKey(method)) return method;
+		}
+		return methods.isEmpty() ? null : methods.get(0);
+	}
+
+	public boolean isErrorEnabled() {
+		return logger.isErrorEnabled();
+	}
+
+	public void info(String direction, String phase, String user, String method, String label, String payload) {
+		if (isInfoEnabled(user, method)) {
+			Settings s = settings;
+			publish(new Event(this, false, direction, phase, user, label, s.truncate(payload), null, null, null));
+		}
+	}
+
+	public void error(String direction, String phase, String user, String label, String payload, Throwable throwable) {
+		if (isErrorEnabled()) {
+			Settings s = settings;
+			publish(new Event(this, true, direction, phase, user, label, s.truncate(payload), null, null, throwable));
+		}
+	}
+
+	public void error(String direction, String phase, String user, String label, String payload, String label2, String payload2, Throwable throwable) {
+		if (isErrorEnabled()) {
+			Settings s = settings;
+			publish(new Event(this, true, direction, phase, user, label, s.truncate(payload), label2, s.truncate(payload2), throwable));
+		}
+	}
+
+	private static void publish(Event event) {
+		RingBuffer b = buffer;
+		if (!b.offer(event)) {
+			return;
+		}
+		Writer w = writer;
+		if (w == null) {
+			w = startWriter();
+		}
+		if (w == null || !w.running || b != buffer) {
+			// Stopped, or the buffer was replaced and the writer may have left it
+			drain(b);
+		} else if (w.parked) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	private static synchronized Writer startWriter() {
+		if (writer == null && !stopped) {
+			Writer w = new Writer(buffer);
+			w.start();
+			writer = w;
+		}
+		return writer;
+	}
+
+	/**
+	 * Writes the events of the buffer in the current thread.
+	 */
+	private static void drain(RingBuffer b) {
+		Event event;
+		while ((event = b.poll()) != null) {
+			write(event);
+		}
+	}
+
+	private static void write(Event event) {
+		try {
+			event.write();
+		} catch (Throwable th) {
+			// The writer must survive appender failures
+		}
+	}
+
+	private static final class Settings {
+		final int truncateLength;
+		final int sampleRate;
+		final Map<String, Integer> userSampleRates;
+		final Map<String, Integer> methodSampleRates;
+
+		Settings(int truncateLength, int sampleRate, Map<String, Integer> userSampleRates, Map<String, Integer> methodSampleRates) {
+			this.truncateLength = truncateLength;
+			this.sampleRate = sampleRate;
+			this.userSampleRates = userSampleRates;
+			this.methodSampleRates = methodSampleRates;
+		}
+
+		boolean sample(String user, String method) {
+			Integer rate = method != null ? methodSampleRates.get(method) : null;
+			if (rate == null && user != null) {
+				rate = userSampleRates.get(user);
+			}
+			int n = rate != null ? rate : sampleRate;
+			if (n <= 0) return false;
+			return n == 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+		}
+
+		String truncate(String payload) {
+			if (payload == null || truncateLength <= 0 || payload.length() <= truncateLength) return payload;
+			return payload.substring(0, truncateLength) + "... (" + payload.length() + " chars)";
+		}
+	}
+
+	private static final class Event {
+		final PayloadLogger target;
+		final boolean error;
+		final String direction;
+		final String phase;
+		final String user;
+		final String label;
+		final String payload;
+		final String label2;
+		final String payload2;
+		final Throwable throwable;
+		final int chars;
+
+		Event(PayloadLogger target, boolean error, String direction, String phase, String user,
+				String label, String payload, String label2, String payload2, Throwable throwable) {
+			this.target = target;
+			this.error = error;
+			this.direction = direction;
+			this.phase = phase;
+			this.user = user;
+			this.label = label;
+			this.payload = payload;
+			this.label2 = label2;
+			this.payload2 = payload2;
+			this.throwable = throwable;
+			this.chars = (payload != null ? payload.length() : 0) + (payload2 != null ? payload2.length() : 0);
+		}
+
+		/**
+		 * Writes the event, the payloads are truncated when the event is created
+		 */
+		void write() {
+			StringBuilder sb = new StringBuilder(128 + chars);
+			sb.append(direction).append(" (").append(phase).append(") User: ").append(user)
+				.append(' ').append(label).append(": ").append(payload);
+			if (label2 != null) {
+				sb.append(' ').append(label2).append(": ").append(payload2);
+			}
+			if (error) {
+				target.logger.error(sb.toString(), throwable);
+			} else {
+				target.logger.info(sb.toString(), throwable);
+			}
+		}
+	}
+
+	/**
+	 * Bounded multi-producer ring buffer, the consumers poll under its lock
+	 */
+	private static final class RingBuffer {
+		final AtomicReferenceArray<Event> slots;
+		final int mask;
+		final AtomicLong tail = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong chars = new AtomicLong();
+		volatile long head;
+
+		RingBuffer(int size) {
+			int capacity = capacityFor(size);
+			slots = new AtomicReferenceArray<Event>(capacity);
+			mask = capacity - 1;
+		}
+
+		static int capacityFor(int size) {
+			int capacity = 1;
+			while (capacity < size && capacity < (1 << 30)) capacity <<= 1;
+			return capacity;
+		}
+
+		int capacity() {
+			return mask + 1;
+		}
+
+		boolean offer(Event event) {
+			long buffered = chars.addAndGet(event.chars);
+			if (buffered > MAX_BUFFERED_CHARS && buffered != event.chars) {
+				chars.addAndGet(-event.chars);
+				dropped.incrementAndGet();
+				return false;
+			}
+			for (;;) {
+				long t = tail.get();
+				if (t - head > mask) {
+					chars.addAndGet(-event.chars);
+					dropped.incrementAndGet();
+					return false;
+				}
+				if (tail.compareAndSet(t, t + 1)) {
+					slots.lazySet((int) (t & mask), event);
+					return true;
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return head == tail.get();
+		}
+
+		synchronized Event poll() {
+			long h = head;
+			if (h == tail.get()) return null;
+			int idx = (int) (h & mask);
+			Event event = slots.get(idx);
+			if (event == null) return null; // Claimed but not published yet
+			slots.lazySet(idx, null);
+			head = h + 1;
+			chars.addAndGet(-event.chars);
+			return event;
+		}
+	}
+
+	private static final class Writer extends Thread {
+		RingBuffer buffer;
+		volatile boolean running = true;
+		volatile boolean parked;
+		long reportedDropped;
+
+		Writer(RingBuffer buffer) {
+			super("GWT payload logger");
+			this.buffer = buffer;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Event event = buffer.poll();
+				if (event != null) {
+					write(event);
+					continue;
+				}
+				if (!buffer.isEmpty()) {
+					// Claimed but not published yet
+					Thread.yield();
+					continue;
+				}
+				reportDropped();
+				RingBuffer current = PayloadLogger.buffer;
+				if (current != buffer) {
+					buffer = current;
+					reportedDropped = 0;
+					continue;
+				}
+				if (!running) break;
+				parked = true;
+				// Checked after parked is set, an event published before is seen here, one published after unparks
+				if (buffer.isEmpty() && current == PayloadLogger.buffer && running) {
+					LockSupport.park(this);
+				}
+				parked = false;
+			}
+		}
+
+		void reportDropped() {
+			long dropped = buffer.dropped.get();
+			if (dropped != reportedDropped) {
+				LoggerFactory.getLogger(PayloadLogger.class).warn(
+						"Payload log buffer was full, "+(dropped - reportedDropped)+" events were dropped");
+				reportedDropped = dropped;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.liveSense.service.gwt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Configuration of the payload logging of the GWT servlets (GWTRPC and GWTREQUESTFACTORY loggers).
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT payload logging", description="Payload logging of the GWT RPC and RequestFactory servlets")
+public class PayloadLoggerConfigurator {
+
+	static Logger log = LoggerFactory.getLogger(PayloadLoggerConfigurator.class);
+
+	public static final int DEFAULT_TRUNCATE_LENGTH = 0;
+	@Property(intValue=DEFAULT_TRUNCATE_LENGTH, label="Truncate length", description="Maximum length of the logged payloads, 0 means no truncation")
+	public static final String PROP_TRUNCATE_LENGTH = "payload.log.truncate.length";
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	@Property(intValue=DEFAULT_BUFFER_SIZE, label="Buffer size", description="Number of events buffered for the background writer, events are dropped when the buffer is full")
+	public static final String PROP_BUFFER_SIZE = "payload.log.buffer.size";
+
+	public static final int DEFAULT_SAMPLE_RATE = 1;
+	@Property(intValue=DEFAULT_SAMPLE_RATE, label="Sample rate", description="Every Nth call is logged, 1 logs every call, 0 logs nothing. Errors are always logged")
+	public static final String PROP_SAMPLE_RATE = "payload.log.sample.rate";
+
+	@Property(value={}, label="User sample rates", description="Sample rates of users in user=rate form")
+	public static final String PROP_USER_SAMPLE_RATES = "payload.log.sample.users";
+
+	@Property(value={}, label="Method sample rates", description="Sample rates of service methods in methodName=rate form")
+	public static final String PROP_METHOD_SAMPLE_RATES = "payload.log.sample.methods";
+
+	@Activate
+	@Modified
+	protected void activate(Map<String, Object> properties) {
+		PayloadLogger.configure(
+				ComponentSupport.toInt(properties.get(PROP_TRUNCATE_LENGTH), DEFAULT_TRUNCATE_LENGTH),
+				ComponentSupport.toInt(properties.get(PROP_BUFFER_SIZE), DEFAULT_BUFFER_SIZE),
+				ComponentSupport.toInt(properties.get(PROP_SAMPLE_RATE), DEFAULT_SAMPLE_RATE),
+				toRates(properties.get(PROP_USER_SAMPLE_RATES)),
+				toRates(properties.get(PROP_METHOD_SAMPLE_RATES)));
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		PayloadLogger.shutdown();
+	}
+
+	private static Map<String, Integer> toRates(Object value) {
+		Map<String, Integer> rates = new HashMap<String, Integer>();
+		String[] entries = value instanceof String[] ? (String[]) value : value != null ? new String[]{value.toString()} : new String[0];
+		for (String entry : entries) {
+			int idx = entry.lastIndexOf('=');
+			if (idx <= 0) {
+				if (entry.trim().length() > 0) log.warn("Invalid sample rate, name=rate expected: "+entry);
+				continue;
+			}
+			rates.put(entry.substring(0, idx).trim(), ComponentSupport.toInt(entry.substring(idx + 1), DEFAULT_SAMPLE_RATE));
+		}
+		return rates;
+	}
+}
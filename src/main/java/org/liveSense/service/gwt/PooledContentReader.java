@@ -0,0 +1,207 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads request bodies into pooled reusable buffers.
+ * <p/>
+ * <code>RPCServletUtils.readContent()</code> grows a fresh <code>ByteArrayOutputStream</code>,
+ * copies it into an array and decodes that into the String, so a large body is copied several
+ * times and all the copies are garbage after the call. Here the body is read into a pooled byte
+ * buffer and decoded into a pooled char buffer, only the resulting String is allocated.
+ * The size limit is checked against the <code>Content-Length</code> header before anything is
+ * read and against the number of bytes read for chunked requests.
+ * <p/>
+ * The pool is shared by the threads and bounded by {@link #MAX_POOLED}, buffers grown above
+ * {@link #MAX_RETAINED_BUFFER_SIZE} are not kept, so the pool holds a few megabytes at most
+ * and a single huge request does not keep its buffers. The pool is not bound to the container
+ * threads, {@link #clear()} drops it when the servlet is destroyed.
+ */
+public class PooledContentReader {
+
+	public static final int DEFAULT_MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+	private static final int INITIAL_BUFFER_SIZE = 8192;
+
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Maximum number of pooled buffers, more are allocated when needed but not kept
+	 */
+	private static final int MAX_POOLED = 16;
+
+	private static final class Buffers {
+		byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+		char[] chars = new char[INITIAL_BUFFER_SIZE];
+		CharsetDecoder decoder;
+	}
+
+	private static final ConcurrentLinkedQueue<Buffers> pool = new ConcurrentLinkedQueue<Buffers>();
+
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private PooledContentReader() {
+	}
+
+	private static Buffers borrow() {
+		Buffers ret = pool.poll();
+		if (ret == null) {
+			return new Buffers();
+		}
+		pooled.decrementAndGet();
+		return ret;
+	}
+
+	private static void release(Buffers buffers) {
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			pool.offer(buffers);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops the pooled buffers.
+	 */
+	public static void clear() {
+		while (pool.poll() != null) {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the content of the request as a String.
+	 *
+	 * @param request the request
+	 * @param expectedContentType the expected content type or <code>null</code> if it is not checked
+	 * @param expectedCharSet the expected character set, the content is decoded with it
+	 * @param maxContentLength the maximum accepted content length in bytes
+	 * @return the content of the request
+	 * @throws IOException if the content could not be read or decoded
+	 * @throws ServletException if the content type, the character set or the length is not accepted
+	 */
+	public static String readContent(HttpServletRequest request, String expectedContentType, String expectedCharSet,
+			int maxContentLength) throws IOException, ServletException {
+		checkContentType(request, expectedContentType, expectedCharSet);
+
+		int contentLength = request.getContentLength();
+		if (contentLength > maxContentLength) {
+			throw new ServletException("Content-Length " + contentLength + " exceeds the limit of " + maxContentLength + " bytes");
+		}
+
+		Buffers buffers = borrow();
+		try {
+			return readContent(request, buffers, contentLength, expectedCharSet, maxContentLength);
+		} finally {
+			release(buffers);
+		}
+	}
+
+	private static String readContent(HttpServletRequest request, Buffers buffers, int contentLength, String expectedCharSet,
+			int maxContentLength) throws IOException, ServletException {
+		byte[] bytes = buffers.bytes;
+		if (contentLength > bytes.length) {
+			bytes = new byte[contentLength];
+		}
+
+		int length = 0;
+		InputStream in = request.getInputStream();
+		try {
+			int read;
+			while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+				length += read;
+				if (length > maxContentLength) {
+					throw new ServletException("Content exceeds the limit of " + maxContentLength + " bytes");
+				}
+				if (length == bytes.length) {
+					int next = in.read();
+					if (next == -1) break;
+					byte[] grown = new byte[Math.min(Math.max(bytes.length * 2, INITIAL_BUFFER_SIZE), maxContentLength + 1)];
+					System.arraycopy(bytes, 0, grown, 0, length);
+					bytes = grown;
+					bytes[length++] = (byte) next;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		String content = decode(buffers, bytes, length, expectedCharSet);
+		if (bytes.length <= MAX_RETAINED_BUFFER_SIZE) {
+			buffers.bytes = bytes;
+		}
+		return content;
+	}
+
+	/**
+	 * Malformed input is replaced like <code>new String(byte[], Charset)</code> does
+	 */
+	private static String decode(Buffers buffers, byte[] bytes, int length, String charSet) throws CharacterCodingException {
+		Charset charset = Charset.forName(charSet);
+		CharsetDecoder decoder = buffers.decoder;
+		if (decoder == null || !decoder.charset().equals(charset)) {
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			buffers.decoder = decoder;
+		}
+		decoder.reset();
+
+		int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+		char[] chars = buffers.chars;
+		if (maxChars > chars.length) {
+			chars = new char[maxChars];
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(bytes, 0, length);
+		CharBuffer out = CharBuffer.wrap(chars);
+		CoderResult result = decoder.decode(in, out, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		result = decoder.flush(out);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+
+		if (chars.length <= MAX_RETAINED_BUFFER_SIZE) {
+			buffers.chars = chars;
+		}
+		return new String(chars, 0, out.position());
+	}
+
+	/**
+	 * Same checks as <code>RPCServletUtils.checkContentTypeIgnoreCase()</code> and
+	 * <code>RPCServletUtils.checkCharacterEncodingIgnoreCase()</code>
+	 */
+	private static void checkContentType(HttpServletRequest request, String expectedContentType, String expectedCharSet)
+			throws ServletException {
+		if (expectedContentType != null) {
+			String contentType = request.getContentType();
+			if (contentType == null || !contentType.toLowerCase().startsWith(expectedContentType.toLowerCase())) {
+				throw new ServletException("Content-Type was '" + (contentType == null ? "(null)" : contentType)
+						+ "'. Expected '" + expectedContentType + "'.");
+			}
+		}
+		if (expectedCharSet != null) {
+			String encoding = request.getCharacterEncoding();
+			if (encoding == null || !encoding.toLowerCase().contains(expectedCharSet.toLowerCase())) {
+				throw new ServletException("Character Encoding is '" + (encoding == null ? "(null)" : encoding)
+						+ "'. Expected '" + expectedCharSet + "'");
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gwt.user.server.rpc.RPCServletUtils;
+
+/**
+ * Writes response bodies through pooled reusable buffers, gzip compressed when the client
+ * accepts it and the content is large enough.
+ * <p/>
+ * The content is encoded chunk by chunk straight into the output stream (or into the deflater),
+ * so no byte array of the whole response is made. <code>GZIPOutputStream</code> allocates a new
+ * native <code>Deflater</code> and its buffer for every response, here a pooled deflater is reset
+ * and reused with the pooled buffer.
+ * <p/>
+ * The pool is shared by the threads and bounded by {@link #MAX_POOLED}, it is not bound to the
+ * container threads, so nothing of the bundle is pinned by them. The deflaters dropped by the
+ * pool are ended at once, the pooled ones by {@link #clear()} when the servlet is destroyed.
+ */
+public class PooledContentWriter {
+
+	public static final int DEFAULT_GZIP_THRESHOLD = 1024;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Maximum number of pooled buffers, more are allocated when needed but not kept
+	 */
+	private static final int MAX_POOLED = 16;
+
+	private static final class Buffers {
+		final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+		final byte[] deflated = new byte[BUFFER_SIZE];
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final CRC32 crc = new CRC32();
+		CharsetEncoder encoder;
+	}
+
+	private static final ConcurrentLinkedQueue<Buffers> pool = new ConcurrentLinkedQueue<Buffers>();
+
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private PooledContentWriter() {
+	}
+
+	private static Buffers borrow() {
+		Buffers ret = pool.poll();
+		if (ret == null) {
+			return new Buffers();
+		}
+		pooled.decrementAndGet();
+		return ret;
+	}
+
+	private static void release(Buffers buffers) {
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			pool.offer(buffers);
+		} else {
+			pooled.decrementAndGet();
+			buffers.deflater.end();
+		}
+	}
+
+	/**
+	 * Drops the pooled buffers and ends their deflaters.
+	 */
+	public static void clear() {
+		Buffers buffers;
+		while ((buffers = pool.poll()) != null) {
+			pooled.decrementAndGet();
+			buffers.deflater.end();
+		}
+	}
+
+	/**
+	 * Writes the content to the response with the character encoding of the response.
+	 * The content type and the character encoding have to be set before. If the writer of the
+	 * response is already used, the content is written to it uncompressed.
+	 * <p/>
+	 * The response gets a <code>Vary: Accept-Encoding</code> header whenever compression is
+	 * enabled, as the encoding depends on the request then, even if this response is not
+	 * compressed.
+	 *
+	 * @param request the request, its <code>Accept-Encoding</code> header is checked
+	 * @param response the response
+	 * @param content the content to write
+	 * @param gzipThreshold the minimum length of the content to compress, negative disables compression
+	 * @throws IOException
+	 */
+	public static void writeContent(HttpServletRequest request, HttpServletResponse response, String content,
+			int gzipThreshold) throws IOException {
+		if (gzipThreshold >= 0) {
+			response.addHeader("Vary", "Accept-Encoding");
+		}
+		OutputStream out;
+		try {
+			out = response.getOutputStream();
+		} catch (IllegalStateException e) {
+			// getWriter() was called by a hook of the servlet
+			Writer writer = response.getWriter();
+			writer.write(content);
+			writer.flush();
+			return;
+		}
+		boolean gzip = gzipThreshold >= 0 && content.length() >= gzipThreshold
+				&& RPCServletUtils.acceptsGzipEncoding(request);
+
+		Buffers buffers = borrow();
+		try {
+			if (gzip) {
+				RPCServletUtils.setGzipEncodingHeader(response);
+				GzipOutputStream gzipOut = new GzipOutputStream(out, buffers);
+				encode(buffers, content, Charset.forName(response.getCharacterEncoding()), gzipOut);
+				gzipOut.finish();
+			} else {
+				encode(buffers, content, Charset.forName(response.getCharacterEncoding()), out);
+			}
+		} finally {
+			release(buffers);
+		}
+		out.flush();
+	}
+
+	private static void encode(Buffers buffers, String content, Charset charset, OutputStream out) throws IOException {
+		CharsetEncoder encoder = buffers.encoder;
+		if (encoder == null || !encoder.charset().equals(charset)) {
+			encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			buffers.encoder = encoder;
+		}
+		encoder.reset();
+
+		ByteBuffer bytes = buffers.bytes;
+		CharBuffer chars = CharBuffer.wrap(content);
+		CoderResult result;
+		do {
+			bytes.clear();
+			result = encoder.encode(chars, bytes, true);
+			out.write(bytes.array(), 0, bytes.position());
+		} while (result.isOverflow());
+		do {
+			bytes.clear();
+			result = encoder.flush(bytes);
+			out.write(bytes.array(), 0, bytes.position());
+		} while (result.isOverflow());
+	}
+
+	/**
+	 * gzip stream over the pooled deflater and buffer. Only {@link #finish()} has to be called,
+	 * the underlying stream is not closed and the deflater is not released.
+	 */
+	private static final class GzipOutputStream extends OutputStream {
+
+		private static final byte[] HEADER = new byte[] {
+			0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+		};
+
+		private final OutputStream out;
+
+		private final Deflater deflater;
+
+		private final byte[] buffer;
+
+		private final CRC32 crc;
+
+		GzipOutputStream(OutputStream out, Buffers buffers) throws IOException {
+			this.out = out;
+			deflater = buffers.deflater;
+			deflater.reset();
+			buffer = buffers.deflated;
+			crc = buffers.crc;
+			crc.reset();
+			out.write(HEADER);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return;
+			crc.update(b, off, len);
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		public void finish() throws IOException {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			writeInt((int) crc.getValue());
+			writeInt((int) deflater.getBytesRead());
+		}
+
+		private void deflate() throws IOException {
+			int len = deflater.deflate(buffer, 0, buffer.length);
+			if (len > 0) {
+				out.write(buffer, 0, len);
+			}
+		}
+
+		private void writeInt(int value) throws IOException {
+			out.write(value & 0xff);
+			out.write((value >> 8) & 0xff);
+			out.write((value >> 16) & 0xff);
+			out.write((value >> 24) & 0xff);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.liveSense.service.gwt;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a service method (or all the methods of a service class) as free of side effects:
+ * the method only reads, so it can run at the same time as the other read-only methods of
+ * the same request, and identical concurrent calls of it can share one execution (see
+ * {@link CallCoalescer}).
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface ReadOnly {
+}
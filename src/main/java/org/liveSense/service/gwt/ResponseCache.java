@@ -0,0 +1,59 @@
+package org.liveSense.service.gwt;
+
+import java.util.Locale;
+
+/**
+ * Cache of the encoded responses of the idempotent service methods (see {@link CachedResponse}),
+ * keyed by the operation, the scope (the user or the shared scope), the locale and the request
+ * payload, which holds the arguments and the serialization policy strong name of the call.
+ */
+public interface ResponseCache {
+
+	/**
+	 * Scope of the responses shared by all the users
+	 */
+	String SHARED_SCOPE = "";
+
+	/**
+	 * @param operation the operation (the servlet or the service method)
+	 * @param scope the user or {@link #SHARED_SCOPE}
+	 * @param locale the locale of the call
+	 * @param payload the request payload
+	 * @return the key of the response
+	 */
+	String key(String operation, String scope, Locale locale, String payload);
+
+	/**
+	 * @param key the key of the response
+	 * @return the cached response or <code>null</code> if it is not cached (or it expired)
+	 */
+	String get(String key);
+
+	/**
+	 * @return the generation of the invalidations, read before computing a response to put
+	 */
+	long getGeneration();
+
+	/**
+	 * Caches the response unless one of its paths was invalidated while it was computed.
+	 *
+	 * @param key the key of the response
+	 * @param response the encoded response
+	 * @param ttlMillis the time to live of the response in milliseconds
+	 * @param paths the repository paths the response depends on, can be empty
+	 * @param generation the generation of the invalidations (see {@link #getGeneration()}) before computing the response
+	 */
+	void put(String key, String response, long ttlMillis, String[] paths, long generation);
+
+	/**
+	 * Drops the responses depending on the path, its ancestors or its descendants.
+	 *
+	 * @param path the changed repository path
+	 */
+	void invalidate(String path);
+
+	/**
+	 * Drops all the cached responses.
+	 */
+	void invalidateAll();
+}
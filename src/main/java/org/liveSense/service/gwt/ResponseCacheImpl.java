@@ -0,0 +1,422 @@
+package org.liveSense.service.gwt;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Response cache. The entries are kept in lock-striped access ordered maps like the
+ * authentication cache, only the SHA-256 digest of the operation, scope, locale and payload is
+ * kept as the key. The entries expire after the TTL of their method, the entries depending on
+ * repository paths are dropped by JCR observation.
+ * <p/>
+ * Only the paths the cached responses depend on are observed, a listener is registered for
+ * every path at its first use. The removal of an ancestor of an observed path may not be
+ * reported by the repository, such entries live until they expire.
+ * <p/>
+ * A response computed while one of its paths changed must not be cached: the invalidations are
+ * numbered, the recent ones are kept, and {@link #put(String, String, long, String[], long)}
+ * rejects the response if an invalidation touching its paths happened since the generation the
+ * call started at.
+ */
+@Component(immediate=true, metatype=true, label="liveSense GWT response cache", description="Caches the encoded responses of the idempotent GWT service methods")
+@Service(ResponseCache.class)
+public class ResponseCacheImpl implements ResponseCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ResponseCacheImpl.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int STRIPES = 16;
+
+	private static final String[] NO_PATHS = new String[0];
+
+	/**
+	 * Number of the recent invalidations kept to check the responses put after them
+	 */
+	private static final int RECENT_INVALIDATIONS = 256;
+
+	private static final int OBSERVED_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+			| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+	public static final boolean DEFAULT_ENABLED = true;
+	@Property(boolValue=DEFAULT_ENABLED, label="Enabled", description="Caches the responses of the methods annotated with @CachedResponse")
+	public static final String PROP_ENABLED = "response.cache.enabled";
+
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+	@Property(intValue=DEFAULT_MAX_ENTRIES, label="Max entries", description="Maximum number of cached responses")
+	public static final String PROP_MAX_ENTRIES = "response.cache.max.entries";
+
+	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
+	SlingRepository repository;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private volatile boolean enabled = DEFAULT_ENABLED;
+
+	private Session observationSession;
+
+	/**
+	 * Listeners of the observed paths
+	 */
+	private final ConcurrentMap<String, EventListener> listeners = new ConcurrentHashMap<String, EventListener>();
+
+	/**
+	 * Generation of the last invalidation and the paths of the recent invalidations, guarded by itself
+	 */
+	private final Object invalidationLock = new Object();
+
+	private long generation;
+
+	private final Set<String>[] recentInvalidations = newRecentInvalidations();
+
+	public ResponseCacheImpl() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(DEFAULT_MAX_ENTRIES / STRIPES);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String>[] newRecentInvalidations() {
+		return new Set[RECENT_INVALIDATIONS];
+	}
+
+	@Activate
+	protected void activate(Map<String, Object> properties) {
+		modified(properties);
+		try {
+			observationSession = repository.loginAdministrative(null);
+		} catch (RepositoryException e) {
+			log.error("Could not open the observation session, responses are dropped only when they expire", e);
+		}
+	}
+
+	@Modified
+	protected void modified(Map<String, Object> properties) {
+		Object value = properties.get(PROP_ENABLED);
+		enabled = value != null ? Boolean.valueOf(value.toString()) : DEFAULT_ENABLED;
+		int maxPerStripe = Math.max(1, ComponentSupport.toInt(properties.get(PROP_MAX_ENTRIES), DEFAULT_MAX_ENTRIES) / STRIPES);
+		for (Stripe stripe : stripes) {
+			stripe.setMaxEntries(maxPerStripe);
+		}
+		invalidateAll();
+	}
+
+	@Deactivate
+	protected synchronized void deactivate() {
+		if (observationSession != null) {
+			for (EventListener listener : listeners.values()) {
+				try {
+					observationSession.getWorkspace().getObservationManager().removeEventListener(listener);
+				} catch (RepositoryException e) {
+					log.warn("Could not remove the observation listener", e);
+				}
+			}
+			listeners.clear();
+			if (observationSession.isLive()) {
+				observationSession.logout();
+			}
+			observationSession = null;
+		}
+		invalidateAll();
+	}
+
+	public String key(String operation, String scope, Locale locale, String payload) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((operation + '\n' + scope + '\n' + locale + '\n').getBytes(UTF8));
+			byte[] hash = digest.digest(payload.getBytes(UTF8));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String get(String key) {
+		if (!enabled || key == null) return null;
+		Stripe stripe = stripe(key);
+		CachedEntry entry = stripe.get(key);
+		if (entry == null) return null;
+		if (entry.expires <= System.currentTimeMillis()) {
+			stripe.remove(key);
+			return null;
+		}
+		return entry.response;
+	}
+
+	public long getGeneration() {
+		synchronized (invalidationLock) {
+			return generation;
+		}
+	}
+
+	public void put(String key, String response, long ttlMillis, String[] paths, long generation) {
+		if (!enabled || key == null || response == null || ttlMillis <= 0) return;
+		if (paths == null) paths = NO_PATHS;
+		for (String path : paths) {
+			observe(path);
+		}
+		CachedEntry entry = new CachedEntry(response, System.currentTimeMillis() + ttlMillis, paths);
+		Stripe stripe = stripe(key);
+		// Checked and put under the lock of the stripe, so an invalidation can't run in between
+		stripe.lock.lock();
+		try {
+			if (paths.length > 0 && invalidatedSince(generation, paths)) {
+				return;
+			}
+			stripe.put(key, entry);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	public void invalidate(String path) {
+		Set<String> paths = new HashSet<String>();
+		paths.add(path);
+		invalidate(paths);
+	}
+
+	public void invalidateAll() {
+		Set<String> all = new HashSet<String>();
+		all.add("/");
+		synchronized (invalidationLock) {
+			record(all);
+		}
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	private void invalidate(Set<String> paths) {
+		synchronized (invalidationLock) {
+			record(paths);
+		}
+		for (Stripe stripe : stripes) {
+			stripe.removeDependent(paths);
+		}
+	}
+
+	/**
+	 * Records an invalidation, the caller holds the invalidation lock.
+	 */
+	private void record(Set<String> paths) {
+		generation++;
+		recentInvalidations[(int) (generation % RECENT_INVALIDATIONS)] = paths;
+	}
+
+	/**
+	 * @return true if an invalidation after the generation touched the paths, or if the invalidations
+	 *         after the generation are not all kept any more
+	 */
+	private boolean invalidatedSince(long since, String[] paths) {
+		List<Set<String>> invalidations = new ArrayList<Set<String>>();
+		synchronized (invalidationLock) {
+			if (generation - since >= RECENT_INVALIDATIONS) {
+				return true;
+			}
+			for (long g = since + 1; g <= generation; g++) {
+				invalidations.add(recentInvalidations[(int) (g % RECENT_INVALIDATIONS)]);
+			}
+		}
+		for (Set<String> changed : invalidations) {
+			for (String dependency : paths) {
+				for (String path : changed) {
+					if (dependsOn(dependency, path)) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers the observation listener of the path at its first use.
+	 */
+	private void observe(String path) {
+		if (listeners.containsKey(path)) return;
+		synchronized (this) {
+			if (listeners.containsKey(path) || observationSession == null) return;
+			EventListener listener = new EventListener() {
+				public void onEvent(EventIterator events) {
+					Set<String> paths = new HashSet<String>();
+					while (events.hasNext()) {
+						try {
+							paths.add(events.nextEvent().getPath());
+						} catch (RepositoryException e) {
+							log.warn("Could not process observation event", e);
+						}
+					}
+					if (!paths.isEmpty()) {
+						invalidate(paths);
+					}
+				}
+			};
+			try {
+				observationSession.getWorkspace().getObservationManager().addEventListener(listener,
+						OBSERVED_EVENTS, path, true, null, null, false);
+				listeners.put(path, listener);
+			} catch (RepositoryException e) {
+				log.warn("Could not observe "+path+", responses depending on it are dropped only when they expire", e);
+			}
+		}
+	}
+
+	private Stripe stripe(String key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & (STRIPES - 1)];
+	}
+
+	/**
+	 * @return true if a change of the path changes the content under the path the response depends on
+	 */
+	static boolean dependsOn(String dependency, String path) {
+		return path.equals(dependency) || isAncestor(dependency, path) || isAncestor(path, dependency);
+	}
+
+	private static boolean isAncestor(String ancestor, String path) {
+		if (ancestor.equals("/")) return true;
+		return path.length() > ancestor.length() && path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/';
+	}
+
+	private static final class CachedEntry {
+		final String response;
+		final long expires;
+		final String[] paths;
+
+		CachedEntry(String response, long expires, String[] paths) {
+			this.response = response;
+			this.expires = expires;
+			this.paths = paths;
+		}
+
+		boolean dependsOn(Set<String> changed) {
+			for (String dependency : paths) {
+				for (String path : changed) {
+					if (ResponseCacheImpl.dependsOn(dependency, path)) return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final LinkedHashMap<String, CachedEntry> entries;
+		volatile int maxEntries;
+
+		/**
+		 * Number of entries depending on repository paths, the stripe is not scanned on changes if there is none
+		 */
+		int dependentEntries;
+
+		Stripe(int maxEntries) {
+			this.maxEntries = maxEntries;
+			this.entries = new LinkedHashMap<String, CachedEntry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest) {
+					if (size() > Stripe.this.maxEntries) {
+						if (eldest.getValue().paths.length > 0) dependentEntries--;
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		void setMaxEntries(int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+
+		CachedEntry get(String key) {
+			lock.lock();
+			try {
+				return entries.get(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(String key, CachedEntry entry) {
+			lock.lock();
+			try {
+				if (entry.paths.length > 0) dependentEntries++;
+				CachedEntry old = entries.put(key, entry);
+				if (old != null && old.paths.length > 0) dependentEntries--;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(String key) {
+			lock.lock();
+			try {
+				CachedEntry old = entries.remove(key);
+				if (old != null && old.paths.length > 0) dependentEntries--;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void removeDependent(Set<String> paths) {
+			lock.lock();
+			try {
+				if (dependentEntries == 0) return;
+				for (Iterator<CachedEntry> it = entries.values().iterator(); it.hasNext();) {
+					CachedEntry entry = it.next();
+					if (entry.paths.length > 0 && entry.dependsOn(paths)) {
+						it.remove();
+						dependentEntries--;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void clear() {
+			lock.lock();
+			try {
+				entries.clear();
+				dependentEntries = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.liveSense.service.gwt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Envelope of several GWT RPC calls sent in one request.
+ * <p/>
+ * Request: <code>BATCH|&lt;mode&gt;|&lt;count&gt;|</code> followed by
+ * <code>&lt;length&gt;|&lt;payload&gt;</code> for every call, where the mode is
+ * <code>P</code> if the calls are independent and can run in parallel, <code>S</code> if
+ * they have to run in order, and the length is the number of characters of the payload.
+ * <p/>
+ * Response: <code>//BATCH|&lt;count&gt;|</code> followed by
+ * <code>&lt;length&gt;|&lt;response&gt;</code> for every call in the order of the request,
+ * where the response is the usual <code>//OK</code> or <code>//EX</code> response of the call.
+ * <p/>
+ * The payloads are not escaped, a valid RPC payload never starts with the batch prefix (it
+ * starts with the stream version).
+ */
+public class RpcBatch {
+
+	public static final String REQUEST_PREFIX = "BATCH|";
+
+	public static final String RESPONSE_PREFIX = "//BATCH|";
+
+	private final boolean parallel;
+
+	private final List<String> payloads;
+
+	public RpcBatch(boolean parallel, List<String> payloads) {
+		this.parallel = parallel;
+		this.payloads = Collections.unmodifiableList(payloads);
+	}
+
+	public static boolean isBatch(String payload) {
+		return payload != null && payload.startsWith(REQUEST_PREFIX);
+	}
+
+	/**
+	 * @param payload the batch request
+	 * @param maxSize the maximum number of calls in the batch
+	 * @return the batch
+	 * @throws IllegalArgumentException if the request is malformed or has too many calls
+	 */
+	public static RpcBatch decode(String payload, int maxSize) {
+		if (!isBatch(payload)) {
+			throw new IllegalArgumentException("Not an RPC batch");
+		}
+		int pos = REQUEST_PREFIX.length();
+		int end = payload.indexOf('|', pos);
+		if (end < 0) {
+			throw new IllegalArgumentException("Malformed RPC batch: no mode");
+		}
+		String mode = payload.substring(pos, end);
+		if (!"P".equals(mode) && !"S".equals(mode)) {
+			throw new IllegalArgumentException("Malformed RPC batch: unknown mode " + mode);
+		}
+		pos = end + 1;
+		end = payload.indexOf('|', pos);
+		int count = parseInt(payload, pos, end);
+		if (count > maxSize) {
+			throw new IllegalArgumentException("RPC batch of " + count + " calls is larger than " + maxSize);
+		}
+		pos = end + 1;
+		List<String> payloads = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			end = payload.indexOf('|', pos);
+			int length = parseInt(payload, pos, end);
+			pos = end + 1;
+			if (pos + length > payload.length()) {
+				throw new IllegalArgumentException("Malformed RPC batch: call " + i + " is truncated");
+			}
+			payloads.add(payload.substring(pos, pos + length));
+			pos += length;
+		}
+		if (pos != payload.length()) {
+			throw new IllegalArgumentException("Malformed RPC batch: " + (payload.length() - pos) + " characters after the last call");
+		}
+		return new RpcBatch("P".equals(mode), payloads);
+	}
+
+	/**
+	 * @return the batch request
+	 */
+	public String encode() {
+		StringBuilder sb = new StringBuilder(length(payloads) + 32);
+		sb.append(REQUEST_PREFIX).append(parallel ? 'P' : 'S').append('|').append(payloads.size()).append('|');
+		append(sb, payloads);
+		return sb.toString();
+	}
+
+	/**
+	 * @param responses the responses of the calls in the order of the request
+	 * @return the batch response
+	 */
+	public static String encodeResponse(List<String> responses) {
+		StringBuilder sb = new StringBuilder(length(responses) + 32);
+		sb.append(RESPONSE_PREFIX).append(responses.size()).append('|');
+		append(sb, responses);
+		return sb.toString();
+	}
+
+	/**
+	 * @param response the batch response
+	 * @return the responses of the calls
+	 * @throws IllegalArgumentException if the response is malformed
+	 */
+	public static List<String> decodeResponse(String response) {
+		if (response == null || !response.startsWith(RESPONSE_PREFIX)) {
+			throw new IllegalArgumentException("Not an RPC batch response");
+		}
+		int pos = RESPONSE_PREFIX.length();
+		int end = response.indexOf('|', pos);
+		int count = parseInt(response, pos, end);
+		pos = end + 1;
+		List<String> ret = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			end = response.indexOf('|', pos);
+			int length = parseInt(response, pos, end);
+			pos = end + 1;
+			if (pos + length > response.length()) {
+				throw new IllegalArgumentException("Malformed RPC batch response: response " + i + " is truncated");
+			}
+			ret.add(response.substring(pos, pos + length));
+			pos += length;
+		}
+		return ret;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	public List<String> getPayloads() {
+		return payloads;
+	}
+
+	private static void append(StringBuilder sb, List<String> values) {
+		for (String value : values) {
+			sb.append(value.length()).append('|').append(value);
+		}
+	}
+
+	private static int length(List<String> values) {
+		int ret = 0;
+		for (String value : values) {
+			ret += value.length() + 8;
+		}
+		return ret;
+	}
+
+	private static int parseInt(String s, int start, int end) {
+		if (end < 0) {
+			throw new IllegalArgumentException("Malformed RPC batch: missing separator");
+		}
+		try {
+			int ret = Integer.parseInt(s.substring(start, end));
+			if (ret < 0) {
+				throw new IllegalArgumentException("Malformed RPC batch: negative number");
+			}
+			return ret;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed RPC batch: invalid number");
+		}
+	}
+}
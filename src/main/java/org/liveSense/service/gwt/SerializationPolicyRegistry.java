@@ -0,0 +1,49 @@
+package org.liveSense.service.gwt;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+
+/**
+ * Shared store of the parsed GWT serialization policies, keyed by the policy file path
+ * (module path and strong name). The policies are shared by all the RPC servlets.
+ */
+public interface SerializationPolicyRegistry {
+
+	/**
+	 * Opens a serialization policy file which is not in the registry yet.
+	 */
+	public interface Source {
+
+		/**
+		 * @param policyFilePath the path of the policy file
+		 * @return the stream of the file or <code>null</code> if there is no such file
+		 * @throws IOException
+		 */
+		InputStream openStream(String policyFilePath) throws IOException;
+	}
+
+	/**
+	 * Returns the serialization policy for the given file. The file is opened with the given
+	 * source only if it was not preloaded or loaded before. Classes are resolved with the
+	 * context classloader of the calling thread.
+	 *
+	 * @param policyFilePath the path of the policy file
+	 * @param source the source of the file, can be <code>null</code>
+	 * @return the serialization policy or <code>null</code> if the file could not be found or parsed
+	 */
+	SerializationPolicy getSerializationPolicy(String policyFilePath, Source source);
+
+	/**
+	 * Drops the policy of the given file.
+	 *
+	 * @param policyFilePath the path of the policy file
+	 */
+	void invalidate(String policyFilePath);
+
+	/**
+	 * Drops all the policies.
+	 */
+	void invalidateAll();
+}
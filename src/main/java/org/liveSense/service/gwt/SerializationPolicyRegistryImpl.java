@@ -0,0 +1,434 @@
+package org.liveSense.service.gwt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.text.ParseException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.SerializationPolicyLoader;
+
+/**
+ * Serialization policy registry. At activation it preloads every policy file found in the
+ * bundles providing Sling bundle resources and in the repository, so a request never has
+ * to log in administratively to read a policy file.
+ * <p/>
+ * The policy files are compiled to {@link CompiledSerializationPolicy} which is written to the
+ * data area of the bundle, so after a restart the policies are loaded from there without
+ * parsing the text files again. The compiled policies refer to the classes by name, so they
+ * stay valid when the bundles of the classes are refreshed.
+ * <p/>
+ * The policy files of a bundle are dropped when the bundle is updated or uninstalled, the
+ * policy files of the repository are dropped by JCR observation. Only the paths of the loaded
+ * policy files are observed, a listener is registered for every path when the file is loaded.
+ * <p/>
+ * The policy files not loaded from a bundle (the files of the repository and the files opened
+ * by the servlets) are dropped with their compiled form when they were not used for an hour,
+ * so the policies of the old strong names do not stay forever. They are loaded again if they
+ * are still needed. The compiled policies loaded from the disk at the activation and not
+ * preloaded from a bundle or the repository count as unused, so the compiled files of the
+ * removed policy files are deleted after the first hour.
+ */
+@Component(immediate=true)
+@Service(SerializationPolicyRegistry.class)
+public class SerializationPolicyRegistryImpl implements SerializationPolicyRegistry, SynchronousBundleListener {
+
+	private static final Logger log = LoggerFactory.getLogger(SerializationPolicyRegistryImpl.class);
+
+	private static final String POLICY_FILE_EXTENSION = SerializationPolicyLoader.getSerializationPolicyFileName("");
+
+	private static final String BUNDLE_RESOURCES_HEADER = "Sling-Bundle-Resources";
+
+	private static final String COMPILED_POLICY_DIRECTORY = "serialization-policies";
+
+	private static final String COMPILED_POLICY_EXTENSION = ".bin";
+
+	private static final String POLICY_FILES_QUERY = "SELECT * FROM [nt:file] WHERE NAME() LIKE '%" + POLICY_FILE_EXTENSION + "'";
+
+	/**
+	 * Id of the entries not loaded from a bundle
+	 */
+	private static final long NO_BUNDLE = -1;
+
+	private static final int OBSERVED_EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+			| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+	/**
+	 * The entries not loaded from a bundle are dropped if they were not used between two sweeps
+	 */
+	private static final long SWEEP_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
+	SlingRepository repository;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private BundleContext bundleContext;
+
+	private File compiledPolicyDirectory;
+
+	private Session observationSession;
+
+	/**
+	 * Listeners of the observed policy files
+	 */
+	private final ConcurrentMap<String, EventListener> listeners = new ConcurrentHashMap<String, EventListener>();
+
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	@Activate
+	protected void activate(BundleContext context) {
+		this.bundleContext = context;
+		loadCompiledPolicies(context);
+		context.addBundleListener(this);
+		for (Bundle bundle : context.getBundles()) {
+			if ((bundle.getState() & (Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE)) != 0) {
+				preload(bundle);
+			}
+		}
+
+		try {
+			observationSession = repository.loginAdministrative(null);
+			preload(observationSession);
+		} catch (RepositoryException e) {
+			log.error("Could not preload the serialization policies from the repository", e);
+		}
+		nextSweep.set(System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS);
+	}
+
+	@Deactivate
+	protected void deactivate(BundleContext context) {
+		context.removeBundleListener(this);
+		if (observationSession != null) {
+			for (String policyFilePath : listeners.keySet()) {
+				unobserve(policyFilePath);
+			}
+			if (observationSession.isLive()) {
+				observationSession.logout();
+			}
+			observationSession = null;
+		}
+		entries.clear();
+		compiledPolicyDirectory = null;
+		bundleContext = null;
+	}
+
+	public SerializationPolicy getSerializationPolicy(String policyFilePath, Source source) {
+		sweep();
+		Entry entry = entries.get(policyFilePath);
+		if (entry != null) {
+			SerializationPolicy policy = entry.policy;
+			if (policy != null) {
+				if (!entry.used) entry.used = true;
+				return policy;
+			}
+		} else {
+			Entry newEntry = new Entry(NO_BUNDLE, null);
+			entry = entries.putIfAbsent(policyFilePath, newEntry);
+			if (entry == null) entry = newEntry;
+		}
+
+		// Only one thread loads the same file
+		synchronized (entry) {
+			if (entry.policy == null) {
+				byte[] content = null;
+				if (source != null) {
+					try {
+						content = read(source.openStream(policyFilePath));
+					} catch (IOException e) {
+						log.error("ERROR: Could not read the policy file '" + policyFilePath + "'", e);
+					}
+				}
+				if (content != null) {
+					entry.policy = compile(policyFilePath, content);
+					observe(policyFilePath);
+				} else {
+					log.error("ERROR: The serialization policy file '" + policyFilePath
+							+ "' was not found; did you forget to include it in this deployment?");
+				}
+			}
+			if (entry.policy == null) {
+				entries.remove(policyFilePath, entry);
+			}
+			return entry.policy;
+		}
+	}
+
+	public void invalidate(String policyFilePath) {
+		entries.remove(policyFilePath);
+		deleteCompiledPolicy(policyFilePath);
+	}
+
+	public void invalidateAll() {
+		for (String policyFilePath : entries.keySet()) {
+			invalidate(policyFilePath);
+		}
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.RESOLVED:
+			preload(event.getBundle());
+			break;
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNINSTALLED:
+			long bundleId = event.getBundle().getBundleId();
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				if (e.getValue().bundleId == bundleId && entries.remove(e.getKey(), e.getValue())) {
+					deleteCompiledPolicy(e.getKey());
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Registers the observation listener of a policy file when it is loaded. The listener is
+	 * removed when the file changes, it is registered again when the file is loaded again.
+	 */
+	private void observe(final String policyFilePath) {
+		if (listeners.containsKey(policyFilePath)) return;
+		synchronized (listeners) {
+			if (listeners.containsKey(policyFilePath) || observationSession == null) return;
+			EventListener listener = new EventListener() {
+				public void onEvent(EventIterator events) {
+					invalidate(policyFilePath);
+					unobserve(policyFilePath);
+				}
+			};
+			try {
+				observationSession.getWorkspace().getObservationManager().addEventListener(listener,
+						OBSERVED_EVENTS, policyFilePath, true, null, null, false);
+				listeners.put(policyFilePath, listener);
+			} catch (RepositoryException e) {
+				log.warn("Could not observe the policy file '" + policyFilePath + "'", e);
+			}
+		}
+	}
+
+	private void unobserve(String policyFilePath) {
+		synchronized (listeners) {
+			EventListener listener = listeners.remove(policyFilePath);
+			if (listener == null || observationSession == null) return;
+			try {
+				observationSession.getWorkspace().getObservationManager().removeEventListener(listener);
+			} catch (RepositoryException e) {
+				log.warn("Could not remove the observation listener", e);
+			}
+		}
+	}
+
+	/**
+	 * Drops the entries not loaded from a bundle which were not used since the last sweep, at
+	 * most once per {@link #SWEEP_INTERVAL_MILLIS}.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		long next = nextSweep.get();
+		if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_MILLIS)) return;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			if (entry.bundleId != NO_BUNDLE || entry.policy == null) continue;
+			if (entry.used) {
+				entry.used = false;
+			} else if (entries.remove(e.getKey(), entry)) {
+				deleteCompiledPolicy(e.getKey());
+				unobserve(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Preloads the policy files of the Sling bundle resources of a bundle
+	 */
+	private void preload(Bundle bundle) {
+		String header = bundle.getHeaders().get(BUNDLE_RESOURCES_HEADER);
+		if (header == null) return;
+
+		for (String resource : header.split(",")) {
+			String[] parts = resource.trim().split(";");
+			String resourcePath = parts[0].trim();
+			String entryPath = resourcePath;
+			for (int i = 1; i < parts.length; i++) {
+				String part = parts[i].trim();
+				if (part.startsWith("path:=")) {
+					entryPath = part.substring("path:=".length()).replace("\"", "");
+				}
+			}
+
+			Enumeration<?> urls = bundle.findEntries(entryPath, "*" + POLICY_FILE_EXTENSION, true);
+			while (urls != null && urls.hasMoreElements()) {
+				URL url = (URL) urls.nextElement();
+				String policyFilePath = resourcePath + url.getPath().substring(entryPath.length());
+				try {
+					preload(policyFilePath, bundle.getBundleId(), read(url.openStream()));
+				} catch (IOException e) {
+					log.error("ERROR: Could not read the policy file '" + url + "'", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Preloads the policy files stored in the repository
+	 */
+	private void preload(Session session) throws RepositoryException {
+		Query query = session.getWorkspace().getQueryManager().createQuery(POLICY_FILES_QUERY, Query.JCR_SQL2);
+		NodeIterator nodes = query.execute().getNodes();
+		while (nodes.hasNext()) {
+			Node node = nodes.nextNode();
+			try {
+				InputStream is = node.getNode("jcr:content").getProperty("jcr:data").getBinary().getStream();
+				preload(node.getPath(), NO_BUNDLE, read(is));
+				observe(node.getPath());
+			} catch (Exception e) {
+				log.error("ERROR: Could not read the policy file '" + node.getPath() + "'", e);
+			}
+		}
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		if (is == null) return null;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = is.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+				// Ignore this error
+			}
+		}
+	}
+
+	/**
+	 * Compiles a policy file and writes the compiled form to the data area of the bundle
+	 */
+	private CompiledSerializationPolicy compile(String policyFilePath, byte[] content) {
+		CompiledSerializationPolicy policy;
+		try {
+			policy = CompiledSerializationPolicy.compile(policyFilePath, content);
+		} catch (ParseException e) {
+			log.error("ERROR: Failed to parse the policy file '" + policyFilePath + "'", e);
+			return null;
+		} catch (IOException e) {
+			log.error("ERROR: Could not read the policy file '" + policyFilePath + "'", e);
+			return null;
+		}
+		File file = getCompiledPolicyFile(policyFilePath);
+		if (file != null) {
+			try {
+				policy.write(file);
+			} catch (IOException e) {
+				log.warn("Could not write the compiled policy file '" + file + "'", e);
+			}
+		}
+		return policy;
+	}
+
+	/**
+	 * Preloads a policy file. The compiled policy loaded from the disk is kept if the
+	 * content of the file has not changed.
+	 */
+	private void preload(String policyFilePath, long bundleId, byte[] content) {
+		if (content == null) return;
+		Entry entry = entries.get(policyFilePath);
+		CompiledSerializationPolicy policy = entry != null ? entry.policy : null;
+		if (policy == null || policy.getChecksum() != CompiledSerializationPolicy.checksum(content)) {
+			policy = compile(policyFilePath, content);
+		}
+		if (policy != null) {
+			entries.put(policyFilePath, new Entry(bundleId, policy));
+		}
+	}
+
+	/**
+	 * Loads the policies compiled before the last restart
+	 */
+	private void loadCompiledPolicies(BundleContext context) {
+		compiledPolicyDirectory = context.getDataFile(COMPILED_POLICY_DIRECTORY);
+		if (compiledPolicyDirectory == null) return;
+		if (!compiledPolicyDirectory.isDirectory() && !compiledPolicyDirectory.mkdirs()) {
+			log.warn("Could not create directory for the compiled policy files: " + compiledPolicyDirectory);
+			compiledPolicyDirectory = null;
+			return;
+		}
+		File[] files = compiledPolicyDirectory.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (!file.getName().endsWith(COMPILED_POLICY_EXTENSION)) continue;
+			try {
+				CompiledSerializationPolicy policy = CompiledSerializationPolicy.read(file);
+				Entry entry = new Entry(NO_BUNDLE, policy);
+				// Replaced by the preloading if the policy file still exists, dropped by the sweep if it is not used
+				entry.used = false;
+				entries.put(policy.getPolicyFilePath(), entry);
+			} catch (IOException e) {
+				log.warn("Could not read the compiled policy file '" + file + "', it is dropped", e);
+				file.delete();
+			}
+		}
+	}
+
+	private File getCompiledPolicyFile(String policyFilePath) {
+		if (compiledPolicyDirectory == null) return null;
+		String name = policyFilePath.substring(policyFilePath.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+		return new File(compiledPolicyDirectory, Integer.toHexString(policyFilePath.hashCode()) + "-" + name + COMPILED_POLICY_EXTENSION);
+	}
+
+	private void deleteCompiledPolicy(String policyFilePath) {
+		File file = getCompiledPolicyFile(policyFilePath);
+		if (file != null && file.exists() && !file.delete()) {
+			log.warn("Could not delete the compiled policy file '" + file + "'");
+		}
+	}
+
+	private static final class Entry {
+		final long bundleId;
+		volatile CompiledSerializationPolicy policy;
+		volatile boolean used = true;
+
+		Entry(long bundleId, CompiledSerializationPolicy policy) {
+			this.bundleId = bundleId;
+			this.policy = policy;
+		}
+	}
+}
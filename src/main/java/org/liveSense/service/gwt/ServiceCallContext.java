@@ -0,0 +1,313 @@
+package org.liveSense.service.gwt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.liveSense.misc.jcrWrapper.RequestWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-call context of the GWT servlets. Created once at the beginning of every call, it holds
+ * the user, the locale, the resource bundle, the authentication info and the user session of
+ * the call. The values are read from the request attributes at the first use (values set by the
+ * setters are written to the request attributes too, so code reading the attributes directly
+ * still works).
+ * <p/>
+ * The context of the current call is bound to the request thread. Worker threads of the call
+ * can {@link #attach(ServiceCallContext)} it (or a {@link #fork()} of it), so the helper
+ * methods of the servlets work there too.
+ */
+public class ServiceCallContext {
+
+	public static final String LOCALE_ATTRIBUTE = "locale";
+
+	public static final String RESOURCE_BUNDLE_ATTRIBUTE = "resourceBundle";
+
+	public static final String AUTHENTICATION_INFO_ATTRIBUTE = "org.apache.sling.commons.auth.spi.AuthenticationInfo";
+
+	/**
+	 * <code>HttpContext.REMOTE_USER</code>
+	 */
+	public static final String REMOTE_USER_ATTRIBUTE = "org.osgi.service.http.authentication.remote.user";
+
+	private static final Logger log = LoggerFactory.getLogger(ServiceCallContext.class);
+
+	private static final ThreadLocal<ServiceCallContext> current = new ThreadLocal<ServiceCallContext>();
+
+	private final HttpServletRequest request;
+
+	private final HttpServletResponse response;
+
+	private final Locale defaultLocale;
+
+	private volatile RequestWrapper requestWrapper;
+
+	private volatile String user;
+
+	private volatile Locale locale;
+
+	private volatile ResourceBundle resourceBundle;
+
+	private volatile AuthenticationInfo authenticationInfo;
+
+	private volatile Session userSession;
+
+
+	private volatile Repository userSessionRepository;
+
+	/**
+	 * The sessions of the call, released at the end of the call
+	 */
+	private final List<Session> sessions = new ArrayList<Session>();
+
+	private volatile CallMetrics callMetrics;
+
+	private volatile ConcurrencyLimiter concurrencyLimiter;
+
+	private volatile String operation;
+
+	/**
+	 * The context of the whole call if this is the context of a part of it
+	 */
+	private ServiceCallContext call;
+
+	public ServiceCallContext(HttpServletRequest request, HttpServletResponse response, Locale defaultLocale) {
+		this.request = request;
+		this.response = response;
+		this.defaultLocale = defaultLocale;
+	}
+
+	/**
+	 * @return the context of the call of the current thread or <code>null</code> if there is none
+	 */
+	public static ServiceCallContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Binds the context to the current thread.
+	 *
+	 * @param context the context of the call
+	 * @return the context bound before, it has to be passed to {@link #detach(ServiceCallContext)}
+	 */
+	public static ServiceCallContext attach(ServiceCallContext context) {
+		ServiceCallContext previous = current.get();
+		current.set(context);
+		return previous;
+	}
+
+	/**
+	 * Restores the context bound before {@link #attach(ServiceCallContext)}.
+	 *
+	 * @param previous the context returned by <code>attach()</code>
+	 */
+	public static void detach(ServiceCallContext previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * Creates a context of a part of the call which runs in an other thread (e.g. a call of a
+	 * batch). The user, locale, resource bundle, authentication info, metrics and limiter are shared, but
+	 * the fork has its own user session, because JCR sessions must not be used by several
+	 * threads at the same time. The sessions of the fork have to be released by the thread
+	 * running it.
+	 * <p/>
+	 * The container request and response are not thread-safe, the fork gets its own view of
+	 * them: the request attributes are a snapshot (see {@link ForkedRequest}) and the response
+	 * can not be changed (see {@link ForkedResponse}). The fork has to be created by the request
+	 * thread.
+	 *
+	 * @return the context of the part of the call
+	 */
+	public ServiceCallContext fork() {
+		ServiceCallContext ret = new ServiceCallContext(new ForkedRequest(request), new ForkedResponse(response), defaultLocale);
+		ret.call = getCall();
+		ret.user = getUser();
+		ret.locale = getLocale();
+		ret.resourceBundle = getResourceBundle();
+		ret.authenticationInfo = getAuthenticationInfo();
+		ret.callMetrics = callMetrics;
+		ret.concurrencyLimiter = concurrencyLimiter;
+		return ret;
+	}
+
+	/**
+	 * @return the context of the whole call, the context itself if it is not a fork (see {@link #fork()})
+	 */
+	public ServiceCallContext getCall() {
+		return call != null ? call : this;
+	}
+
+	public HttpServletRequest getRequest() {
+		return request;
+	}
+
+	public HttpServletResponse getResponse() {
+		return response;
+	}
+
+	public RequestWrapper getRequestWrapper() {
+		RequestWrapper ret = requestWrapper;
+		if (ret == null) {
+			ret = new RequestWrapper(request, null);
+			requestWrapper = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the authenticated user or <code>null</code> if the call is not authenticated (yet)
+	 */
+	public String getUser() {
+		String ret = user;
+		if (ret == null) {
+			ret = (String) request.getAttribute(REMOTE_USER_ATTRIBUTE);
+			user = ret;
+		}
+		return ret;
+	}
+
+	public Locale getLocale() {
+		Locale ret = locale;
+		if (ret == null) {
+			Object attribute = request.getAttribute(LOCALE_ATTRIBUTE);
+			if (attribute instanceof Locale) {
+				ret = (Locale) attribute;
+			} else {
+				ret = new RequestWrapper(request, defaultLocale).getLocale();
+				request.setAttribute(LOCALE_ATTRIBUTE, ret);
+			}
+			locale = ret;
+		}
+		return ret;
+	}
+
+	public void setLocale(Locale locale) {
+		request.setAttribute(LOCALE_ATTRIBUTE, locale);
+		this.locale = locale;
+	}
+
+	public ResourceBundle getResourceBundle() {
+		ResourceBundle ret = resourceBundle;
+		if (ret == null) {
+			ret = (ResourceBundle) request.getAttribute(RESOURCE_BUNDLE_ATTRIBUTE);
+			resourceBundle = ret;
+		}
+		return ret;
+	}
+
+	public void setResourceBundle(ResourceBundle resourceBundle) {
+		request.setAttribute(RESOURCE_BUNDLE_ATTRIBUTE, resourceBundle);
+		this.resourceBundle = resourceBundle;
+	}
+
+	/**
+	 * @return the authentication info or <code>null</code> if the call is not authenticated (yet)
+	 */
+	public AuthenticationInfo getAuthenticationInfo() {
+		AuthenticationInfo ret = authenticationInfo;
+		if (ret == null) {
+			ret = (AuthenticationInfo) request.getAttribute(AUTHENTICATION_INFO_ATTRIBUTE);
+			authenticationInfo = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the metrics the latencies of the call are recorded in or <code>null</code> if they are not recorded
+	 */
+	public CallMetrics getCallMetrics() {
+		return callMetrics;
+	}
+
+	public void setCallMetrics(CallMetrics callMetrics) {
+		this.callMetrics = callMetrics;
+	}
+
+	/**
+	 * @return the limiter of the concurrent service calls or <code>null</code> if the calls are not limited
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return concurrencyLimiter;
+	}
+
+	public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	/**
+	 * @return the operation the latencies of the call are recorded for or <code>null</code> if it is not known (yet)
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * Returns the user session of the call. The session is shared by the callers, so every
+	 * caller gets its own view of it whose <code>logout()</code> does not close it (see
+	 * {@link CallSessionView}), the callers can log out the session they got as they did with
+	 * their own sessions.
+	 *
+	 * @param repository the repository of the session
+	 * @return a new view of the user session of the call if it is still live
+	 */
+	public Session getUserSession(Repository repository) {
+		Session ret = userSession;
+		if (ret != null && userSessionRepository == repository && ret.isLive()) {
+			return CallSessionView.create(ret);
+		}
+		return null;
+	}
+
+	/**
+	 * @param repository the repository of the session
+	 * @param session the user session of the call, it is logged out (returned to the pool) at the end of the call
+	 * @param borrowed whether the session is borrowed from the session pool
+	 */
+	public void setUserSession(Repository repository, Session session, boolean borrowed) {
+		synchronized (sessions) {
+			sessions.add(session);
+		}
+		this.userSessionRepository = repository;
+		this.userSession = session;
+	}
+
+	/**
+	 * Logs out the sessions of the call (the pooled sessions are returned to the pool).
+	 */
+	public void releaseSessions() {
+		List<Session> sessions;
+		synchronized (this.sessions) {
+			sessions = new ArrayList<Session>(this.sessions);
+			this.sessions.clear();
+		}
+		userSession = null;
+		userSessionRepository = null;
+		for (Session session : sessions) {
+			try {
+				if (session.isLive()) {
+					session.logout();
+				}
+			} catch (RuntimeException e) {
+				log.warn("Could not log out the session of the call", e);
+			}
+		}
+	}
+}
@@ -55,6 +55,20 @@ public class AccessDeniedException extends Exception implements IsSerializable {
 		//log.error(msg, cause);
 	}
 
+	/**
+	 * Creates the exception without stack trace when <code>writableStackTrace</code> is false.
+	 * Filling in the stack trace is the most expensive part of creating an exception, expected
+	 * failures which are thrown often (validation, access checks) should be created this way.
+	 *
+	 * @param msg the message
+	 * @param cause the cause, can be <code>null</code>
+	 * @param writableStackTrace whether the stack trace is filled in
+	 */
+	public AccessDeniedException(String msg, Throwable cause, boolean writableStackTrace) {
+		super(msg, cause, false, writableStackTrace);
+		this.msg = msg;
+	}
+
 	public String getMessage() {
 		return msg;
 	}
@@ -0,0 +1,56 @@
+package org.liveSense.service.gwt.exceptions;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * The call was rejected because the service is overloaded. The call was not executed, so it
+ * can be retried after {@link #getRetryAfter()} milliseconds.
+ */
+public class ServiceUnavailableException extends Exception implements IsSerializable {
+
+	private String msg;
+
+	private long retryAfter;
+
+	public ServiceUnavailableException() {
+		super();
+	}
+
+	public ServiceUnavailableException(String msg, long retryAfter) {
+		super(msg);
+		this.msg = msg;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Creates the exception without stack trace when <code>writableStackTrace</code> is false.
+	 * Rejections are thrown when the server is already overloaded, they should be created this way.
+	 *
+	 * @param msg the message
+	 * @param retryAfter the suggested delay of the retry in milliseconds
+	 * @param writableStackTrace whether the stack trace is filled in
+	 */
+	public ServiceUnavailableException(String msg, long retryAfter, boolean writableStackTrace) {
+		super(msg, null, false, writableStackTrace);
+		this.msg = msg;
+		this.retryAfter = retryAfter;
+	}
+
+	public String getMessage() {
+		return msg;
+	}
+
+	/**
+	 * @return the suggested delay of the retry in milliseconds
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return always true, the rejected call was not executed
+	 */
+	public boolean isRetryable() {
+		return true;
+	}
+}
@@ -0,0 +1,112 @@
+package org.liveSense.service.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AimdLimitTest {
+
+	private static final long FAST = 1000;
+
+	private static final long SLOW = 1000000;
+
+	@Test
+	public void testLimitsAreClamped() {
+		assertEquals(1, new AimdLimit(0, 0, 0, 0.5, 2.0).getSnapshot().getLimit());
+		assertEquals(4, new AimdLimit(10, 1, 4, 0.5, 2.0).getSnapshot().getLimit());
+		assertEquals(3, new AimdLimit(1, 3, 10, 0.5, 2.0).getSnapshot().getLimit());
+	}
+
+	@Test
+	public void testRejectsAboveLimit() {
+		AimdLimit limit = new AimdLimit(2, 1, 10, 0.5, 2.0);
+		assertEquals(1, limit.tryAcquire());
+		assertEquals(2, limit.tryAcquire());
+		assertEquals(-1, limit.tryAcquire());
+
+		AimdLimit.Snapshot snapshot = limit.getSnapshot();
+		assertEquals(2, snapshot.getInFlight());
+		assertEquals(2, snapshot.getAccepted());
+		assertEquals(1, snapshot.getRejected());
+
+		limit.release(System.nanoTime(), FAST, 2);
+		assertEquals(2, limit.tryAcquire());
+	}
+
+	@Test
+	public void testBaseline() {
+		AimdLimit limit = new AimdLimit(4, 1, 10, 0.5, 2.0);
+		assertEquals(0, limit.getSnapshot().getBaseline());
+		call(limit, System.nanoTime(), 3 * FAST);
+		call(limit, System.nanoTime(), FAST);
+		call(limit, System.nanoTime(), 2 * FAST);
+		assertEquals(FAST, limit.getSnapshot().getBaseline());
+	}
+
+	@Test
+	public void testBaselineFollowsSlowerService() {
+		AimdLimit limit = new AimdLimit(4, 1, 10, 0.5, 1000.0);
+		call(limit, System.nanoTime(), FAST);
+		for (int i = 0; i < 2 * AimdLimit.BASELINE_WINDOW; i++) {
+			call(limit, System.nanoTime(), 10 * FAST);
+		}
+		assertEquals(10 * FAST, limit.getSnapshot().getBaseline());
+	}
+
+	@Test
+	public void testBacksOffOncePerRoundTrip() throws InterruptedException {
+		AimdLimit limit = new AimdLimit(16, 1, 100, 0.5, 2.0);
+		long start = System.nanoTime();
+		call(limit, start, FAST);
+		assertEquals(16, limit.getSnapshot().getLimit());
+
+		// The calls started before the backoff lower the limit only once
+		for (int i = 0; i < 5; i++) {
+			call(limit, start, SLOW);
+		}
+		assertEquals(8, limit.getSnapshot().getLimit());
+
+		Thread.sleep(1);
+		call(limit, System.nanoTime(), SLOW);
+		assertEquals(4, limit.getSnapshot().getLimit());
+	}
+
+	@Test
+	public void testBackoffStopsAtMinimum() throws InterruptedException {
+		AimdLimit limit = new AimdLimit(2, 2, 10, 0.5, 2.0);
+		call(limit, System.nanoTime(), FAST);
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(1);
+			call(limit, System.nanoTime(), SLOW);
+		}
+		assertEquals(2, limit.getSnapshot().getLimit());
+	}
+
+	@Test
+	public void testIncreasesWhenUsed() {
+		AimdLimit limit = new AimdLimit(4, 1, 6, 0.5, 2.0);
+		// Idle: at most a quarter of the limit is used
+		call(limit, System.nanoTime(), FAST, 1);
+		assertEquals(4, limit.getSnapshot().getLimit());
+
+		// Busy: at least the half of the limit is used
+		call(limit, System.nanoTime(), FAST, 2);
+		assertEquals(5, limit.getSnapshot().getLimit());
+		call(limit, System.nanoTime(), FAST, 5);
+		assertEquals(6, limit.getSnapshot().getLimit());
+		call(limit, System.nanoTime(), FAST, 6);
+		assertEquals(6, limit.getSnapshot().getLimit());
+	}
+
+	private static void call(AimdLimit limit, long start, long nanos) {
+		int inFlight = limit.tryAcquire();
+		assertTrue(inFlight > 0);
+		limit.release(start, nanos, inFlight);
+	}
+
+	private static void call(AimdLimit limit, long start, long nanos, int inFlightAtStart) {
+		assertTrue(limit.tryAcquire() > 0);
+		limit.release(start, nanos, inFlightAtStart);
+	}
+}
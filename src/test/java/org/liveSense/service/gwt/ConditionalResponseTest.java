@@ -0,0 +1,66 @@
+package org.liveSense.service.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConditionalResponseTest {
+
+	private static final String ETAG = "\"0123456789abcdef\"";
+
+	@Test
+	public void testMatches() {
+		assertTrue(ConditionalResponse.matches(ETAG, ETAG));
+		assertTrue(ConditionalResponse.matches("\"other\", " + ETAG, ETAG));
+		assertTrue(ConditionalResponse.matches(" " + ETAG + " ,\"other\"", ETAG));
+		assertTrue(ConditionalResponse.matches("*", ETAG));
+		assertTrue(ConditionalResponse.matches("\"other\",*", ETAG));
+	}
+
+	@Test
+	public void testWeakMatches() {
+		assertTrue(ConditionalResponse.matches("W/" + ETAG, ETAG));
+		assertTrue(ConditionalResponse.matches("\"other\", W/" + ETAG, ETAG));
+	}
+
+	@Test
+	public void testDoesNotMatch() {
+		assertFalse(ConditionalResponse.matches(null, ETAG));
+		assertFalse(ConditionalResponse.matches(ETAG, null));
+		assertFalse(ConditionalResponse.matches("", ETAG));
+		assertFalse(ConditionalResponse.matches("\"other\"", ETAG));
+		assertFalse(ConditionalResponse.matches("0123456789abcdef", ETAG));
+		assertFalse(ConditionalResponse.matches("\"0123456789ABCDEF\"", ETAG));
+	}
+
+	@Test
+	public void testEtag() {
+		String etag = ConditionalResponse.etag("operation", "payload");
+		assertEquals(18, etag.length());
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		assertEquals(etag, ConditionalResponse.etag("operation", "payload"));
+		assertNotEquals(etag, ConditionalResponse.etag("operation", "payload2"));
+		assertNotEquals(ConditionalResponse.etag("ab", "c"), ConditionalResponse.etag("a", "bc"));
+		assertNotEquals(ConditionalResponse.etag("\u0100"), ConditionalResponse.etag("\u0001"));
+	}
+
+	@Test
+	public void testNotModified() {
+		ConditionalResponse conditional = new ConditionalResponse(ETAG);
+		assertNull(conditional.getETag());
+		assertFalse(conditional.isNotModified());
+		conditional.setETag("\"other\"");
+		assertFalse(conditional.isNotModified());
+		conditional.setETag(ETAG);
+		assertEquals(ETAG, conditional.getETag());
+		assertTrue(conditional.isNotModified());
+
+		conditional = new ConditionalResponse(null);
+		conditional.setETag(ETAG);
+		assertFalse(conditional.isNotModified());
+	}
+}
@@ -0,0 +1,66 @@
+package org.liveSense.service.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	private static final long MAX_VALUE = (1L << 32) - 1;
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for (int value = 0; value < 16; value++) {
+			assertEquals(value, LatencyHistogram.index(value));
+			assertEquals(value, LatencyHistogram.highestValue(value));
+		}
+	}
+
+	@Test
+	public void testBucketBounds() {
+		for (long value = 0; value < 1 << 20; value++) {
+			assertBucket(value);
+		}
+		for (long value = 1 << 20; value <= MAX_VALUE; value = value * 9 / 8 + 1) {
+			assertBucket(value - 1);
+			assertBucket(value);
+		}
+		assertBucket(MAX_VALUE);
+	}
+
+	@Test
+	public void testBucketsAreContiguous() {
+		int last = LatencyHistogram.index(MAX_VALUE);
+		assertTrue(LatencyHistogram.highestValue(last) >= MAX_VALUE);
+		for (int index = 1; index <= last; index++) {
+			long lowest = LatencyHistogram.highestValue(index - 1) + 1;
+			assertEquals(index, LatencyHistogram.index(lowest));
+			assertEquals(index, LatencyHistogram.index(LatencyHistogram.highestValue(index)));
+		}
+	}
+
+	@Test
+	public void testIndexIsMonotonic() {
+		int previous = LatencyHistogram.index(0);
+		for (long value = 1; value <= MAX_VALUE; value = value * 17 / 16 + 1) {
+			int index = LatencyHistogram.index(value);
+			assertTrue("index of " + value, index >= previous);
+			previous = index;
+		}
+	}
+
+	/**
+	 * The value is in its bucket and the bucket is not wider than 1/8 of the value
+	 */
+	private static void assertBucket(long value) {
+		int index = LatencyHistogram.index(value);
+		long highest = LatencyHistogram.highestValue(index);
+		assertTrue("highest value of the bucket of " + value + " is " + highest, highest >= value);
+		if (index > 0) {
+			long lowest = LatencyHistogram.highestValue(index - 1) + 1;
+			assertTrue("lowest value of the bucket of " + value + " is " + lowest, lowest <= value);
+			assertTrue("bucket of " + value + " is " + lowest + "-" + highest, highest - lowest <= lowest / 8);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package org.liveSense.service.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RpcBatchTest {
+
+	@Test
+	public void testRoundTrip() {
+		List<String> payloads = Arrays.asList("7|0|4|a|b|", "", "x|y", "\u00e1rv\u00edzt\u0171r\u0151");
+		String encoded = new RpcBatch(true, payloads).encode();
+		assertTrue(RpcBatch.isBatch(encoded));
+
+		RpcBatch decoded = RpcBatch.decode(encoded, 10);
+		assertTrue(decoded.isParallel());
+		assertEquals(payloads, decoded.getPayloads());
+
+		decoded = RpcBatch.decode(new RpcBatch(false, payloads).encode(), 10);
+		assertFalse(decoded.isParallel());
+		assertEquals(payloads, decoded.getPayloads());
+	}
+
+	@Test
+	public void testFormat() {
+		assertEquals("BATCH|S|2|3|abc0|", new RpcBatch(false, Arrays.asList("abc", "")).encode());
+		assertEquals("//BATCH|2|4|//OK4|//EX", RpcBatch.encodeResponse(Arrays.asList("//OK", "//EX")));
+	}
+
+	@Test
+	public void testEmptyBatch() {
+		RpcBatch decoded = RpcBatch.decode("BATCH|P|0|", 10);
+		assertEquals(Collections.emptyList(), decoded.getPayloads());
+		assertEquals(Collections.emptyList(), RpcBatch.decodeResponse(RpcBatch.encodeResponse(Collections.<String>emptyList())));
+	}
+
+	@Test
+	public void testIsBatch() {
+		assertFalse(RpcBatch.isBatch(null));
+		assertFalse(RpcBatch.isBatch("7|0|4|BATCH|"));
+		assertTrue(RpcBatch.isBatch("BATCH|P|0|"));
+	}
+
+	@Test
+	public void testResponseRoundTrip() {
+		List<String> responses = Arrays.asList("//OK[1,[],0,7]", "//EX[2,[\"a|b\"],0,7]", "");
+		assertEquals(responses, RpcBatch.decodeResponse(RpcBatch.encodeResponse(responses)));
+	}
+
+	@Test
+	public void testMalformedRequests() {
+		assertMalformed("7|0|4|");
+		assertMalformed("BATCH|");
+		assertMalformed("BATCH|X|1|1|a");
+		assertMalformed("BATCH|P|");
+		assertMalformed("BATCH|P|x|");
+		assertMalformed("BATCH|P|-1|");
+		assertMalformed("BATCH|P|1|");
+		assertMalformed("BATCH|P|1|5|abc");
+		assertMalformed("BATCH|P|1|-1|abc");
+		assertMalformed("BATCH|P|1|3|abcd");
+		assertMalformed("BATCH|P|2|1|a");
+	}
+
+	@Test
+	public void testTooManyCalls() {
+		String encoded = new RpcBatch(true, Arrays.asList("a", "b", "c")).encode();
+		assertEquals(3, RpcBatch.decode(encoded, 3).getPayloads().size());
+		assertMalformed(encoded, 2);
+	}
+
+	@Test
+	public void testMalformedResponses() {
+		assertMalformedResponse(null);
+		assertMalformedResponse("//OK[]");
+		assertMalformedResponse("//BATCH|");
+		assertMalformedResponse("//BATCH|1|9|//OK");
+		assertMalformedResponse("//BATCH|1|x|//OK");
+	}
+
+	private static void assertMalformed(String payload) {
+		assertMalformed(payload, 10);
+	}
+
+	private static void assertMalformed(String payload, int maxSize) {
+		try {
+			RpcBatch.decode(payload, maxSize);
+			fail("Accepted " + payload);
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static void assertMalformedResponse(String response) {
+		try {
+			RpcBatch.decodeResponse(response);
+			fail("Accepted " + response);
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+}